@@ -0,0 +1,190 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A writer that decouples extraction from storage: it batches up each unit on the extracting
+ * thread and hands the completed unit to a dedicated storage thread, which passes it to the target
+ * writer. This allows an extractor to move on to the next unit while the target is still storing
+ * (and committing) the last one.
+ *
+ * <p>Units are handed off through a bounded queue; if the storage thread falls behind, {@link
+ * #closeUnit} blocks until the queue has room. If the target fails to store a unit, the storage
+ * thread discards all subsequent units and the failure is rethrown from the next call to {@link
+ * #closeUnit} or {@link #closeSession}. {@link #closeSession} waits for all queued units to be
+ * stored before closing the target's session. If it is interrupted while waiting, the remaining
+ * units are discarded; the unit being stored is allowed to finish, as the storage thread is never
+ * interrupted while the target is doing I/O.</p>
+ *
+ * <p>The target is only used by one thread at a time: its session is opened and closed on the
+ * calling thread, and its units are stored on the storage thread in between.</p>
+ */
+public class AsyncWriter extends BatchWriter {
+
+  /**
+   * Creates an async writer that delivers units to {@code target}.
+   * @param queueSize the maximum number of extracted units waiting to be stored.
+   */
+  public AsyncWriter (Writer target, int queueSize) {
+    _target = target;
+    _queueSize = queueSize;
+  }
+
+  @Override public void openSession () {
+    if (_storer != null) throw new IllegalStateException("Session already open.");
+    _target.openSession();
+    _queue = new ArrayBlockingQueue<>(_queueSize);
+    _failure = null;
+    _stopped = false;
+    _storer = new Thread(this::storeUnits, "AsyncWriter");
+    _storer.setDaemon(true);
+    _storer.start();
+  }
+
+  @Override public void closeSession () {
+    if (_storer == null) throw new IllegalStateException("No session open.");
+    boolean ended = false;
+    try {
+      enqueue(END);
+      ended = true;
+      _storer.join();
+    } catch (InterruptedException ie) {
+      // have the storage thread discard the remaining units, but wait for it to finish the one it's
+      // storing before we use the target
+      _stopped = true;
+      if (!ended) putUninterruptibly(_queue, END);
+      joinUninterruptibly(_storer);
+      if (_failure == null) _failure = new IllegalStateException("Storage interrupted.", ie);
+      Thread.currentThread().interrupt();
+    } finally {
+      _storer = null;
+      _queue = null;
+      // close the target's session even if storing failed, so that it is left in a sane state
+      _target.closeSession();
+    }
+    checkFailure();
+  }
+
+  @Override protected void storeUnit (Source source, DefInfo topDef) {
+    checkFailure();
+    try {
+      enqueue(new Unit(source, topDef));
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while queueing " + source, ie);
+    }
+  }
+
+  /** Replays the unit {@code topDef} (as batched by a {@link BatchWriter}) into {@code writer}.
+    * Batch writers are handed the unit directly, other writers are sent the unit's hashes (if any)
+    * and then each def's events grouped by type (sig, doc, relations, uses, then member defs). */
+  public static void replay (Source source, DefInfo topDef, Writer writer) {
+    if (writer instanceof BatchWriter) ((BatchWriter)writer).storeUnit(source, topDef);
+    else {
+      writer.openUnit(source);
+      if (topDef.contentHash != 0L || topDef.apiHash != 0L) {
+        writer.emitHashes(topDef.contentHash, topDef.apiHash);
+      }
+      if (topDef.defs != null) for (DefInfo def : topDef.defs) replayDef(def, writer);
+      writer.closeUnit();
+    }
+  }
+
+  private static void replayDef (DefInfo def, Writer writer) {
+    writer.openDef(def.id, def.name, def.kind, def.flavor, def.exported, def.access,
+                   def.offset, def.bodyStart, def.bodyEnd);
+    if (def.sig != null) {
+      writer.emitSig(def.sig.text);
+      if (def.sig.uses != null) for (UseInfo use : def.sig.uses) {
+        writer.emitSigUse(use.ref, use.refKind, use.offset, use.length);
+      }
+    }
+    if (def.doc != null) {
+      writer.emitDoc(def.doc.offset, def.doc.length);
+      if (def.doc.uses != null) for (UseInfo use : def.doc.uses) {
+        writer.emitDocUse(use.ref, use.refKind, use.offset, use.length);
+      }
+    }
+    if (def.relations != null) for (RelInfo rel : def.relations) {
+      writer.emitRelation(rel.relation, rel.target);
+    }
+    if (def.uses != null) for (UseInfo use : def.uses) {
+      writer.emitUse(use.ref, use.refKind, use.offset, use.length);
+    }
+    if (def.defs != null) for (DefInfo mem : def.defs) replayDef(mem, writer);
+    writer.closeDef();
+  }
+
+  private static class Unit {
+    public final Source source;
+    public final DefInfo topDef;
+    public Unit (Source source, DefInfo topDef) {
+      this.source = source;
+      this.topDef = topDef;
+    }
+  }
+
+  private void enqueue (Unit unit) throws InterruptedException {
+    // the storage thread keeps draining the queue after a failure, so this can't block forever
+    _queue.put(unit);
+  }
+
+  private void storeUnits () {
+    BlockingQueue<Unit> queue = _queue;
+    try {
+      for (Unit unit = queue.take(); unit != END; unit = queue.take()) {
+        if (_failure != null || _stopped) continue; // discard units after a failure or stop
+        try {
+          replay(unit.source, unit.topDef, _target);
+        } catch (Throwable t) {
+          _failure = new RuntimeException("Failed to store " + unit.source, t);
+        }
+      }
+    } catch (InterruptedException ie) {
+      if (_failure == null) _failure = new IllegalStateException("Storage interrupted.", ie);
+    }
+  }
+
+  private static <T> void putUninterruptibly (BlockingQueue<T> queue, T elem) {
+    // the storage thread discards queued units once stopped, so the queue will soon have room
+    while (true) {
+      try {
+        queue.put(elem);
+        return;
+      } catch (InterruptedException ie) {
+        // keep trying
+      }
+    }
+  }
+
+  private static void joinUninterruptibly (Thread thread) {
+    while (true) {
+      try {
+        thread.join();
+        return;
+      } catch (InterruptedException ie) {
+        // keep waiting
+      }
+    }
+  }
+
+  private void checkFailure () {
+    RuntimeException failure = _failure;
+    if (failure != null) throw failure;
+  }
+
+  private final Writer _target;
+  private final int _queueSize;
+  private BlockingQueue<Unit> _queue;
+  private Thread _storer;
+  private volatile RuntimeException _failure;
+  private volatile boolean _stopped;
+
+  private static final Unit END = new Unit(null, null);
+}
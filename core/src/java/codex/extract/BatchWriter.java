@@ -7,6 +7,9 @@ package codex.extract;
 import codex.model.*;
 import codex.store.ProjectStore;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -94,6 +97,8 @@ public abstract class BatchWriter extends Writer {
 
     public Long defId; // this gets assigned in toDef()
     public HashSet<Long> memDefIds;
+    // these are only set on the top def of a unit, see Writer.emitHashes
+    public long contentHash, apiHash;
 
     public DefInfo (DefInfo outer, Ref.Global id, String name, Kind kind, Flavor flavor,
                     boolean exported, Access access, int offset, int bodyStart, int bodyEnd) {
@@ -133,6 +138,42 @@ public abstract class BatchWriter extends Writer {
                      offset, bodyStart, bodyEnd);
     }
 
+    /** Returns a digest of this def's own data: its attributes, sig, doc, relations and uses, and
+      * the ids of its member defs (but not their data). If a def's digest is unchanged when its
+      * unit is reindexed, a store need not rewrite its data. */
+    public long digest () {
+      if (!_digested) {
+        Hasher h = Hashing.murmur3_128().newHasher();
+        putRef(h, id).putInt(offset).putInt(bodyStart).putInt(bodyEnd).putBoolean(exported);
+        putString(h, name);
+        putEnum(h, kind);
+        putEnum(h, flavor);
+        putEnum(h, access);
+        if (sig == null) h.putBoolean(false);
+        else putUses(putString(h.putBoolean(true), sig.text), sig.uses);
+        if (doc == null) h.putBoolean(false);
+        else putUses(h.putBoolean(true).putInt(doc.offset).putInt(doc.length), doc.uses);
+        h.putInt(relations == null ? 0 : relations.size());
+        if (relations != null) for (RelInfo rel : relations) {
+          putRef(putEnum(h, rel.relation), rel.target);
+        }
+        putUses(h, uses);
+        h.putInt(defs == null ? 0 : defs.size());
+        if (defs != null) for (DefInfo def : defs) putRef(h, def.id);
+        _digest = h.hash().asLong();
+        _digested = true;
+      }
+      return _digest;
+    }
+
+    /** Returns a digest of this def and all of its member defs, recursively. Calling this on the
+      * top def of a unit yields a digest of the entire unit. */
+    public long treeDigest () {
+      Hasher h = Hashing.murmur3_128().newHasher();
+      addDigests(h);
+      return h.hash().asLong();
+    }
+
     @Override public String toString () {
       return String.format("DefInfo(%s, %s, %s, %s, %s, %s, %s, %d, %d, %d)",
                            outer == null ? "null" : outer.name, id, name, kind, flavor, exported,
@@ -143,6 +184,38 @@ public abstract class BatchWriter extends Writer {
       if (memDefIds == null) memDefIds = new HashSet<>();
       memDefIds.add(defId);
     }
+
+    private void addDigests (Hasher h) {
+      h.putLong(digest());
+      if (defs != null) for (DefInfo def : defs) def.addDigests(h);
+    }
+
+    private long _digest;
+    private boolean _digested;
+  }
+
+  private static Hasher putRef (Hasher h, Ref.Global ref) {
+    // hash the components from the innermost out, then a terminator (-1 or -2 for null)
+    for (; ref != null && ref != Ref.Global.ROOT; ref = ref.parent) putString(h, ref.id);
+    return h.putInt(ref == null ? -2 : -1);
+  }
+
+  private static Hasher putString (Hasher h, String value) {
+    // length prefix the string so that adjacent strings can't run together
+    if (value == null) return h.putInt(-1);
+    return h.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+  }
+
+  private static Hasher putEnum (Hasher h, Enum<?> value) {
+    return h.putInt(value == null ? -1 : value.ordinal());
+  }
+
+  private static Hasher putUses (Hasher h, List<UseInfo> uses) {
+    h.putInt(uses == null ? 0 : uses.size());
+    if (uses != null) for (UseInfo use : uses) {
+      putEnum(putRef(h, use.ref), use.refKind).putInt(use.offset).putInt(use.length);
+    }
+    return h;
   }
 
   @Override public void openUnit (Source source) {
@@ -150,6 +223,11 @@ public abstract class BatchWriter extends Writer {
     _curDef = new DefInfo(null, Ref.Global.ROOT, null, null, null, false, null, 0, 0, 0);
   }
 
+  @Override public void emitHashes (long contentHash, long apiHash) {
+    _curDef.contentHash = contentHash;
+    _curDef.apiHash = apiHash;
+  }
+
   @Override public void openDef (Ref.Global id, String name, Kind kind, Flavor flavor,
                                  boolean exported, Access access,
                                  int offset, int bodyStart, int bodyEnd) {
@@ -0,0 +1,134 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import static codex.extract.BinaryWriter.*;
+
+/**
+ * Reads a stream written by {@link BinaryWriter} and replays its events into another writer.
+ */
+public class BinaryReader {
+
+  public BinaryReader (InputStream in) {
+    _in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+  }
+
+  /**
+   * Replays all of the events in the stream into {@code writer}, in the order they were written.
+   * @return the number of units replayed.
+   * @throws IOException if the stream can't be read or was not written by a {@link BinaryWriter}.
+   */
+  public int replay (Writer writer) throws IOException {
+    if (_in.readInt() != MAGIC) throw new IOException("Not a binary writer stream");
+    int version = readVarInt();
+    if (version < 1 || version > VERSION) throw new IOException("Unsupported stream version: " + version);
+
+    int units = 0;
+    for (int op = _in.read(); op != -1; op = _in.read()) {
+      switch (op) {
+      case OPEN_SESSION: writer.openSession(); break;
+      case OPEN_UNIT:
+        writer.openUnit(Source.fromString(readString()));
+        units += 1;
+        break;
+      case EMIT_HASHES: writer.emitHashes(_in.readLong(), _in.readLong()); break;
+      case OPEN_DEF:
+        writer.openDef(readRef(), readString(), readEnum(KINDS), readEnum(FLAVORS),
+                       _in.readBoolean(), readEnum(ACCESSES),
+                       readVarInt(), readVarInt(), readVarInt());
+        break;
+      case EMIT_SIG: writer.emitSig(readText()); break;
+      case EMIT_SIG_USE:
+        writer.emitSigUse(readRef(), readEnum(KINDS), readVarInt(), readVarInt());
+        break;
+      case EMIT_DOC: writer.emitDoc(readVarInt(), readVarInt()); break;
+      case EMIT_DOC_USE:
+        writer.emitDocUse(readRef(), readEnum(KINDS), readVarInt(), readVarInt());
+        break;
+      case EMIT_RELATION: writer.emitRelation(readEnum(RELATIONS), readRef()); break;
+      case EMIT_USE:
+        writer.emitUse(readRef(), readEnum(KINDS), readVarInt(), readVarInt());
+        break;
+      case CLOSE_DEF: writer.closeDef(); break;
+      case CLOSE_UNIT: writer.closeUnit(); break;
+      case CLOSE_SESSION: writer.closeSession(); break;
+      default: throw new IOException("Invalid op " + op + " after " + units + " units");
+      }
+    }
+    return units;
+  }
+
+  private Ref.Global readRef () throws IOException {
+    int index = readVarInt();
+    if (index > 0) return _refs.get(index-1);
+    Ref.Global ref = readRef().plus(readString());
+    _refs.add(ref);
+    return ref;
+  }
+
+  private String readString () throws IOException {
+    int index = readVarInt();
+    if (index > 0) return _strings.get(index-1);
+    String value = readText();
+    _strings.add(value);
+    return value;
+  }
+
+  private String readText () throws IOException {
+    byte[] bytes = new byte[readVarInt()];
+    _in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private <E> E readEnum (E[] byCode) throws IOException {
+    int code = readVarInt();
+    if (code == 0) return null;
+    if (code < 0 || code >= byCode.length || byCode[code] == null) throw new IOException(
+      "Invalid enum code " + code);
+    return byCode[code];
+  }
+
+  private int readVarInt () throws IOException {
+    int zz = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = _in.read();
+      if (b == -1) throw new EOFException();
+      zz |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) break;
+    }
+    return (zz >>> 1) ^ -(zz & 1);
+  }
+
+  private final DataInputStream _in;
+  private final List<Ref.Global> _refs = new ArrayList<>();
+  private final List<String> _strings = new ArrayList<>();
+  { _refs.add(Ref.Global.ROOT); }
+
+  // maps each enum's persistent codes to its values
+  private static final Kind[] KINDS = codeTable(Kind.values(), kind -> kind.code);
+  private static final Flavor[] FLAVORS = codeTable(Flavor.values(), flavor -> flavor.code);
+  private static final Access[] ACCESSES = codeTable(Access.values(), access -> access.code);
+  private static final Relation[] RELATIONS = codeTable(Relation.values(), rel -> rel.code);
+
+  private static <E> E[] codeTable (E[] values, ToIntFunction<E> code) {
+    int max = 0;
+    for (E value : values) max = Math.max(max, code.applyAsInt(value));
+    E[] table = Arrays.copyOf(values, max+1);
+    Arrays.fill(table, null);
+    for (E value : values) table[code.applyAsInt(value)] = value;
+    return table;
+  }
+}
@@ -0,0 +1,248 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@code Writer} that records the events emitted to it (including session events) in a compact
+ * binary stream, which {@link BinaryReader} can later replay into any other writer. This allows
+ * the output of an extraction to be cached on disk and loaded into a store without rerunning the
+ * extractor.
+ *
+ * <p>Each event is an op code followed by its arguments. Ints are written as zig-zag varints and
+ * enums as varint persistent codes (e.g. {@link Kind#code}), which are stable even if an enum's
+ * values are reordered. Sources and the components of refs are written once and thereafter
+ * referred to by their index in a table, which the reader rebuilds as it goes, so a ref that is
+ * used many times costs only a varint or two per use.</p>
+ *
+ * <p>The stream is flushed when a session is closed, but the caller owns (and must close) the
+ * underlying output stream. I/O errors are rethrown as {@link UncheckedIOException}s.</p>
+ */
+public class BinaryWriter extends Writer {
+
+  public BinaryWriter (OutputStream out) {
+    _out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    try {
+      _out.writeInt(MAGIC);
+      writeVarInt(VERSION);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override public void openSession () {
+    try {
+      _out.writeByte(OPEN_SESSION);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override public void openUnit (Source source) {
+    try {
+      _out.writeByte(OPEN_UNIT);
+      writeString(source.toString());
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override public void emitHashes (long contentHash, long apiHash) {
+    try {
+      _out.writeByte(EMIT_HASHES);
+      // hashes are uniformly distributed, so they wouldn't shrink as varints
+      _out.writeLong(contentHash);
+      _out.writeLong(apiHash);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override public void openDef (Ref.Global id, String name, Kind kind, Flavor flavor,
+                                 boolean exported, Access access,
+                                 int offset, int bodyStart, int bodyEnd) {
+    try {
+      _out.writeByte(OPEN_DEF);
+      writeRef(id);
+      writeString(name);
+      writeEnum(kind);
+      writeEnum(flavor);
+      _out.writeBoolean(exported);
+      writeEnum(access);
+      writeVarInt(offset);
+      writeVarInt(bodyStart);
+      writeVarInt(bodyEnd);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override public void emitSig (String text) {
+    try {
+      _out.writeByte(EMIT_SIG);
+      writeText(text);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+  @Override public void emitSigUse (Ref.Global target, Kind kind, int offset, int length) {
+    writeUse(EMIT_SIG_USE, target, kind, offset, length);
+  }
+
+  @Override public void emitDoc (int offset, int length) {
+    try {
+      _out.writeByte(EMIT_DOC);
+      writeVarInt(offset);
+      writeVarInt(length);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+  @Override public void emitDocUse (Ref.Global target, Kind kind, int offset, int length) {
+    writeUse(EMIT_DOC_USE, target, kind, offset, length);
+  }
+
+  @Override public void emitRelation (Relation relation, Ref.Global target) {
+    try {
+      _out.writeByte(EMIT_RELATION);
+      writeEnum(relation);
+      writeRef(target);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+  @Override public void emitUse (Ref.Global target, Kind kind, int offset, int length) {
+    writeUse(EMIT_USE, target, kind, offset, length);
+  }
+
+  @Override public void closeDef () {
+    writeOp(CLOSE_DEF);
+  }
+  @Override public void closeUnit () {
+    writeOp(CLOSE_UNIT);
+  }
+  @Override public void closeSession () {
+    writeOp(CLOSE_SESSION);
+    try {
+      _out.flush();
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  /** Flushes any buffered events to the underlying stream. */
+  public void flush () {
+    try {
+      _out.flush();
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  private void writeOp (int op) {
+    try {
+      _out.writeByte(op);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  private void writeUse (int op, Ref.Global target, Kind kind, int offset, int length) {
+    try {
+      _out.writeByte(op);
+      writeRef(target);
+      writeEnum(kind);
+      writeVarInt(offset);
+      writeVarInt(length);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  // a ref is written as its index in the ref table plus one, or as zero followed by its parent ref
+  // and id, which adds it to the table; the root ref is always index zero
+  private void writeRef (Ref.Global ref) throws IOException {
+    Integer index = _refs.get(ref);
+    if (index != null) writeVarInt(index+1);
+    else {
+      writeVarInt(0);
+      writeRef(ref.parent);
+      writeString(ref.id);
+      _refs.put(ref, _refs.size());
+    }
+  }
+
+  // likewise a string is written as its index in the string table plus one, or as zero followed
+  // by its text, which adds it to the table
+  private void writeString (String value) throws IOException {
+    Integer index = _strings.get(value);
+    if (index != null) writeVarInt(index+1);
+    else {
+      writeVarInt(0);
+      writeText(value);
+      _strings.put(value, _strings.size());
+    }
+  }
+
+  // strings that are unlikely to repeat (sigs) skip the table
+  private void writeText (String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(bytes.length);
+    _out.write(bytes);
+  }
+
+  private void writeEnum (Kind kind) throws IOException {
+    writeVarInt(kind == null ? 0 : kind.code);
+  }
+  private void writeEnum (Flavor flavor) throws IOException {
+    writeVarInt(flavor == null ? 0 : flavor.code);
+  }
+  private void writeEnum (Access access) throws IOException {
+    writeVarInt(access == null ? 0 : access.code);
+  }
+  private void writeEnum (Relation relation) throws IOException {
+    writeVarInt(relation == null ? 0 : relation.code);
+  }
+
+  private void writeVarInt (int value) throws IOException {
+    int zz = (value << 1) ^ (value >> 31);
+    while ((zz & ~0x7F) != 0) {
+      _out.writeByte((zz & 0x7F) | 0x80);
+      zz >>>= 7;
+    }
+    _out.writeByte(zz);
+  }
+
+  private final DataOutputStream _out;
+  private final Map<Ref.Global,Integer> _refs = new HashMap<>();
+  private final Map<String,Integer> _strings = new HashMap<>();
+  { _refs.put(Ref.Global.ROOT, 0); }
+
+  static final int MAGIC = 0x43445857; // CDXW
+  static final int VERSION = 2; // 2 added EMIT_HASHES
+
+  static final int OPEN_SESSION  = 1;
+  static final int OPEN_UNIT     = 2;
+  static final int OPEN_DEF      = 3;
+  static final int EMIT_SIG      = 4;
+  static final int EMIT_SIG_USE  = 5;
+  static final int EMIT_DOC      = 6;
+  static final int EMIT_DOC_USE  = 7;
+  static final int EMIT_RELATION = 8;
+  static final int EMIT_USE      = 9;
+  static final int CLOSE_DEF     = 10;
+  static final int CLOSE_UNIT    = 11;
+  static final int CLOSE_SESSION = 12;
+  static final int EMIT_HASHES   = 13;
+}
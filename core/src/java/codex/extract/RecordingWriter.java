@@ -0,0 +1,95 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A {@code Writer} that records the units emitted to it in memory, so that they can later be
+ * replayed into another writer via {@link #replay}. Session calls are not recorded, the writer into
+ * which this writer is replayed is expected to be in an open session.
+ *
+ * <p>This allows extraction to run on a thread other than the one which owns the target writer;
+ * {@code Writer} implementations are not generally thread-safe.</p>
+ */
+public class RecordingWriter extends Writer {
+
+  /** Replays all recorded events into {@code writer}, in the order they were recorded. */
+  public void replay (Writer writer) {
+    for (Consumer<Writer> op : _ops) op.accept(writer);
+  }
+
+  /** Returns the number of units recorded by this writer. */
+  public int unitCount () {
+    return _units;
+  }
+
+  @Override public void openSession () {
+    // nada
+  }
+
+  @Override public void openUnit (Source source) {
+    _units += 1;
+    _ops.add(w -> w.openUnit(source));
+  }
+
+  @Override public void emitHashes (long contentHash, long apiHash) {
+    _ops.add(w -> w.emitHashes(contentHash, apiHash));
+  }
+
+  @Override public void openDef (Ref.Global id, String name, Kind kind, Flavor flavor,
+                                 boolean exported, Access access,
+                                 int offset, int bodyStart, int bodyEnd) {
+    _ops.add(w -> w.openDef(id, name, kind, flavor, exported, access, offset, bodyStart, bodyEnd));
+  }
+
+  @Override public void emitSig (String text) {
+    _ops.add(w -> w.emitSig(text));
+  }
+  @Override public void emitSigUse (Ref.Global target, Kind kind, int offset, int length) {
+    _ops.add(w -> w.emitSigUse(target, kind, offset, length));
+  }
+
+  @Override public void emitDoc (int offset, int length) {
+    _ops.add(w -> w.emitDoc(offset, length));
+  }
+  @Override public void emitDocUse (Ref.Global target, Kind kind, int offset, int length) {
+    _ops.add(w -> w.emitDocUse(target, kind, offset, length));
+  }
+
+  @Override public void emitRelation (Relation relation, Ref.Global target) {
+    _ops.add(w -> w.emitRelation(relation, target));
+  }
+  @Override public void emitUse (Ref.Global target, Kind kind, int offset, int length) {
+    _ops.add(w -> w.emitUse(target, kind, offset, length));
+  }
+
+  // some writers (i.e. DebugWriter) make use of the name, so we preserve these variants
+  @Override public void emitSigUse (Ref.Global target, Kind kind, int offset, String name) {
+    _ops.add(w -> w.emitSigUse(target, kind, offset, name));
+  }
+  @Override public void emitDocUse (Ref.Global target, Kind kind, int offset, String name) {
+    _ops.add(w -> w.emitDocUse(target, kind, offset, name));
+  }
+  @Override public void emitUse (Ref.Global target, Kind kind, int offset, String name) {
+    _ops.add(w -> w.emitUse(target, kind, offset, name));
+  }
+
+  @Override public void closeDef () {
+    _ops.add(Writer::closeDef);
+  }
+  @Override public void closeUnit () {
+    _ops.add(Writer::closeUnit);
+  }
+  @Override public void closeSession () {
+    // nada
+  }
+
+  private final List<Consumer<Writer>> _ops = new ArrayList<>();
+  private int _units;
+}
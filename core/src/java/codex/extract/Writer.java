@@ -13,6 +13,7 @@ import codex.model.*;
  * <pre>{@code
  * [openSession
  *   [openUnit
+ *     emitHashes?
  *     [openDef
  *       emitSig?
  *         emitSigUse*
@@ -35,6 +36,10 @@ public abstract class Writer {
   public abstract void openSession ();
   public abstract void openUnit (Source source);
 
+  /** Reports hashes of the contents and public API of the current unit, which incremental
+    * indexers use to skip units that haven't changed. Either may be 0L if unknown. */
+  public void emitHashes (long contentHash, long apiHash) {}
+
   public abstract void openDef (Ref.Global id, String name, Kind kind, Flavor flavor,
                                 boolean exported, Access access,
                                 int offset, int bodyStart, int bodyEnd);
@@ -13,11 +13,26 @@ package codex.model;
 public enum Access {
 
   // note: the order of these enum elements dictates the order in which members will be grouped when
-  // displaying defs, so insert new access levels in a sensible position
+  // displaying defs, so insert new access levels in a sensible position; their codes are persisted,
+  // so give new access levels a new code, and never change an existing code
 
-  PUBLIC,            // most languages
-  PROTECTED,         // most Java-like languages
-  PACKAGE_PRIVATE,   // Java's default access, Scala's private[pkg] access
-  PRIVATE,           // most Java-like languages, Scala's private[this] access
-  LOCAL;             // for elements with no access level, i.e. local variables
+  PUBLIC(1),          // most languages
+  PROTECTED(2),       // most Java-like languages
+  PACKAGE_PRIVATE(3), // Java's default access, Scala's private[pkg] access
+  PRIVATE(4),         // most Java-like languages, Scala's private[this] access
+  LOCAL(5);           // for elements with no access level, i.e. local variables
+
+  /** An integer code, used to represent this access level in persistent stores. */
+  public final int code;
+
+  /** Returns the access level with code {@code code}.
+    * @throws IllegalArgumentException if no access level has that code. */
+  public static Access fromCode (int code) {
+    for (Access access : values()) if (access.code == code) return access;
+    throw new IllegalArgumentException("Unknown access level code: " + code);
+  }
+
+  private Access (int code) {
+    this.code = code;
+  }
 }
@@ -17,51 +17,65 @@ public enum Flavor {
   // module flavors
 
   /** A package (Java, Scala). */
-  PACKAGE,
+  PACKAGE(1),
   /** A namespace (C#, C++). */
-  NAMESPACE,
+  NAMESPACE(2),
 
   // type flavors
 
   /** A type parameter. */
-  TYPE_PARAM,
+  TYPE_PARAM(3),
   /** A singleton object (Scala). */
-  OBJECT,
+  OBJECT(4),
   /** An annotation type (Java, etc.). */
-  ANNOTATION,
+  ANNOTATION(5),
   /** An enumeration (Java, etc.). */
-  ENUM,
+  ENUM(6),
   /** An interface (Java, etc.). */
-  INTERFACE,
+  INTERFACE(7),
   /** An abstract class (Java, etc.). */
-  ABSTRACT_CLASS,
+  ABSTRACT_CLASS(8),
   /** A plain old class (Java, etc.). */
-  CLASS,
+  CLASS(9),
   /** An abstract singleton object (Scala). */
-  ABSTRACT_OBJECT,
+  ABSTRACT_OBJECT(10),
 
   // func flavors
 
   /** An object constructor (Java, etc.). */
-  CONSTRUCTOR,
+  CONSTRUCTOR(11),
   /** An abstract (or interface) method (Java, etc.). */
-  ABSTRACT_METHOD,
+  ABSTRACT_METHOD(12),
   /** A normal class method (Java, etc.). */
-  METHOD,
+  METHOD(13),
   /** A static method (Java, etc.). */
-  STATIC_METHOD,
+  STATIC_METHOD(14),
 
   // term flavors
 
   /** An object field (Java, etc.). */
-  FIELD,
+  FIELD(15),
   /** A class field (Java, etc.). */
-  STATIC_FIELD,
+  STATIC_FIELD(16),
   /** A function parameter (Java, etc.). */
-  PARAM,
+  PARAM(17),
   /** A local variable (Java, etc.). */
-  LOCAL,
+  LOCAL(18),
 
   /** A flavorless def. */
-  NONE;
+  NONE(19);
+
+  /** An integer code, used to represent this flavor in persistent stores. */
+  public final int code;
+
+  /** Returns the flavor with code {@code code}.
+    * @throws IllegalArgumentException if no flavor has that code. */
+  public static Flavor fromCode (int code) {
+    for (Flavor flavor : values()) if (flavor.code == code) return flavor;
+    throw new IllegalArgumentException("Unknown flavor code: " + code);
+  }
+
+  private Flavor (int code) {
+    this.code = code;
+  }
 }
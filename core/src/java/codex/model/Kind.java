@@ -11,20 +11,34 @@ public enum Kind {
 
   /** A namespaced collection of types, functions and terms. Examples: a Java/C#/Scala package, a
    * Scala object, a C++ namespace. */
-  MODULE,
+  MODULE(1),
 
   /** A named type, with type, function and term members. Examples: a Java/C#/Scala/C++ class or
    * interface, a C struct. */
-  TYPE,
+  TYPE(2),
 
   /** A function, procedure or method. */
-  FUNC,
+  FUNC(3),
 
   /** A named value. Examples: a Java/C#/C++ class field, a C struct member, a function parameter,
    * a local variable. */
-  VALUE,
+  VALUE(4),
 
   /** A special def used to cope with the fact that languages and source code don't precisely
     * line up with our "code is a nested tree of defs" model. */
-  SYNTHETIC;
+  SYNTHETIC(5);
+
+  /** An integer code, used to represent this kind in persistent stores. */
+  public final int code;
+
+  /** Returns the kind with code {@code code}.
+    * @throws IllegalArgumentException if no kind has that code. */
+  public static Kind fromCode (int code) {
+    for (Kind kind : values()) if (kind.code == code) return kind;
+    throw new IllegalArgumentException("Unknown kind code: " + code);
+  }
+
+  private Kind (int code) {
+    this.code = code;
+  }
 }
@@ -6,8 +6,11 @@ package codex.model;
 
 import codex.store.ProjectStore;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -36,15 +39,28 @@ public class OO {
       // we're a bit cheeky assuming relations returns a mutable set, but oh well
       Set<Ref> supers = type.relations(Relation.INHERITS);
       supers.addAll(type.relations(Relation.SUPERTYPE));
+      // resolve local supertypes with a batch lookup per project, rather than one at a time
+      Map<ProjectStore,List<Long>> locals = new HashMap<>();
       for (Ref styp : supers) {
-        Ref.Global tref = toGlobalRef(styp);
-        if (!seen.contains(tref)) {
-          seen.add(tref);
+        if (styp instanceof Ref.Local) {
+          Ref.Local loc = (Ref.Local)styp;
+          locals.computeIfAbsent(loc.project, p -> new ArrayList<>()).add(loc.defId);
+        } else if (seen.add((Ref.Global)styp)) {
           Ref.resolve(stores, styp).ifPresent(sdef -> {
             if (!lang.isRoot(sdef)) types.add(sdef);
           });
         }
       }
+      for (Map.Entry<ProjectStore,List<Long>> entry : locals.entrySet()) {
+        ProjectStore project = entry.getKey();
+        long[] ids = toIds(entry.getValue());
+        List<Ref.Global> refs = project.refs(ids);
+        int unseen = 0;
+        for (int jj = 0; jj < ids.length; jj++) if (seen.add(refs.get(jj))) ids[unseen++] = ids[jj];
+        for (Def sdef : project.defs(Arrays.copyOf(ids, unseen))) {
+          if (!lang.isRoot(sdef)) types.add(sdef);
+        }
+      }
     }
     return types;
   }
@@ -74,7 +90,13 @@ public class OO {
     if (ref instanceof Ref.Global) return (Ref.Global)ref;
     else {
       Ref.Local loc = (Ref.Local)ref;
-      return loc.project.def(loc.defId).globalRef();
+      return loc.project.ref(loc.defId);
     }
   }
+
+  private static long[] toIds (List<Long> ids) {
+    long[] array = new long[ids.size()];
+    for (int ii = 0; ii < array.length; ii++) array[ii] = ids.get(ii);
+    return array;
+  }
 }
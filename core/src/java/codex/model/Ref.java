@@ -4,8 +4,14 @@
 
 package codex.model;
 
+import codex.store.FanOut;
 import codex.store.ProjectStore;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Uniquely identifies a def. This comes in two flavors: a local ref, used within a project to
@@ -45,11 +51,14 @@ public abstract class Ref {
     }
   }
 
-  /** Represents a def in any project. */
+  /**
+   * Represents a def in any project. Global refs are interned: there is only ever one instance of
+   * a given ref (as long as it's in use), so they can be compared by reference.
+   */
   public static final class Global extends Ref {
 
     /** The root global name. */
-    public static final Global ROOT = new Global(null, null);
+    public static final Global ROOT = new Global(null, null, 0);
 
     /** Parses a string generated by {@link #toString}. */
     public static Global fromString (String ref) {
@@ -64,39 +73,51 @@ public abstract class Ref {
 
     /** Returns a global id with {@code this} as its parent and {@code id} as its leaf. */
     public Global plus (String id) {
-      return new Global(this, id);
+      expunge();
+      Key key = new Key(this, id);
+      while (true) {
+        Interned ient = INTERNED.get(key);
+        Global ref = (ient == null) ? null : ient.get();
+        if (ref != null) return ref;
+        // the interned ref is missing or was collected, so try to install a new one; if we lose a
+        // race with another thread, we'll loop around and use the ref it installed
+        ref = new Global(this, id, key.hash);
+        Interned nent = new Interned(ref, key);
+        if (ient == null ? INTERNED.putIfAbsent(key, nent) == null :
+            INTERNED.replace(key, ient, nent)) return ref;
+      }
     }
 
     @Override public int hashCode () {
-      return id.hashCode() ^ (parent == ROOT ? 13 : parent.hashCode());
+      return _hash;
     }
 
     @Override public boolean equals (Object other) {
-      return (other instanceof Global) && equals((Global)other);
+      return this == other; // we're interned
     }
 
     @Override public String toString () {
-      StringBuilder sb = new StringBuilder();
-      toString(sb);
-      return sb.toString();
+      String str = _string;
+      if (str == null) {
+        StringBuilder sb = new StringBuilder();
+        toString(sb);
+        _string = str = sb.toString();
+      }
+      return str;
     }
 
     private void toString (StringBuilder sb) {
       if (parent != ROOT) {
-        parent.toString(sb);
+        sb.append(parent.toString());
         sb.append(" ");
       }
       sb.append(id);
     }
 
-    private boolean equals (Global other) {
-      // TODO: intern whole global instances and compare by reference?
-      return id == other.id && (parent == other.parent || parent.equals(other.parent));
-    }
-
-    private Global (Global parent, String id) {
+    private Global (Global parent, String id, int hash) {
       this.parent = parent;
       this.id = (id == null) ? null : id.intern();
+      _hash = hash;
     }
 
     private static Global fromString (Global parent, String rest) {
@@ -104,6 +125,54 @@ public abstract class Ref {
       if (sidx == -1) return parent.plus(rest);
       else return fromString(parent.plus(rest.substring(0, sidx)), rest.substring(sidx+1));
     }
+
+    /** Removes table entries for refs which have been garbage collected. */
+    private static void expunge () {
+      Object ref;
+      while ((ref = COLLECTED.poll()) != null) {
+        Interned ient = (Interned)ref;
+        INTERNED.remove(ient.key, ient);
+      }
+    }
+
+    /** Identifies an interned ref by its (already interned) parent and its leaf id. */
+    private static final class Key {
+      public final Global parent;
+      public final String id;
+      public final int hash;
+
+      public Key (Global parent, String id) {
+        this.parent = parent;
+        this.id = id;
+        this.hash = id.hashCode() ^ (parent == ROOT ? 13 : parent.hashCode());
+      }
+
+      @Override public int hashCode () {
+        return hash;
+      }
+
+      @Override public boolean equals (Object other) {
+        if (!(other instanceof Key)) return false;
+        Key okey = (Key)other;
+        return parent == okey.parent && id.equals(okey.id);
+      }
+    }
+
+    /** Weakly references an interned ref, so that refs no longer in use can be collected. */
+    private static final class Interned extends WeakReference<Global> {
+      public final Key key;
+
+      public Interned (Global ref, Key key) {
+        super(ref, COLLECTED);
+        this.key = key;
+      }
+    }
+
+    private final int _hash;
+    private volatile String _string;
+
+    private static final ConcurrentHashMap<Key,Interned> INTERNED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Global> COLLECTED = new ReferenceQueue<>();
   }
 
   /** Returns a local id for the specified def in the specified project. */
@@ -119,7 +188,8 @@ public abstract class Ref {
   }
 
   /**
-   * Resolves the {@link Def} for {@code ref} in {@code stores}.
+   * Resolves the {@link Def} for {@code ref} in {@code stores}. The stores are searched
+   * concurrently, and the def from the earliest store that defines {@code ref} is returned.
    */
   public static Optional<Def> resolve (Iterable<ProjectStore> stores, Ref ref) {
     if (ref instanceof Local) {
@@ -128,11 +198,10 @@ public abstract class Ref {
 
     } else {
       Global gref = (Global)ref;
-      for (ProjectStore store : stores) {
-        Optional<Def> odef = store.def(gref);
-        if (odef.isPresent()) return odef;
-      }
-      return Optional.empty();
+      // most stores don't define most names, so only ask the stores that may
+      List<ProjectStore> defStores = new ArrayList<>();
+      for (ProjectStore store : stores) if (store.mayDefine(gref)) defStores.add(store);
+      return FanOut.first(defStores, store -> store.def(gref));
     }
   }
 
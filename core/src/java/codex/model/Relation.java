@@ -23,6 +23,13 @@ public enum Relation {
   /** An integer code, used to represent this relation in persistent stores. */
   public final int code;
 
+  /** Returns the relation with code {@code code}.
+    * @throws IllegalArgumentException if no relation has that code. */
+  public static Relation fromCode (int code) {
+    for (Relation rel : values()) if (rel.code == code) return rel;
+    throw new IllegalArgumentException("Unknown relation code: " + code);
+  }
+
   private Relation (int code) {
     this.code = code;
   }
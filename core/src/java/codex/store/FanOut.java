@@ -0,0 +1,109 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+
+/**
+ * Issues a request to many project stores concurrently. A workspace often searches dozens of stores
+ * (the project, the JDK, its library dependencies) and querying them one after another costs the
+ * sum of their latencies. Results are always combined in store order, so the first store remains
+ * the primary store and earlier stores take precedence over later ones.
+ */
+public final class FanOut {
+
+  /** A request to issue to a single store. */
+  public interface Task<R> {
+    /** Issues the request to {@code store}, which is at {@code index} in the store list. */
+    R apply (ProjectStore store, int index);
+  }
+
+  /**
+   * Applies {@code task} to every store in {@code stores} concurrently and returns the results in
+   * store order. The first store is queried on the calling thread.
+   */
+  public static <R> List<R> map (Iterable<ProjectStore> stores, Task<R> task) {
+    List<ProjectStore> slist = toList(stores);
+    List<R> results = new ArrayList<>(slist.size());
+    if (slist.size() == 1) results.add(task.apply(slist.get(0), 0));
+    else if (slist.size() > 1) {
+      List<CompletableFuture<R>> futures = submit(slist, task);
+      results.add(task.apply(slist.get(0), 0));
+      for (CompletableFuture<R> future : futures) results.add(join(future));
+    }
+    return results;
+  }
+
+  /**
+   * Applies {@code task} to every store in {@code stores} concurrently and returns the first
+   * present result in store order. As soon as a store answers and all stores before it have
+   * answered empty, the result is returned and requests to later stores which have not yet
+   * started are cancelled.
+   */
+  public static <R> Optional<R> first (Iterable<ProjectStore> stores,
+                                       Function<ProjectStore,Optional<R>> task) {
+    List<ProjectStore> slist = toList(stores);
+    if (slist.isEmpty()) return Optional.empty();
+    if (slist.size() == 1) return task.apply(slist.get(0));
+
+    List<CompletableFuture<Optional<R>>> futures = submit(slist, (store, ii) -> task.apply(store));
+    try {
+      Optional<R> result = task.apply(slist.get(0));
+      for (int ii = 0, ll = futures.size(); !result.isPresent() && ii < ll; ii++) {
+        result = join(futures.get(ii));
+      }
+      return result;
+    } finally {
+      for (CompletableFuture<Optional<R>> future : futures) future.cancel(false);
+    }
+  }
+
+  // submits task for all but the first store, which the caller handles
+  private static <R> List<CompletableFuture<R>> submit (List<ProjectStore> stores, Task<R> task) {
+    List<CompletableFuture<R>> futures = new ArrayList<>(stores.size()-1);
+    for (int ii = 1, ll = stores.size(); ii < ll; ii++) {
+      ProjectStore store = stores.get(ii);
+      int index = ii;
+      futures.add(CompletableFuture.supplyAsync(() -> task.apply(store, index), POOL));
+    }
+    return futures;
+  }
+
+  private static <R> R join (CompletableFuture<R> future) {
+    try {
+      return future.join();
+    } catch (CompletionException ce) {
+      Throwable cause = ce.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw ce;
+    }
+  }
+
+  private static List<ProjectStore> toList (Iterable<ProjectStore> stores) {
+    if (stores instanceof List) return (List<ProjectStore>)stores;
+    List<ProjectStore> slist = new ArrayList<>();
+    for (ProjectStore store : stores) slist.add(store);
+    return slist;
+  }
+
+  // store requests mostly wait on memory mapped pages or the disk, not the CPU, so we use our own
+  // pool rather than tying up the common pool; its threads are daemons, like all pool threads
+  private static final ForkJoinPool POOL = new ForkJoinPool(
+    Math.max(4, Runtime.getRuntime().availableProcessors()), pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("FanOut-" + thread.getPoolIndex());
+      return thread;
+    }, null, false);
+
+  private FanOut () {} // static methods only
+}
@@ -0,0 +1,214 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+/**
+ * Commits the units written by a store's writer on a background thread, rather than after every
+ * so many units on the writer's thread. Units are grouped into a commit once enough of them are
+ * pending, once the engine's estimate of the bytes they'll write is large enough, or once the
+ * oldest of them has waited long enough. A commit is begun while the writer is between units (see
+ * {@link #lock}), so that it contains only whole units, but is then written while the writer goes
+ * on to the next units, to the extent that the engine allows (see {@link
+ * StorageEngine#beginCommit}).
+ *
+ * <p>{@link #sync} is a durability barrier: it waits until every unit stored before it was called
+ * has been committed. The committer also tracks how long commits take and how much they write.</p>
+ */
+public final class GroupCommitter {
+
+  /** Called by the committer (while holding {@link #lock}) to begin a commit. */
+  public interface Target {
+    StorageEngine.Commit beginCommit ();
+  }
+
+  /** The writer holds this lock while it stores a unit, and the committer holds it while it
+    * begins a commit. */
+  public final Object lock = new Object();
+
+  public GroupCommitter (String name, StorageEngine engine, Target target) {
+    _name = name;
+    _engine = engine;
+    _target = target;
+  }
+
+  /**
+   * Configures when units are committed: once {@code maxUnits} units are pending, once the engine
+   * estimates that the pending units will write {@code maxBytes} bytes, or once the oldest pending
+   * unit was stored {@code maxDelayMillis} ago, whichever comes first.
+   */
+  public synchronized void setPolicy (int maxUnits, long maxBytes, long maxDelayMillis) {
+    _maxUnits = maxUnits;
+    _maxBytes = maxBytes;
+    _maxDelayMillis = maxDelayMillis;
+    notifyAll();
+  }
+
+  /** Waits until all units stored before this call have been committed. Returns immediately if
+    * the committer is not running, in which case the writer commits when its session closes. */
+  public void sync () throws InterruptedException {
+    synchronized (this) {
+      long target = _stored;
+      _syncs += 1;
+      notifyAll();
+      try {
+        while (_thread != null && _failure == null && _durable < target) wait();
+      } finally {
+        _syncs -= 1;
+      }
+    }
+    checkFailure();
+  }
+
+  /** The number of commits made by this committer. */
+  public synchronized int commits () { return _commits; }
+  /** The total time (in millis) spent beginning and writing commits. */
+  public synchronized long commitMillis () { return _commitMillis; }
+  /** The time (in millis) spent beginning and writing the last commit. */
+  public synchronized long lastCommitMillis () { return _lastCommitMillis; }
+  /** The total bytes written by commits, as reported by the engine. */
+  public synchronized long commitBytes () { return _commitBytes; }
+  /** The bytes written by the last commit, or -1 if the engine doesn't report them. */
+  public synchronized long lastCommitBytes () { return _lastCommitBytes; }
+
+  @Override public synchronized String toString () {
+    return String.format("%s commits: %d in %dms, %d bytes (last: %dms, %d bytes)", _name,
+                         _commits, _commitMillis, _commitBytes, _lastCommitMillis,
+                         _lastCommitBytes);
+  }
+
+  /** Starts the committer thread. */
+  void start () {
+    Thread thread = new Thread(this::run, "GroupCommitter(" + _name + ")");
+    thread.setDaemon(true);
+    synchronized (this) {
+      if (_thread != null) throw new IllegalStateException("Committer already running.");
+      _failure = null;
+      _stopping = false;
+      _stored = _captured = _durable = 0;
+      _thread = thread;
+    }
+    thread.start();
+  }
+
+  /** Commits any pending units and stops the committer thread. */
+  void stop () {
+    Thread thread;
+    synchronized (this) {
+      thread = _thread;
+      if (thread == null) return;
+      _stopping = true;
+      notifyAll();
+    }
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    synchronized (this) {
+      _thread = null;
+      notifyAll();
+    }
+    checkFailure();
+  }
+
+  /** Notes that the writer stored a unit. Must be called while holding {@link #lock}. Rethrows the
+    * failure of a background commit, if one failed. */
+  void unitStored () {
+    synchronized (this) {
+      if (_stored == _captured) _firstPendingAt = System.currentTimeMillis();
+      _stored += 1;
+      // wake the committer to start its delay timer, or if we've reached the unit threshold
+      long pending = _stored - _captured;
+      if (pending == 1 || pending >= _maxUnits) notifyAll();
+    }
+    checkFailure();
+  }
+
+  private void run () {
+    try {
+      while (awaitPending()) {
+        long started = System.currentTimeMillis(), captured;
+        StorageEngine.Commit commit;
+        synchronized (lock) {
+          commit = _target.beginCommit();
+          synchronized (this) {
+            _captured = captured = _stored;
+          }
+        }
+        long bytes = commit.write();
+        long elapsed = System.currentTimeMillis() - started;
+        synchronized (this) {
+          _durable = captured;
+          _commits += 1;
+          _commitMillis += elapsed;
+          _lastCommitMillis = elapsed;
+          _lastCommitBytes = bytes;
+          if (bytes > 0) _commitBytes += bytes;
+          notifyAll();
+        }
+      }
+    } catch (Throwable t) {
+      synchronized (this) {
+        _failure = new RuntimeException("Background commit failed: " + _name, t);
+        notifyAll();
+      }
+    }
+  }
+
+  // waits until there are units to commit and one of our thresholds is reached (or we're asked
+  // to sync or stop), returns false if we're stopping and there's nothing left to commit
+  private synchronized boolean awaitPending () throws InterruptedException {
+    while (true) {
+      long pending = _stored - _captured;
+      if (pending > 0) {
+        if (_stopping || _syncs > 0 || pending >= _maxUnits) return true;
+        long wait = _firstPendingAt + _maxDelayMillis - System.currentTimeMillis();
+        if (wait <= 0) return true;
+        if (_maxBytes > 0) {
+          long bytes = _engine.pendingBytes();
+          if (bytes >= _maxBytes) return true;
+          // poll the engine's estimate while we wait out the delay
+          if (bytes >= 0) wait = Math.min(wait, BYTES_POLL_MILLIS);
+        }
+        wait(wait);
+      }
+      else if (_stopping) return false;
+      else wait();
+    }
+  }
+
+  private void checkFailure () {
+    RuntimeException failure;
+    synchronized (this) {
+      failure = _failure;
+    }
+    if (failure != null) throw failure;
+  }
+
+  private final String _name;
+  private final StorageEngine _engine;
+  private final Target _target;
+
+  private int _maxUnits = 100;
+  private long _maxBytes = 32 << 20;
+  private long _maxDelayMillis = 2000;
+
+  private Thread _thread;
+  private boolean _stopping;
+  private int _syncs;
+  private RuntimeException _failure;
+  // the number of units stored, included in a begun commit, and durably committed
+  private long _stored, _captured, _durable;
+  private long _firstPendingAt;
+
+  private int _commits;
+  private long _commitMillis, _lastCommitMillis, _commitBytes, _lastCommitBytes = -1;
+
+  private static final long BYTES_POLL_MILLIS = 100;
+}
@@ -0,0 +1,622 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.extract.BatchWriter;
+import codex.extract.Writer;
+import codex.model.*;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A project store that lives entirely on the heap, for ephemeral indices: tests, short-lived
+ * analyses and the unsaved contents of editor buffers. Unlike a memory backed {@link MapDBStore},
+ * nothing is serialized into B-tree nodes; defs are stored in columns (arrays of primitives indexed
+ * by def id) and names are indexed by hash and tree maps.
+ *
+ * <p>Every global name known to the store, whether it is defined by the store or is merely the
+ * target of a use or relation, is assigned a name id. A def's id is the id of its name, so def ids
+ * are stable when a source is reindexed, and names that the store doesn't define have no unit.</p>
+ *
+ * <p>The writer stores each unit while holding a write lock, so readers never see a partially
+ * stored unit, but unlike {@link MapDBStore} they see each unit of a session as it is stored.</p>
+ */
+public class HeapStore extends ProjectStore {
+
+  /** Creates an empty heap store. */
+  public HeapStore (String name) {
+    super(name);
+    reset();
+  }
+
+  /** Returns the number of defs in this store. */
+  public int defCount () {
+    return reading(() -> _defCount);
+  }
+
+  @Override public Writer writer () {
+    return _writer;
+  }
+
+  @Override public Iterable<Def> topLevelDefs () {
+    return reading(() -> {
+      List<Def> defs = new ArrayList<>();
+      for (int id = 0; id < _nameCount; id++) if ((_defFlags[id] & TOP) != 0) defs.add(toDef(id));
+      return defs;
+    });
+  }
+
+  @Override public long lastIndexed (Source source) {
+    return reading(() -> {
+      Integer unit = _unitIds.get(source.toString());
+      return (unit == null) ? 0L : _unitIndexed[unit];
+    });
+  }
+
+  @Override public Iterable<Def> sourceDefs (Source source) {
+    return reading(() -> {
+      Integer unit = _unitIds.get(source.toString());
+      if (unit == null) throw new IllegalArgumentException("Unknown source " + source);
+      return toDefs(_unitDefs[unit]);
+    });
+  }
+
+  @Override public boolean mayDefine (Ref.Global ref) {
+    return reading(() -> definedId(ref) >= 0);
+  }
+
+  @Override public Optional<Def> def (Ref.Global ref) {
+    return reading(() -> {
+      int id = definedId(ref);
+      return (id < 0) ? Optional.<Def>empty() : Optional.of(toDef(id));
+    });
+  }
+
+  @Override public Def def (Long defId) {
+    return reading(() -> toDef(defIdx(defId)));
+  }
+
+  @Override public Ref.Global ref (Long defId) {
+    return reading(() -> _names[defIdx(defId)]);
+  }
+
+  @Override public Optional<Sig> sig (Long defId) {
+    return reading(() -> {
+      int id = defIdx(defId);
+      return (_sigText[id] == null) ? Optional.<Sig>empty() :
+        Optional.of(new Sig(_sigText[id], toUses(_sigUses[id])));
+    });
+  }
+
+  @Override public Optional<Doc> doc (Long defId) {
+    return reading(() -> {
+      int id = defIdx(defId);
+      return ((_defFlags[id] & DOC) == 0) ? Optional.<Doc>empty() :
+        Optional.of(new Doc(_docOffset[id], _docLength[id], toUses(_docUses[id])));
+    });
+  }
+
+  @Override public Source source (Long defId) {
+    return reading(() -> Source.fromString(_unitSource[_defUnit[defIdx(defId)]]));
+  }
+
+  @Override public Iterable<Def> defsIn (Long defId) {
+    return reading(() -> toDefs(_defMems[defIdx(defId)]));
+  }
+
+  @Override public Iterable<Use> usesIn (Long defId) {
+    return reading(() -> toUses(_defUses[defIdx(defId)]));
+  }
+
+  @Override public Set<Ref> relationsFrom (Relation rel, Long defId) {
+    return reading(() -> {
+      Set<Ref> refs = new HashSet<>();
+      long[] rels = _relsFrom[defIdx(defId)];
+      if (rels != null) for (long r : rels) {
+        if ((int)(r >>> 32) == rel.code) refs.add(targetRef((int)r));
+      }
+      return refs;
+    });
+  }
+
+  @Override public Set<Def> relationsTo (Relation rel, Ref ref) {
+    return reading(() -> {
+      Set<Def> defs = new HashSet<>();
+      int target = targetId(ref);
+      IntList rels = (target < 0) ? null : _relsTo[target];
+      // (relation code, def id) records
+      if (rels != null) for (int ii = 0, ll = rels.size(); ii < ll; ii += 2) {
+        if (rels.get(ii) == rel.code) defs.add(toDef(rels.get(ii+1)));
+      }
+      return defs;
+    });
+  }
+
+  @Override public Map<Source,int[]> usesOf (Def def) {
+    return reading(() -> {
+      boolean isLocal = (def.project == this);
+      int target = isLocal ? defIdx(def.id) : targetId(def.globalRef());
+      Map<Source,int[]> uses = new HashMap<>();
+      if (target < 0) return uses;
+
+      // group the offsets of the (def id, offset) postings by the unit of the using def
+      Map<Integer,IntList> offsets = new HashMap<>();
+      // we always report the defining unit of a local def, even if it contains no uses
+      if (isLocal) offsets.put(_defUnit[target], new IntList());
+      IntList posts = _posts[target];
+      if (posts != null) for (int ii = 0, ll = posts.size(); ii < ll; ii += 2) {
+        int unit = _defUnit[posts.get(ii)];
+        offsets.computeIfAbsent(unit, u -> new IntList()).add(posts.get(ii+1));
+      }
+      for (Map.Entry<Integer,IntList> entry : offsets.entrySet()) {
+        int[] offs = entry.getValue().toArray();
+        Arrays.sort(offs);
+        uses.put(Source.fromString(_unitSource[entry.getKey()]), offs);
+      }
+      return uses;
+    });
+  }
+
+  @Override public void find (Query query, boolean expOnly, List<Def> into) {
+    reading(() -> {
+      if (!query.mode.ranked()) {
+        if (query.prefix) {
+          for (IntList ids : withPrefix(_byName, query.name).values()) {
+            find(ids, query, expOnly, into);
+          }
+        } else {
+          IntList ids = _byName.get(query.name);
+          if (ids != null) find(ids, query, expOnly, into);
+        }
+        return null;
+      }
+
+      // gather candidates from the camel and trigram indices (as MapDBStore does), then score
+      // their names to weed out the ones that don't actually match
+      IntList cands = new IntList();
+      StringBuilder initials = new StringBuilder();
+      for (String hump : query.humps) initials.append(hump.charAt(0));
+      if (initials.length() > 0) {
+        for (IntList ids : withPrefix(_byInitials, initials.toString()).values()) cands.addAll(ids);
+      }
+      if (query.mode == Query.Mode.FUZZY) {
+        addTrigramCandidates(query.name, cands);
+        for (IntList ids : withPrefix(_byName, query.name).values()) cands.addAll(ids);
+      }
+      for (int id : cands.sortedDistinct()) {
+        if (matches(id, query, expOnly) && query.score(_defName[id], () -> outerName(id)) !=
+            NameMatcher.NO_MATCH) {
+          into.add(toDef(id));
+        }
+      }
+      return null;
+    });
+  }
+
+  private void find (IntList ids, Query query, boolean expOnly, List<Def> into) {
+    for (int ii = 0, ll = ids.size(); ii < ll; ii++) {
+      if (matches(ids.get(ii), query, expOnly)) into.add(toDef(ids.get(ii)));
+    }
+  }
+
+  @Override public String idToString (Long id) {
+    return String.valueOf(id);
+  }
+
+  @Override public void clear () {
+    _lock.writeLock().lock();
+    try {
+      reset();
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  @Override public void close () {
+    clear(); // release our memory
+  }
+
+  private final Writer _writer = new BatchWriter() {
+    @Override public void openSession () {} // nothing to set up or commit
+    @Override public void closeSession () {}
+
+    @Override protected void storeUnit (Source source, DefInfo topDef) {
+      _lock.writeLock().lock();
+      try {
+        HeapStore.this.storeUnit(source, topDef);
+      } finally {
+        _lock.writeLock().unlock();
+      }
+    }
+  };
+
+  private void storeUnit (Source source, BatchWriter.DefInfo topDef) {
+    long indexed = System.currentTimeMillis(); // note the time
+    String path = source.toString();
+    Integer unit = _unitIds.get(path);
+    if (unit == null) _unitIds.put(path, unit = addUnit(path));
+    int unitId = unit;
+
+    // first assign ids to all the defs and store the basic def data, then store the rest of their
+    // data, now that the targets of uses defined in this unit are known to be defs
+    int[] oldDefs = _unitDefs[unitId];
+    IntList newDefs = new IntList();
+    if (topDef.defs != null) {
+      for (BatchWriter.DefInfo inf : topDef.defs) storeDef(inf, unitId, oldDefs, newDefs);
+      for (BatchWriter.DefInfo inf : topDef.defs) storeData(inf);
+    }
+
+    // remove the defs that this unit no longer defines
+    int[] defs = newDefs.sortedDistinct();
+    for (int id : oldDefs) if (Arrays.binarySearch(defs, id) < 0) removeDef(id, unitId);
+    _unitDefs[unitId] = defs;
+    _unitIndexed[unitId] = indexed;
+  }
+
+  private void storeDef (BatchWriter.DefInfo inf, int unitId, int[] oldDefs, IntList newDefs) {
+    int id = nameId(inf.id);
+    inf.defId = Long.valueOf(id);
+    newDefs.add(id);
+    // a module may be defined by many units, it stays with the first
+    if (_defUnit[id] == 0) _defCount += 1;
+    if (_defUnit[id] == 0 || inf.kind != Kind.MODULE) _defUnit[id] = unitId;
+    if (!inf.name.equals(_defName[id])) {
+      if (_defName[id] != null) unindexName(_defName[id], id);
+      indexName(inf.name, id);
+      _defName[id] = inf.name;
+    }
+    _defOuter[id] = (inf.outer.defId == null) ? -1 : inf.outer.defId.intValue();
+    _defKind[id] = (byte)inf.kind.ordinal();
+    _defFlavor[id] = (byte)inf.flavor.ordinal();
+    _defAccess[id] = (byte)inf.access.ordinal();
+    _defFlags[id] = (byte)((_defFlags[id] & DOC) | (inf.exported ? EXPORTED : 0) |
+                           (_defOuter[id] < 0 ? TOP : 0));
+    _defOffset[id] = inf.offset;
+    _defBodyStart[id] = inf.bodyStart;
+    _defBodyEnd[id] = inf.bodyEnd;
+
+    IntList mems = new IntList();
+    if (inf.defs != null) for (BatchWriter.DefInfo mem : inf.defs) {
+      storeDef(mem, unitId, oldDefs, newDefs);
+      mems.add(mem.defId.intValue());
+    }
+    // a module may be defined by many units, so keep the members that other units define
+    if (inf.kind == Kind.MODULE && _defMems[id] != null) for (int mem : _defMems[id]) {
+      if (Arrays.binarySearch(oldDefs, mem) < 0) mems.add(mem);
+    }
+    _defMems[id] = (mems.size() == 0) ? null : mems.sortedDistinct();
+  }
+
+  private void storeData (BatchWriter.DefInfo inf) {
+    int id = inf.defId.intValue();
+    _sigText[id] = (inf.sig == null) ? null : inf.sig.text;
+    _sigUses[id] = (inf.sig == null) ? null : packUses(inf.sig.uses);
+    if (inf.doc == null) {
+      _defFlags[id] &= ~DOC;
+      _docUses[id] = null;
+    } else {
+      _defFlags[id] |= DOC;
+      _docOffset[id] = inf.doc.offset;
+      _docLength[id] = inf.doc.length;
+      _docUses[id] = packUses(inf.doc.uses);
+    }
+
+    int[] uses = packUses(inf.uses);
+    updatePostings(id, _defUses[id], uses);
+    _defUses[id] = uses;
+
+    long[] rels = null;
+    if (inf.relations != null) {
+      rels = new long[inf.relations.size()];
+      for (int ii = 0; ii < rels.length; ii++) {
+        BatchWriter.RelInfo rel = inf.relations.get(ii);
+        rels[ii] = ((long)rel.relation.code << 32) | nameId(rel.target);
+      }
+      Arrays.sort(rels);
+      rels = Arrays.stream(rels).distinct().toArray();
+    }
+    updateRelations(id, _relsFrom[id], rels);
+    _relsFrom[id] = rels;
+
+    if (inf.defs != null) for (BatchWriter.DefInfo mem : inf.defs) storeData(mem);
+  }
+
+  private void removeDef (int id, int unitId) {
+    // the def moved to another unit, or it's a module, which may be defined by many units, so the
+    // fact that this unit no longer defines it does not mean it is gone
+    if (_defUnit[id] != unitId || _defKind[id] == Kind.MODULE.ordinal()) return;
+    unindexName(_defName[id], id);
+    updatePostings(id, _defUses[id], null);
+    updateRelations(id, _relsFrom[id], null);
+    // the name remains, as uses elsewhere may still refer to it
+    _defUnit[id] = 0;
+    _defName[id] = null;
+    _defOuter[id] = -1;
+    _defFlags[id] = 0;
+    _defMems[id] = null;
+    _defUses[id] = null;
+    _sigText[id] = null;
+    _sigUses[id] = null;
+    _docUses[id] = null;
+    _relsFrom[id] = null;
+    _defCount -= 1;
+  }
+
+  /** Updates the (def id, offset) postings of the targets of the uses of {@code id}, which changed
+    * from {@code oldUses} to {@code newUses}, either of which may be null. */
+  private void updatePostings (int id, int[] oldUses, int[] newUses) {
+    if (Arrays.equals(oldUses, newUses)) return;
+    if (oldUses != null) for (int ii = 0; ii < oldUses.length; ii += USE_INTS) {
+      IntList posts = _posts[oldUses[ii]];
+      if (posts != null) posts.removeRecords(2, 0, id);
+    }
+    if (newUses != null) for (int ii = 0; ii < newUses.length; ii += USE_INTS) {
+      IntList posts = _posts[newUses[ii]];
+      if (posts == null) _posts[newUses[ii]] = posts = new IntList(4);
+      posts.add(id, newUses[ii+2]);
+    }
+  }
+
+  /** Updates the (relation code, def id) records of the targets of the relations of {@code id},
+    * which changed from {@code oldRels} to {@code newRels}, either of which may be null. */
+  private void updateRelations (int id, long[] oldRels, long[] newRels) {
+    if (Arrays.equals(oldRels, newRels)) return;
+    if (oldRels != null) for (long rel : oldRels) {
+      IntList rels = _relsTo[(int)rel];
+      // this removes all of the def's relations to the target, the first time it's seen
+      if (rels != null) rels.removeRecords(2, 1, id);
+    }
+    if (newRels != null) for (long rel : newRels) {
+      IntList rels = _relsTo[(int)rel];
+      if (rels == null) _relsTo[(int)rel] = rels = new IntList(4);
+      rels.add((int)(rel >>> 32), id);
+    }
+  }
+
+  private int[] packUses (List<BatchWriter.UseInfo> infos) {
+    if (infos == null || infos.isEmpty()) return null;
+    int[] uses = new int[infos.size() * USE_INTS];
+    int pos = 0;
+    for (BatchWriter.UseInfo use : infos) {
+      uses[pos++] = nameId(use.ref);
+      uses[pos++] = (use.refKind == null) ? -1 : use.refKind.ordinal();
+      uses[pos++] = use.offset;
+      uses[pos++] = use.length;
+    }
+    return uses;
+  }
+
+  private List<Use> toUses (int[] uses) {
+    if (uses == null) return Collections.emptyList();
+    List<Use> list = new ArrayList<>(uses.length / USE_INTS);
+    for (int ii = 0; ii < uses.length; ii += USE_INTS) {
+      list.add(new Use(targetRef(uses[ii]), (uses[ii+1] < 0) ? null : KINDS[uses[ii+1]],
+                       uses[ii+2], uses[ii+3]));
+    }
+    return list;
+  }
+
+  private String outerName (int id) {
+    int outer = _defOuter[id];
+    return (outer < 0) ? null : _defName[outer];
+  }
+
+  private Def toDef (int id) {
+    int outer = _defOuter[id];
+    return new Def(this, Long.valueOf(id), (outer < 0) ? null : Long.valueOf(outer),
+                   KINDS[_defKind[id]], FLAVORS[_defFlavor[id]], (_defFlags[id] & EXPORTED) != 0,
+                   ACCESSES[_defAccess[id]], _defName[id], _defOffset[id], _defBodyStart[id],
+                   _defBodyEnd[id]);
+  }
+
+  private List<Def> toDefs (int[] ids) {
+    if (ids == null) return Collections.emptyList();
+    List<Def> defs = new ArrayList<>(ids.length);
+    for (int id : ids) defs.add(toDef(id));
+    return defs;
+  }
+
+  private boolean matches (int id, Query query, boolean expOnly) {
+    return query.kinds.contains(KINDS[_defKind[id]]) &&
+      (!expOnly || (_defFlags[id] & EXPORTED) != 0);
+  }
+
+  /** Returns a local ref for {@code id} if we define it, its global ref otherwise. */
+  private Ref targetRef (int id) {
+    return (_defUnit[id] != 0) ? Ref.local(this, Long.valueOf(id)) : _names[id];
+  }
+
+  /** Returns the name id of {@code ref}, or -1 if we don't know the name. */
+  private int targetId (Ref ref) {
+    if (ref instanceof Ref.Local) {
+      Ref.Local lref = (Ref.Local)ref;
+      if (lref.project == this) return defIdx(lref.defId);
+      ref = lref.project.ref(lref.defId);
+    }
+    Integer id = _nameIds.get((Ref.Global)ref);
+    return (id == null) ? -1 : id;
+  }
+
+  private int definedId (Ref.Global ref) {
+    Integer id = _nameIds.get(ref);
+    return (id == null || _defUnit[id] == 0) ? -1 : id;
+  }
+
+  private int defIdx (Long defId) {
+    long id = defId.longValue();
+    if (id < 0 || id >= _nameCount || _defUnit[(int)id] == 0) throw new NoSuchElementException(
+      "No def with id " + id);
+    return (int)id;
+  }
+
+  /** Returns the id of {@code ref}, assigning it an id if it has none. */
+  private int nameId (Ref.Global ref) {
+    Integer id = _nameIds.get(ref);
+    if (id != null) return id;
+    if (_nameCount == _names.length) growNames(_nameCount*2);
+    int nid = _nameCount++;
+    _names[nid] = ref;
+    _defOuter[nid] = -1;
+    _nameIds.put(ref, nid);
+    return nid;
+  }
+
+  private int addUnit (String path) {
+    int unit = _unitCount++;
+    if (unit == _unitSource.length) {
+      int size = unit*2;
+      _unitSource = Arrays.copyOf(_unitSource, size);
+      _unitIndexed = Arrays.copyOf(_unitIndexed, size);
+      _unitDefs = Arrays.copyOf(_unitDefs, size);
+    }
+    _unitSource[unit] = path;
+    _unitDefs[unit] = NO_IDS;
+    return unit;
+  }
+
+  private void indexName (String name, int id) {
+    String lname = name.toLowerCase();
+    _byName.computeIfAbsent(lname, n -> new IntList(1)).add(id);
+    _byInitials.computeIfAbsent(NameMatcher.initials(name), n -> new IntList(4)).add(id);
+    for (int ii = 0, ll = lname.length()-2; ii < ll; ii++) {
+      IntList ids = _byTrigram.computeIfAbsent(MappedStore.trigramKey(lname, ii),
+                                               key -> new IntList(4));
+      // a name can repeat a trigram, but we add all of a name's trigrams at once
+      if (ids.size() == 0 || ids.last() != id) ids.add(id);
+    }
+  }
+
+  private void unindexName (String name, int id) {
+    String lname = name.toLowerCase();
+    unindex(_byName, lname, id);
+    unindex(_byInitials, NameMatcher.initials(name), id);
+    for (int ii = 0, ll = lname.length()-2; ii < ll; ii++) {
+      unindex(_byTrigram, MappedStore.trigramKey(lname, ii), id);
+    }
+  }
+
+  private static <K> void unindex (Map<K,IntList> index, K key, int id) {
+    IntList ids = index.get(key);
+    if (ids != null && ids.remove(id) && ids.size() == 0) index.remove(key);
+  }
+
+  private static SortedMap<String,IntList> withPrefix (NavigableMap<String,IntList> index,
+                                                       String prefix) {
+    return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+  }
+
+  private void addTrigramCandidates (String name, IntList cands) {
+    // any name with at least half of the query's trigrams has one of the k-ceil(k/2)+1 rarest
+    Set<Long> keys = new HashSet<>();
+    for (int ii = 0, ll = name.length()-2; ii < ll; ii++) {
+      keys.add(MappedStore.trigramKey(name, ii));
+    }
+    List<IntList> postings = new ArrayList<>();
+    for (Long key : keys) postings.add(_byTrigram.getOrDefault(key, NO_POSTINGS));
+    postings.sort(Comparator.comparingInt(IntList::size));
+    int rarest = Math.min(keys.size() - (keys.size()+1)/2 + 1, postings.size());
+    for (int ii = 0; ii < rarest; ii++) cands.addAll(postings.get(ii));
+  }
+
+  private <T> T reading (Supplier<T> op) {
+    _lock.readLock().lock();
+    try {
+      return op.get();
+    } finally {
+      _lock.readLock().unlock();
+    }
+  }
+
+  private void reset () {
+    _nameIds.clear();
+    _nameCount = 0;
+    _defCount = 0;
+    _names = null;
+    growNames(INITIAL_NAMES);
+
+    _unitIds.clear();
+    _unitSource = new String[INITIAL_UNITS];
+    _unitIndexed = new long[INITIAL_UNITS];
+    _unitDefs = new int[INITIAL_UNITS][];
+    _unitCount = 1; // unit 0 means "no unit"
+
+    _byName.clear();
+    _byInitials.clear();
+    _byTrigram.clear();
+  }
+
+  /** Grows the name and def columns to hold {@code size} names, or allocates new (empty) columns
+    * if we have none. */
+  private void growNames (int size) {
+    boolean fresh = (_names == null);
+    _names = fresh ? new Ref.Global[size] : Arrays.copyOf(_names, size);
+    _defUnit = fresh ? new int[size] : Arrays.copyOf(_defUnit, size);
+    _defOuter = fresh ? new int[size] : Arrays.copyOf(_defOuter, size);
+    _defOffset = fresh ? new int[size] : Arrays.copyOf(_defOffset, size);
+    _defBodyStart = fresh ? new int[size] : Arrays.copyOf(_defBodyStart, size);
+    _defBodyEnd = fresh ? new int[size] : Arrays.copyOf(_defBodyEnd, size);
+    _defKind = fresh ? new byte[size] : Arrays.copyOf(_defKind, size);
+    _defFlavor = fresh ? new byte[size] : Arrays.copyOf(_defFlavor, size);
+    _defAccess = fresh ? new byte[size] : Arrays.copyOf(_defAccess, size);
+    _defFlags = fresh ? new byte[size] : Arrays.copyOf(_defFlags, size);
+    _defName = fresh ? new String[size] : Arrays.copyOf(_defName, size);
+    _sigText = fresh ? new String[size] : Arrays.copyOf(_sigText, size);
+    _docOffset = fresh ? new int[size] : Arrays.copyOf(_docOffset, size);
+    _docLength = fresh ? new int[size] : Arrays.copyOf(_docLength, size);
+    _sigUses = fresh ? new int[size][] : Arrays.copyOf(_sigUses, size);
+    _docUses = fresh ? new int[size][] : Arrays.copyOf(_docUses, size);
+    _defUses = fresh ? new int[size][] : Arrays.copyOf(_defUses, size);
+    _defMems = fresh ? new int[size][] : Arrays.copyOf(_defMems, size);
+    _relsFrom = fresh ? new long[size][] : Arrays.copyOf(_relsFrom, size);
+    _relsTo = fresh ? new IntList[size] : Arrays.copyOf(_relsTo, size);
+    _posts = fresh ? new IntList[size] : Arrays.copyOf(_posts, size);
+  }
+
+  private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+  // names, by id; a name is defined by this store if its def unit is non-zero
+  private final Map<Ref.Global,Integer> _nameIds = new HashMap<>();
+  private Ref.Global[] _names;
+  private int _nameCount;
+
+  // the def columns, indexed by name id
+  private int[] _defUnit, _defOuter, _defOffset, _defBodyStart, _defBodyEnd;
+  private byte[] _defKind, _defFlavor, _defAccess, _defFlags;
+  private String[] _defName, _sigText;
+  private int[] _docOffset, _docLength;
+  // uses are packed USE_INTS to a use: target name id, kind ordinal (or -1), offset, length
+  private int[][] _sigUses, _docUses, _defUses;
+  private int[][] _defMems; // sorted
+  private long[][] _relsFrom; // relation code << 32 | target name id, sorted
+  private int _defCount;
+
+  // the records of the defs that relate to and use each name, by name id
+  private IntList[] _relsTo; // (relation code, def id)
+  private IntList[] _posts;  // (def id, offset)
+
+  // units, by id
+  private final Map<String,Integer> _unitIds = new HashMap<>();
+  private String[] _unitSource;
+  private long[] _unitIndexed;
+  private int[][] _unitDefs; // sorted
+  private int _unitCount;
+
+  // the defs with each lower case name, hump initials, and lower case trigram
+  private final NavigableMap<String,IntList> _byName = new TreeMap<>();
+  private final NavigableMap<String,IntList> _byInitials = new TreeMap<>();
+  private final Map<Long,IntList> _byTrigram = new HashMap<>();
+
+  private static final int EXPORTED = 1, TOP = 2, DOC = 4; // def flags
+  private static final int USE_INTS = 4;
+  private static final int INITIAL_NAMES = 1024, INITIAL_UNITS = 64;
+  private static final int[] NO_IDS = new int[0];
+  private static final IntList NO_POSTINGS = new IntList(1);
+
+  private static final Kind[] KINDS = Kind.values();
+  private static final Flavor[] FLAVORS = Flavor.values();
+  private static final Access[] ACCESSES = Access.values();
+}
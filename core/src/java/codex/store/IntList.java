@@ -0,0 +1,90 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, used by stores to accumulate ids (and records of ints) without boxing.
+ */
+final class IntList {
+
+  IntList () {
+    this(16);
+  }
+
+  IntList (int capacity) {
+    _values = new int[Math.max(capacity, 1)];
+  }
+
+  int size () {
+    return _size;
+  }
+
+  int get (int idx) {
+    return _values[idx];
+  }
+
+  void add (int value) {
+    if (_size == _values.length) _values = Arrays.copyOf(_values, _size*2);
+    _values[_size++] = value;
+  }
+
+  void add (int a, int b) {
+    add(a);
+    add(b);
+  }
+
+  void addAll (IntList other) {
+    for (int ii = 0; ii < other._size; ii++) add(other._values[ii]);
+  }
+
+  /** Returns the last value in this list, which must not be empty. */
+  int last () {
+    return _values[_size-1];
+  }
+
+  /** Removes the first occurrence of {@code value}, preserving the order of the others.
+    * @return true if the value was removed, false if it was not in the list. */
+  boolean remove (int value) {
+    for (int ii = 0; ii < _size; ii++) {
+      if (_values[ii] == value) {
+        System.arraycopy(_values, ii+1, _values, ii, _size-ii-1);
+        _size -= 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Treats this list as records of {@code stride} ints and removes every record whose int at
+    * {@code field} is {@code value}, preserving the order of the others. */
+  void removeRecords (int stride, int field, int value) {
+    int kept = 0;
+    for (int ii = 0; ii < _size; ii += stride) {
+      if (_values[ii+field] == value) continue;
+      if (kept != ii) System.arraycopy(_values, ii, _values, kept, stride);
+      kept += stride;
+    }
+    _size = kept;
+  }
+
+  int[] toArray () {
+    return Arrays.copyOf(_values, _size);
+  }
+
+  /** Sorts this list in place and returns its distinct values. */
+  int[] sortedDistinct () {
+    Arrays.sort(_values, 0, _size);
+    int distinct = 0;
+    for (int ii = 0; ii < _size; ii++) {
+      if (ii == 0 || _values[ii] != _values[ii-1]) _values[distinct++] = _values[ii];
+    }
+    return Arrays.copyOf(_values, distinct);
+  }
+
+  private int[] _values;
+  private int _size;
+}
@@ -0,0 +1,130 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.mapdb.Fun;
+
+/**
+ * The type of the keys of a {@link StorageEngine} map (or the elements of a set): a long, an int, a
+ * string, or a tuple of those. Engines use it to choose a key encoding, and to encode keys.
+ */
+public final class KeyType<K> {
+
+  /** The types of the (non-tuple) keys and of the components of tuple keys. */
+  public enum Part { LONG, INT, STRING }
+
+  public static final KeyType<Long> LONG = new KeyType<>(Part.LONG);
+  public static final KeyType<Integer> INT = new KeyType<>(Part.INT);
+  public static final KeyType<String> STRING = new KeyType<>(Part.STRING);
+
+  /** Returns the type of tuples of an {@code a} and a {@code b}. */
+  public static <A,B> KeyType<Fun.Tuple2<A,B>> tuple (KeyType<A> a, KeyType<B> b) {
+    return new KeyType<>(a.part(), b.part());
+  }
+
+  /** Returns the type of tuples of an {@code a}, a {@code b} and a {@code c}. */
+  public static <A,B,C> KeyType<Fun.Tuple3<A,B,C>> tuple (KeyType<A> a, KeyType<B> b,
+                                                          KeyType<C> c) {
+    return new KeyType<>(a.part(), b.part(), c.part());
+  }
+
+  /** The types of the components of this key type, a single part for non-tuple keys. */
+  public final List<Part> parts;
+
+  /** Returns true if keys of this type are tuples. */
+  public boolean isTuple () {
+    return parts.size() > 1;
+  }
+
+  /** Compares two keys of this type, in their natural order. */
+  @SuppressWarnings("unchecked")
+  public int compare (K a, K b) {
+    return ((Comparable<K>)a).compareTo(b);
+  }
+
+  /** Writes {@code key} to {@code out}. Tuple keys must not contain nulls. */
+  public void write (DataOutput out, K key) throws IOException {
+    switch (parts.size()) {
+    case 1: write(out, parts.get(0), key); break;
+    case 2:
+      Fun.Tuple2<?,?> t2 = (Fun.Tuple2<?,?>)key;
+      write(out, parts.get(0), t2.a);
+      write(out, parts.get(1), t2.b);
+      break;
+    default:
+      Fun.Tuple3<?,?,?> t3 = (Fun.Tuple3<?,?,?>)key;
+      write(out, parts.get(0), t3.a);
+      write(out, parts.get(1), t3.b);
+      write(out, parts.get(2), t3.c);
+      break;
+    }
+  }
+
+  /** Reads a key written by {@link #write}. */
+  @SuppressWarnings("unchecked")
+  public K read (DataInput in) throws IOException {
+    switch (parts.size()) {
+    case 1: return (K)read(in, parts.get(0));
+    case 2: return (K)Fun.t2(read(in, parts.get(0)), read(in, parts.get(1)));
+    default: return (K)Fun.t3(read(in, parts.get(0)), read(in, parts.get(1)),
+                               read(in, parts.get(2)));
+    }
+  }
+
+  @Override public String toString () {
+    return "KeyType" + parts;
+  }
+
+  private KeyType (Part... parts) {
+    this.parts = Collections.unmodifiableList(Arrays.asList(parts));
+  }
+
+  private Part part () {
+    if (isTuple()) throw new IllegalArgumentException("Tuples can't be nested: " + this);
+    return parts.get(0);
+  }
+
+  private static void write (DataOutput out, Part part, Object value) throws IOException {
+    switch (part) {
+    case LONG: writeVarLong(out, (Long)value); break;
+    case INT: writeVarLong(out, (Integer)value); break;
+    case STRING: out.writeUTF((String)value); break;
+    }
+  }
+
+  private static Object read (DataInput in, Part part) throws IOException {
+    switch (part) {
+    case LONG: return readVarLong(in);
+    case INT: return (int)readVarLong(in);
+    default: return in.readUTF();
+    }
+  }
+
+  // longs and ints are zig-zag encoded and then packed seven bits to a byte
+  private static void writeVarLong (DataOutput out, long value) throws IOException {
+    long zz = (value << 1) ^ (value >> 63);
+    while ((zz & ~0x7FL) != 0) {
+      out.writeByte((int)(zz & 0x7F) | 0x80);
+      zz >>>= 7;
+    }
+    out.writeByte((int)zz);
+  }
+
+  private static long readVarLong (DataInput in) throws IOException {
+    long zz = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      zz |= (long)(b & 0x7F) << shift;
+      if ((b & 0x80) == 0) break;
+    }
+    return (zz >>> 1) ^ -(zz & 1);
+  }
+}
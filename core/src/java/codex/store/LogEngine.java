@@ -0,0 +1,773 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.mapdb.Serializer;
+import static codex.store.LogRun.PRESENT;
+import static codex.store.LogRun.TOMBSTONE;
+
+/**
+ * A log-structured {@link StorageEngine}, for stores that are rewritten heavily, where the random
+ * writes of a B-tree are the bottleneck. Changes to a table accumulate in memory until they are
+ * committed, at which point the changes to each table are written sequentially to a new sorted run
+ * file (see {@link LogRun}). Files are never modified once written. A table is read by merging its
+ * uncommitted changes and its runs, newest first, and once a table has more than {@link #MAX_RUNS}
+ * runs, a background thread merges them into a single run.
+ *
+ * <p>A manifest lists the runs of each table as of the last commit, and each commit (and
+ * compaction) replaces it atomically. A commit's runs are added to the manifest together, once
+ * all of them are written, so a manifest never contains part of a commit. Uncommitted changes are
+ * lost if the engine is not closed, so a store that was not closed cleanly reverts to its last
+ * commit.</p>
+ *
+ * <p>{@link #beginCommit} freezes each table's changes in memory, where they remain readable, and
+ * the returned commit writes the frozen changes to runs, so the writer can make further changes
+ * while a commit is being written.</p>
+ */
+public class LogEngine implements StorageEngine {
+
+  /** The maximum number of runs a table may have before it is compacted. */
+  public static final int MAX_RUNS = 4;
+
+  /**
+   * Opens (or creates) the engine whose files are in {@code dir}.
+   * @param schema the version of the schema of the data stored in the engine. If the engine in
+   * {@code dir} was written with a different schema version, its contents are deleted.
+   */
+  public LogEngine (Path dir, int schema) throws IOException {
+    _dir = dir;
+    _schema = schema;
+    Files.createDirectories(dir);
+
+    Path manifest = dir.resolve(MANIFEST);
+    if (Files.exists(manifest)) try (DataInputStream in = new DataInputStream(
+      new BufferedInputStream(Files.newInputStream(manifest)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(
+        "Invalid manifest: " + manifest);
+      if (in.readInt() == schema) {
+        _nextSeq = in.readLong();
+        for (int tt = 0, tl = in.readInt(); tt < tl; tt++) {
+          String name = in.readUTF();
+          long[] seqs = new long[in.readInt()];
+          for (int ii = 0; ii < seqs.length; ii++) seqs[ii] = in.readLong();
+          _unopened.put(name, seqs);
+        }
+        for (int vv = 0, vl = in.readInt(); vv < vl; vv++) {
+          String name = in.readUTF();
+          byte[] value = new byte[in.readInt()];
+          in.readFully(value);
+          _vars.put(name, value);
+          _committedVars.put(name, value);
+        }
+      }
+    }
+
+    // delete the files of a different schema, and any runs written after the last commit
+    Set<String> live = new HashSet<>();
+    for (long[] seqs : _unopened.values()) for (long seq : seqs) live.add(runName(seq));
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String fname = file.getFileName().toString();
+        if (fname.endsWith(RUN_SUFFIX) && !live.contains(fname)) Files.delete(file);
+      }
+    }
+  }
+
+  @Override public <K,V> OrderedMap<K,V> map (String name, KeyType<K> keys, Serializer<V> values) {
+    return open(name, keys, values);
+  }
+
+  @Override public <E> OrderedSet<E> set (String name, KeyType<E> elems) {
+    return new SetTable<>(this.<E,Object>open(name, elems, null));
+  }
+
+  @Override public <K,V> OrderedMap<K,V> load (String name, NavigableMap<K,V> data) {
+    Table<K,V> table = table(name);
+    @SuppressWarnings("unchecked") Map<K,Object> entries = (Map<K,Object>)data;
+    load(table, entries.entrySet().iterator());
+    return table;
+  }
+
+  @Override public <E> OrderedSet<E> load (String name, NavigableSet<E> data) {
+    Table<E,Object> table = table(name);
+    Iterator<E> elems = data.iterator();
+    load(table, new Iterator<Map.Entry<E,Object>>() {
+      public boolean hasNext () { return elems.hasNext(); }
+      public Map.Entry<E,Object> next () {
+        return new AbstractMap.SimpleImmutableEntry<>(elems.next(), PRESENT);
+      }
+    });
+    return new SetTable<>(table);
+  }
+
+  @Override public byte[] getBytes (String name) {
+    return _vars.get(name);
+  }
+
+  @Override public void setBytes (String name, byte[] value) {
+    _vars.put(name, value);
+  }
+
+  @Override public void commit () {
+    beginCommit().write();
+  }
+
+  @Override public Commit beginCommit () {
+    List<Frozen<?,?>> frozen = new ArrayList<>();
+    Map<String,byte[]> vars;
+    synchronized (_lock) {
+      for (Table<?,?> table : _tables.values()) table.freeze(frozen);
+      _pending.addAll(frozen);
+      vars = new HashMap<>(_vars);
+    }
+    return () -> write(frozen, vars);
+  }
+
+  @Override public Snapshot snapshot () {
+    Map<String,Table<?,?>> views = new HashMap<>();
+    synchronized (_lock) {
+      for (Table<?,?> table : _tables.values()) views.put(table.name, table.view());
+    }
+    return new Snapshot() {
+      @SuppressWarnings("unchecked")
+      public <K,V> OrderedMap<K,V> map (String name) {
+        return (OrderedMap<K,V>)view(name);
+      }
+      @SuppressWarnings("unchecked")
+      public <E> OrderedSet<E> set (String name) {
+        return new SetTable<>((Table<E,Object>)view(name));
+      }
+      private Table<?,?> view (String name) {
+        Table<?,?> view = views.get(name);
+        if (view == null) throw new IllegalArgumentException("No table named " + name);
+        return view;
+      }
+    };
+  }
+
+  @Override public void close () {
+    commit();
+    _compactor.shutdown();
+    try {
+      _compactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Waits for any pending compactions to complete. This is mainly useful for testing. */
+  public void awaitCompaction () throws InterruptedException {
+    // compactions run one at a time, so once a no-op runs, all earlier compactions have completed
+    try {
+      _compactor.submit(() -> {}).get();
+    } catch (ExecutionException ee) {
+      throw new AssertionError(ee);
+    }
+  }
+
+  /** Returns the number of runs in the table {@code name}. This is mainly useful for testing. */
+  public int runCount (String name) {
+    return table(name).state.runs.size();
+  }
+
+  /** The state of a table: its uncommitted changes, the changes of commits that are being written,
+    * and its runs, each newest first. A state is replaced, never modified, other than the addition
+    * of changes to its map of changes. */
+  private static final class State<K,V> {
+    final ConcurrentSkipListMap<K,Object> changes;
+    final List<NavigableMap<K,Object>> frozen;
+    final List<LogRun<K,V>> runs;
+
+    State (List<NavigableMap<K,Object>> frozen, List<LogRun<K,V>> runs) {
+      this(new ConcurrentSkipListMap<>(), frozen, runs);
+    }
+
+    State (ConcurrentSkipListMap<K,Object> changes, List<NavigableMap<K,Object>> frozen,
+           List<LogRun<K,V>> runs) {
+      this.changes = changes;
+      this.frozen = frozen;
+      this.runs = runs;
+    }
+  }
+
+  /** The changes to a table frozen by a commit, along with the runs beneath them if the table was
+    * cleared or loaded since the previous commit. */
+  private static final class Frozen<K,V> {
+    final Table<K,V> table;
+    final NavigableMap<K,Object> changes; // null if the table was reset, but not changed
+    final List<LogRun<K,V>> base; // null if the changes go atop the table's durable runs
+    final boolean dropTombs;
+    // the run to which the changes were written; guarded by _lock
+    LogRun<K,V> run;
+
+    Frozen (Table<K,V> table, NavigableMap<K,Object> changes, List<LogRun<K,V>> base,
+            boolean dropTombs) {
+      this.table = table;
+      this.changes = changes;
+      this.base = base;
+      this.dropTombs = dropTombs;
+    }
+
+    /** Writes our changes to a run.
+      * @return the size of the run, or zero if none was needed. */
+    long write () throws IOException {
+      return (changes == null) ? 0 : Files.size(table.write(this).path);
+    }
+
+    /** Adds our run to our table's durable runs. Must be called while holding {@code _lock}. */
+    void publish () {
+      List<LogRun<K,V>> runs = (base == null) ? table.durable : base;
+      table.durable = (run == null) ? runs : prepend(run, runs);
+    }
+
+    /** Adds the sequence numbers of the runs we will publish to {@code live}. */
+    void addLive (Set<Long> live) {
+      if (run != null) live.add(run.seq);
+      if (base != null) for (LogRun<K,V> brun : base) live.add(brun.seq);
+    }
+  }
+
+  private final class Table<K,V> implements OrderedMap<K,V> {
+    final String name;
+    final KeyType<K> keys;
+    final Serializer<V> values; // null for sets
+    final boolean readOnly;
+
+    // the current state, and the state as of the last commit (with no changes); guarded by _lock
+    // for writes
+    volatile State<K,V> state;
+    volatile State<K,V> committed;
+    // the runs as of the last commit that was written, which are listed in the manifest, and
+    // whether the table was cleared or loaded since the last commit began; guarded by _lock
+    List<LogRun<K,V>> durable;
+    boolean reset;
+    boolean compacting;
+
+    Table (String name, KeyType<K> keys, Serializer<V> values, State<K,V> state,
+           boolean readOnly) {
+      this.name = name;
+      this.keys = keys;
+      this.values = values;
+      this.readOnly = readOnly;
+      this.state = state;
+      this.committed = state;
+      this.durable = state.runs;
+    }
+
+    /** Returns a read-only view of this table as of the last commit. */
+    Table<K,V> view () {
+      return new Table<>(name, keys, values, committed, true);
+    }
+
+    /** Returns the value of {@code key}, {@link LogRun#TOMBSTONE} if it was removed, or null. */
+    Object lookup (State<K,V> state, K key) {
+      Object value = state.changes.get(key);
+      if (value != null) return value;
+      for (NavigableMap<K,Object> frozen : state.frozen) {
+        value = frozen.get(key);
+        if (value != null) return value;
+      }
+      for (LogRun<K,V> run : state.runs) {
+        value = run.get(key);
+        if (value != null) return value;
+      }
+      return null;
+    }
+
+    @Override public V get (K key) {
+      Object value = lookup(state, key);
+      @SuppressWarnings("unchecked") V v = (value == TOMBSTONE) ? null : (V)value;
+      return v;
+    }
+
+    @Override public V put (K key, V value) {
+      checkWritable();
+      V prev = get(key);
+      state.changes.put(key, value);
+      return prev;
+    }
+
+    @Override public V remove (K key) {
+      checkWritable();
+      V prev = get(key);
+      if (prev != null) state.changes.put(key, TOMBSTONE);
+      return prev;
+    }
+
+    @Override public boolean isEmpty () {
+      return !iterator(null).hasNext();
+    }
+
+    @Override public int size () {
+      int size = 0;
+      for (Iterator<?> iter = iterator(null); iter.hasNext(); iter.next()) size += 1;
+      return size;
+    }
+
+    @Override public K lastKey () {
+      State<K,V> state = this.state;
+      // find the greatest key in any source, and if it has been removed, try the next greatest
+      for (K bound = null; ; ) {
+        K last = lowerKey(state.changes, bound);
+        for (NavigableMap<K,Object> frozen : state.frozen) {
+          K flast = lowerKey(frozen, bound);
+          if (flast != null && (last == null || keys.compare(flast, last) > 0)) last = flast;
+        }
+        for (LogRun<K,V> run : state.runs) {
+          K rlast = run.lowerKey(bound);
+          if (rlast != null && (last == null || keys.compare(rlast, last) > 0)) last = rlast;
+        }
+        if (last == null || lookup(state, last) != TOMBSTONE) return last;
+        bound = last;
+      }
+    }
+
+    @Override public Iterator<Map.Entry<K,V>> iterator (K from) {
+      Merge<K,V> merge = new Merge<>(keys, state, from);
+      return new Iterator<Map.Entry<K,V>>() {
+        private K _last;
+        public boolean hasNext () { return merge.hasNext(); }
+        @SuppressWarnings("unchecked") public Map.Entry<K,V> next () {
+          Map.Entry<K,Object> entry = merge.next();
+          _last = entry.getKey();
+          return (Map.Entry<K,V>)(Map.Entry<K,?>)entry;
+        }
+        public void remove () {
+          if (_last == null) throw new IllegalStateException();
+          Table.this.remove(_last);
+          _last = null;
+        }
+      };
+    }
+
+    @Override public void clear () {
+      checkWritable();
+      synchronized (_lock) {
+        _obsolete.addAll(state.runs);
+        state = new State<>(Collections.emptyList(), Collections.emptyList());
+        reset = true;
+      }
+    }
+
+    /** Freezes our changes (if any) for writing by a commit, and notes our committed state. Must
+      * be called while holding {@code _lock}. */
+    void freeze (List<Frozen<?,?>> into) {
+      State<K,V> state = this.state;
+      NavigableMap<K,Object> changes = null;
+      if (!state.changes.isEmpty()) {
+        changes = state.changes;
+        this.state = state = new State<>(prepend(changes, state.frozen), state.runs);
+      }
+      if (changes != null || reset) {
+        // tombstones only matter if there are older runs (or changes) whose entries they remove
+        boolean dropTombs = state.runs.isEmpty() && state.frozen.size() == 1;
+        into.add(new Frozen<>(this, changes, reset ? state.runs : null, dropTombs));
+        reset = false;
+      }
+      committed = new State<>(state.frozen, state.runs);
+    }
+
+    /** Writes {@code froz}'s changes to a new run, which replaces them in our state. Commits are
+      * written one at a time, oldest first, so the new run is newer than all of our runs.
+      * @return the new run. */
+    LogRun<K,V> write (Frozen<K,V> froz) throws IOException {
+      LogRun<K,V> run = writeRun(this, froz.changes.entrySet().iterator(), froz.dropTombs);
+      synchronized (_lock) {
+        froz.run = run;
+        // if the table was cleared or loaded since the commit began, the run is only needed until
+        // a later commit replaces it in the manifest
+        if (!containsRef(state.frozen, froz.changes)) _obsolete.add(run);
+        else {
+          state = new State<>(state.changes, without(state.frozen, froz.changes),
+                              prepend(run, state.runs));
+          if (containsRef(committed.frozen, froz.changes)) committed = new State<>(
+            without(committed.frozen, froz.changes), prepend(run, committed.runs));
+        }
+      }
+      return run;
+    }
+
+    private void checkWritable () {
+      if (readOnly) throw new UnsupportedOperationException("Snapshots are read-only: " + name);
+    }
+  }
+
+  /** Merges the changes and runs of a table state, in key order. Where several of them have an
+    * entry for a key, the newest wins, and keys whose newest entry is a tombstone are skipped. */
+  private static final class Merge<K,V> implements Iterator<Map.Entry<K,Object>> {
+
+    Merge (KeyType<K> keys, State<K,V> state, K from) {
+      _keys = keys;
+      _from = from;
+      _heads = new PriorityQueue<>(state.frozen.size()+state.runs.size()+1, (a, b) -> {
+        int cmp = keys.compare(a.key, b.key);
+        return (cmp != 0) ? cmp : Integer.compare(a.rank, b.rank);
+      });
+      int rank = 0;
+      addHead(mapHead(rank++, state.changes));
+      for (NavigableMap<K,Object> frozen : state.frozen) addHead(mapHead(rank++, frozen));
+      for (LogRun<K,V> run : state.runs) {
+        LogRun<K,V>.Cursor cursor = run.cursor(from);
+        addHead(new Head(rank++) {
+          boolean advance () {
+            while (cursor.next()) {
+              if (_from != null && _keys.compare(cursor.key, _from) < 0) continue;
+              key = cursor.key;
+              value = cursor.value;
+              return true;
+            }
+            return false;
+          }
+        });
+      }
+    }
+
+    @Override public boolean hasNext () {
+      while (_next == null && !_heads.isEmpty()) {
+        Head head = _heads.poll();
+        K key = head.key;
+        Object value = head.value;
+        addHead(head);
+        // skip the older entries for this key
+        while (!_heads.isEmpty() && _keys.compare(_heads.peek().key, key) == 0) {
+          addHead(_heads.poll());
+        }
+        if (value != TOMBSTONE) _next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+      }
+      return _next != null;
+    }
+
+    @Override public Map.Entry<K,Object> next () {
+      if (!hasNext()) throw new NoSuchElementException();
+      Map.Entry<K,Object> next = _next;
+      _next = null;
+      return next;
+    }
+
+    private abstract class Head {
+      final int rank; // lower ranks are newer
+      K key;
+      Object value;
+      Head (int rank) { this.rank = rank; }
+      abstract boolean advance ();
+    }
+
+    private void addHead (Head head) {
+      if (head.advance()) _heads.add(head);
+    }
+
+    private Head mapHead (int rank, NavigableMap<K,Object> map) {
+      Iterator<Map.Entry<K,Object>> iter = (_from == null ? map : map.tailMap(_from, true)).
+        entrySet().iterator();
+      return new Head(rank) {
+        boolean advance () {
+          if (!iter.hasNext()) return false;
+          Map.Entry<K,Object> entry = iter.next();
+          key = entry.getKey();
+          value = entry.getValue();
+          return true;
+        }
+      };
+    }
+
+    private final KeyType<K> _keys;
+    private final K _from;
+    private final PriorityQueue<Head> _heads;
+    private Map.Entry<K,Object> _next;
+  }
+
+  private static final class SetTable<E> implements OrderedSet<E> {
+    SetTable (Table<E,Object> table) {
+      _table = table;
+    }
+
+    @Override public boolean add (E elem) {
+      return _table.put(elem, PRESENT) == null;
+    }
+    @Override public boolean remove (E elem) {
+      return _table.remove(elem) != null;
+    }
+    @Override public boolean contains (E elem) {
+      return _table.get(elem) != null;
+    }
+    @Override public boolean isEmpty () {
+      return _table.isEmpty();
+    }
+    @Override public int size () {
+      return _table.size();
+    }
+    @Override public Iterator<E> iterator (E from) {
+      Iterator<Map.Entry<E,Object>> iter = _table.iterator(from);
+      return new Iterator<E>() {
+        public boolean hasNext () { return iter.hasNext(); }
+        public E next () { return iter.next().getKey(); }
+        public void remove () { iter.remove(); }
+      };
+    }
+    @Override public void clear () {
+      _table.clear();
+    }
+
+    private final Table<E,Object> _table;
+  }
+
+  private <K,V> Table<K,V> open (String name, KeyType<K> keys, Serializer<V> values) {
+    synchronized (_lock) {
+      @SuppressWarnings("unchecked") Table<K,V> table = (Table<K,V>)_tables.get(name);
+      if (table == null) {
+        List<LogRun<K,V>> runs = new ArrayList<>();
+        long[] seqs = _unopened.remove(name);
+        if (seqs != null) for (long seq : seqs) {
+          try {
+            runs.add(new LogRun<>(_dir.resolve(runName(seq)), seq, keys, values));
+          } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to open table " + name, ioe);
+          }
+        }
+        _tables.put(name, table = new Table<>(
+          name, keys, values, new State<>(Collections.emptyList(), runs), false));
+      }
+      return table;
+    }
+  }
+
+  private <K,V> Table<K,V> table (String name) {
+    @SuppressWarnings("unchecked") Table<K,V> table = (Table<K,V>)_tables.get(name);
+    if (table == null) throw new IllegalArgumentException("No table named " + name);
+    return table;
+  }
+
+  private <K,V> void load (Table<K,V> table, Iterator<Map.Entry<K,Object>> entries) {
+    try {
+      LogRun<K,V> run;
+      synchronized (_lock) {
+        run = writeRun(table, entries, true);
+        _obsolete.addAll(table.state.runs);
+        table.state = new State<>(Collections.emptyList(), Collections.singletonList(run));
+        table.reset = true;
+      }
+    } catch (IOException ioe) {
+      throw new UncheckedIOException("Failed to load table " + table.name, ioe);
+    }
+  }
+
+  private <K,V> LogRun<K,V> writeRun (Table<K,V> table, Iterator<Map.Entry<K,Object>> entries,
+                                      boolean dropTombs) throws IOException {
+    long seq;
+    synchronized (_lock) {
+      seq = _nextSeq++;
+    }
+    Path path = _dir.resolve(runName(seq));
+    LogRun.write(path, table.keys, table.values, entries, dropTombs);
+    return new LogRun<>(path, seq, table.keys, table.values);
+  }
+
+  // writes the changes frozen by a commit, then publishes its runs and variables together in the
+  // manifest, and returns the bytes written
+  private long write (List<Frozen<?,?>> frozen, Map<String,byte[]> vars) {
+    synchronized (_commitLock) {
+      long bytes = 0;
+      try {
+        for (Frozen<?,?> froz : frozen) bytes += froz.write();
+        synchronized (_lock) {
+          for (Frozen<?,?> froz : frozen) froz.publish();
+          _pending.removeAll(frozen);
+          _committedVars = vars;
+          bytes += writeManifest();
+        }
+      } catch (IOException ioe) {
+        throw new UncheckedIOException("Commit failed: " + _dir, ioe);
+      }
+      for (Table<?,?> table : _tables.values()) maybeCompact(table);
+      return bytes;
+    }
+  }
+
+  private <K,V> void maybeCompact (Table<K,V> table) {
+    synchronized (_lock) {
+      if (table.compacting || table.durable.size() <= MAX_RUNS) return;
+      table.compacting = true;
+    }
+    _compactor.execute(() -> compact(table));
+  }
+
+  private <K,V> void compact (Table<K,V> table) {
+    // we only compact durable runs, so that the merged run never contains part of a commit
+    List<LogRun<K,V>> runs;
+    synchronized (_lock) {
+      runs = table.durable;
+    }
+    LogRun<K,V> merged = null;
+    try {
+      // the merged run will be the table's oldest, so it needs no tombstones
+      State<K,V> runsOnly = new State<>(Collections.emptyList(), runs);
+      merged = writeRun(table, new Merge<>(table.keys, runsOnly, null), true);
+      synchronized (_lock) {
+        // commits may have added newer runs meanwhile, which we keep; if the table was cleared or
+        // loaded, our runs are gone and so is the need for the merged run
+        List<LogRun<K,V>> current = table.state.runs;
+        if (endsWith(current, runs) && endsWith(table.durable, runs)) {
+          State<K,V> state = table.state, committed = table.committed;
+          table.state = new State<>(state.changes, state.frozen,
+                                    replaceTail(current, runs, merged));
+          if (endsWith(committed.runs, runs)) table.committed = new State<>(
+            committed.frozen, replaceTail(committed.runs, runs, merged));
+          table.durable = replaceTail(table.durable, runs, merged);
+          _obsolete.addAll(runs);
+          merged = null;
+          writeManifest();
+        }
+      }
+    } catch (IOException ioe) {
+      System.err.println("Compaction of " + table.name + " failed: " + ioe);
+    } finally {
+      if (merged != null) try {
+        Files.deleteIfExists(merged.path);
+      } catch (IOException ioe) {
+        System.err.println("Failed to delete " + merged.path + ": " + ioe);
+      }
+      synchronized (_lock) {
+        table.compacting = false;
+      }
+    }
+  }
+
+  private static <T> boolean endsWith (List<T> list, List<T> tail) {
+    int offset = list.size() - tail.size();
+    if (offset < 0) return false;
+    for (int ii = 0; ii < tail.size(); ii++) if (list.get(offset+ii) != tail.get(ii)) return false;
+    return true;
+  }
+
+  private static <K> K lowerKey (NavigableMap<K,?> map, K bound) {
+    return (bound != null) ? map.lowerKey(bound) : map.isEmpty() ? null : map.lastKey();
+  }
+
+  private static <T> List<T> prepend (T elem, List<T> list) {
+    List<T> nlist = new ArrayList<>(list.size()+1);
+    nlist.add(elem);
+    nlist.addAll(list);
+    return nlist;
+  }
+
+  // frozen changes are compared by identity, not by their contents
+  private static <T> boolean containsRef (List<T> list, T elem) {
+    for (T lelem : list) if (lelem == elem) return true;
+    return false;
+  }
+
+  private static <T> List<T> without (List<T> list, T elem) {
+    List<T> nlist = new ArrayList<>(list.size());
+    for (T lelem : list) if (lelem != elem) nlist.add(lelem);
+    return nlist;
+  }
+
+  private static <T> List<T> replaceTail (List<T> list, List<T> tail, T replacement) {
+    List<T> replaced = new ArrayList<>(list.subList(0, list.size() - tail.size()));
+    replaced.add(replacement);
+    return replaced;
+  }
+
+  /** Writes the durable runs of every table to the manifest, and then deletes the obsolete runs
+    * that are no longer part of it (or of a commit being written). Must be called while holding
+    * {@code _lock}.
+    * @return the size of the manifest. */
+  private long writeManifest () throws IOException {
+    Path temp = _dir.resolve(MANIFEST + ".tmp");
+    Set<Long> live = new HashSet<>();
+    try (DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(_schema);
+      out.writeLong(_nextSeq);
+      out.writeInt(_tables.size() + _unopened.size());
+      for (Table<?,?> table : _tables.values()) {
+        List<? extends LogRun<?,?>> runs = table.durable;
+        out.writeUTF(table.name);
+        out.writeInt(runs.size());
+        for (LogRun<?,?> run : runs) {
+          out.writeLong(run.seq);
+          live.add(run.seq);
+        }
+      }
+      for (Map.Entry<String,long[]> entry : _unopened.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        for (long seq : entry.getValue()) out.writeLong(seq);
+      }
+      out.writeInt(_committedVars.size());
+      for (Map.Entry<String,byte[]> entry : _committedVars.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        out.write(entry.getValue());
+      }
+    }
+    try (FileChannel chan = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      chan.force(true);
+    }
+    Files.move(temp, _dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    long size = Files.size(_dir.resolve(MANIFEST));
+    for (Frozen<?,?> froz : _pending) froz.addLive(live);
+
+    // readers may still be using obsolete runs, but they're memory mapped, and a mapping remains
+    // valid after its file is deleted
+    for (Iterator<LogRun<?,?>> iter = _obsolete.iterator(); iter.hasNext(); ) {
+      LogRun<?,?> run = iter.next();
+      if (live.contains(run.seq)) continue;
+      Files.deleteIfExists(run.path);
+      iter.remove();
+    }
+    return size;
+  }
+
+  private static String runName (long seq) {
+    return String.format("%016x", seq) + RUN_SUFFIX;
+  }
+
+  private final Path _dir;
+  private final int _schema;
+  private final Object _lock = new Object();
+
+  private final Map<String,Table<?,?>> _tables = new ConcurrentHashMap<>();
+  // the runs of tables in the manifest that have not yet been opened
+  private final Map<String,long[]> _unopened = new HashMap<>();
+  private final Map<String,byte[]> _vars = new ConcurrentHashMap<>();
+  // the variables as of the last commit that was written, which are written to the manifest
+  private Map<String,byte[]> _committedVars = new HashMap<>();
+  // the changes frozen by commits that have begun, but not yet been written; guarded by _lock
+  private final List<Frozen<?,?>> _pending = new ArrayList<>();
+  // held while a commit is written, so that commits are written in order
+  private final Object _commitLock = new Object();
+  // runs replaced by a load, clear or compaction, deleted once no longer in the manifest
+  private final List<LogRun<?,?>> _obsolete = new ArrayList<>();
+  private long _nextSeq;
+
+  private final ExecutorService _compactor = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "LogEngine-compactor");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static final String MANIFEST = "manifest";
+  private static final String RUN_SUFFIX = ".run";
+  private static final int MAGIC = 0x4344584D; // CDXM
+  private static final int VERSION = 1;
+}
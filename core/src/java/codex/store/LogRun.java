@@ -0,0 +1,240 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.mapdb.Serializer;
+
+/**
+ * A sorted run of a {@link LogEngine} table: an immutable file of entries in ascending key order,
+ * each either a value or a tombstone, which marks the removal of the key from older runs. The
+ * entries are followed by a sparse index, which holds the key and position of every {@link
+ * #INDEX_EVERY}th entry and is read into memory when the run is opened. The entries themselves are
+ * read from the memory mapped file as needed.
+ */
+final class LogRun<K,V> {
+
+  /** Marks the removal of a key, in runs and in a table's in-memory entries. */
+  static final Object TOMBSTONE = new Object() {
+    @Override public String toString () { return "TOMBSTONE"; }
+  };
+
+  /** The value of the entries of sets, which have only keys. */
+  static final Object PRESENT = new Object() {
+    @Override public String toString () { return "PRESENT"; }
+  };
+
+  /** An iterator over the entries of a run, see {@link #cursor}. */
+  final class Cursor {
+    /** The key and value (or {@link #TOMBSTONE}) of the current entry. */
+    K key;
+    Object value;
+
+    /** Advances to the next entry, returns false if there are no more entries. */
+    boolean next () {
+      if (_in.pos >= _indexPos) return false;
+      try {
+        boolean tomb = _in.readByte() != 0;
+        key = _keys.read(_in);
+        value = tomb ? TOMBSTONE : (_values == null) ? PRESENT : _values.deserialize(_in, -1);
+        return true;
+      } catch (IOException ioe) {
+        throw new UncheckedIOException("Corrupt run " + path, ioe);
+      }
+    }
+
+    private final BufferInput _in;
+    private Cursor (int pos) { _in = new BufferInput(_buf, pos); }
+  }
+
+  /**
+   * Writes {@code entries}, which must be in ascending key order, to a run file at {@code path}
+   * and forces it to disk.
+   * @param values the serializer for values, or null if the run is part of a set.
+   * @param dropTombs if true, tombstones are not written, which is only safe if the run will be a
+   * table's oldest.
+   */
+  static <K,V> void write (Path path, KeyType<K> keys, Serializer<V> values,
+                           Iterator<Map.Entry<K,Object>> entries, boolean dropTombs)
+      throws IOException {
+    try (FileChannel chan = FileChannel.open(path, StandardOpenOption.CREATE,
+                                             StandardOpenOption.TRUNCATE_EXISTING,
+                                             StandardOpenOption.WRITE)) {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(chan), 1 << 16));
+      out.writeInt(MAGIC);
+      List<K> indexKeys = new ArrayList<>();
+      List<Integer> indexPoss = new ArrayList<>();
+      int count = 0;
+      while (entries.hasNext()) {
+        Map.Entry<K,Object> entry = entries.next();
+        boolean tomb = (entry.getValue() == TOMBSTONE);
+        if (tomb && dropTombs) continue;
+        if (count % INDEX_EVERY == 0) {
+          indexKeys.add(entry.getKey());
+          indexPoss.add(out.size());
+        }
+        out.writeByte(tomb ? 1 : 0);
+        keys.write(out, entry.getKey());
+        if (!tomb && values != null) {
+          @SuppressWarnings("unchecked") V value = (V)entry.getValue();
+          values.serialize(out, value);
+        }
+        count += 1;
+        if (out.size() < 0) throw new IOException("Run too large: " + path);
+      }
+      int indexPos = out.size();
+      for (int ii = 0, ll = indexKeys.size(); ii < ll; ii++) {
+        keys.write(out, indexKeys.get(ii));
+        out.writeInt(indexPoss.get(ii));
+      }
+      out.writeInt(indexPos);
+      out.writeInt(indexKeys.size());
+      out.writeInt(count);
+      out.writeInt(MAGIC);
+      out.flush();
+      if (out.size() < 0) throw new IOException("Run too large: " + path);
+      chan.force(true);
+    }
+  }
+
+  /** The file from which this run was read. */
+  final Path path;
+
+  /** The sequence number of this run, which determines its file name. */
+  final long seq;
+
+  /** The number of entries (including tombstones) in this run. */
+  final int count;
+
+  /** Opens the run file at {@code path}. */
+  LogRun (Path path, long seq, KeyType<K> keys, Serializer<V> values) throws IOException {
+    this.path = path;
+    this.seq = seq;
+    _keys = keys;
+    _values = values;
+    try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (chan.size() > Integer.MAX_VALUE) throw new IOException("Run too large: " + path);
+      _buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+    }
+    int end = _buf.limit();
+    if (end < 20 || _buf.getInt(0) != MAGIC || _buf.getInt(end-4) != MAGIC) throw new IOException(
+      "Not a run file: " + path);
+    _indexPos = _buf.getInt(end-16);
+    int indexCount = _buf.getInt(end-12);
+    count = _buf.getInt(end-8);
+
+    @SuppressWarnings("unchecked") K[] indexKeys = (K[])new Object[indexCount];
+    _indexKeys = indexKeys;
+    _indexPoss = new int[indexCount];
+    BufferInput in = new BufferInput(_buf, _indexPos);
+    for (int ii = 0; ii < indexCount; ii++) {
+      _indexKeys[ii] = keys.read(in);
+      _indexPoss[ii] = in.readInt();
+    }
+  }
+
+  /** Returns the value (or {@link #TOMBSTONE}) of {@code key}, or null if this run has no entry
+    * for it. */
+  Object get (K key) {
+    int block = block(key, true);
+    if (block < 0) return null;
+    Cursor cursor = new Cursor(_indexPoss[block]);
+    for (int ii = 0; ii < INDEX_EVERY && cursor.next(); ii++) {
+      int cmp = _keys.compare(cursor.key, key);
+      if (cmp == 0) return cursor.value;
+      if (cmp > 0) break;
+    }
+    return null;
+  }
+
+  /** Returns a cursor positioned before the first entry with a key greater than or equal to
+    * {@code from}, or before the first entry if {@code from} is null. The cursor may first return
+    * some entries with smaller keys, which the caller must skip. */
+  Cursor cursor (K from) {
+    int block = (from == null) ? -1 : block(from, true);
+    return new Cursor(block < 0 ? 4 : _indexPoss[block]);
+  }
+
+  /** Returns the greatest key in this run that is less than {@code bound} (or the greatest key,
+    * if {@code bound} is null), or null if there is none. */
+  K lowerKey (K bound) {
+    int block = (bound == null) ? _indexKeys.length-1 : block(bound, false);
+    if (block < 0) return null;
+    K lower = null;
+    Cursor cursor = new Cursor(_indexPoss[block]);
+    for (int ii = 0; ii < INDEX_EVERY && cursor.next(); ii++) {
+      if (bound != null && _keys.compare(cursor.key, bound) >= 0) break;
+      lower = cursor.key;
+    }
+    return lower;
+  }
+
+  @Override public String toString () {
+    return "LogRun(" + path.getFileName() + ", " + count + ")";
+  }
+
+  // returns the last block whose first key is less than (or equal to, if inclusive) key, or -1
+  private int block (K key, boolean inclusive) {
+    int lo = 0, hi = _indexKeys.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1, cmp = _keys.compare(_indexKeys[mid], key);
+      if (cmp < 0 || (inclusive && cmp == 0)) lo = mid + 1; else hi = mid;
+    }
+    return lo - 1;
+  }
+
+  /** A {@link DataInput} that reads from a position in a buffer, without changing the buffer's
+    * own position, so that many readers can share a buffer. */
+  private static final class BufferInput implements DataInput {
+    int pos;
+
+    BufferInput (ByteBuffer buf, int pos) {
+      _buf = buf;
+      this.pos = pos;
+    }
+
+    public void readFully (byte[] b) { readFully(b, 0, b.length); }
+    public void readFully (byte[] b, int off, int len) {
+      for (int ii = 0; ii < len; ii++) b[off+ii] = _buf.get(pos++);
+    }
+    public int skipBytes (int n) { pos += n; return n; }
+    public boolean readBoolean () { return _buf.get(pos++) != 0; }
+    public byte readByte () { return _buf.get(pos++); }
+    public int readUnsignedByte () { return _buf.get(pos++) & 0xFF; }
+    public short readShort () { short v = _buf.getShort(pos); pos += 2; return v; }
+    public int readUnsignedShort () { return readShort() & 0xFFFF; }
+    public char readChar () { char v = _buf.getChar(pos); pos += 2; return v; }
+    public int readInt () { int v = _buf.getInt(pos); pos += 4; return v; }
+    public long readLong () { long v = _buf.getLong(pos); pos += 8; return v; }
+    public float readFloat () { return Float.intBitsToFloat(readInt()); }
+    public double readDouble () { return Double.longBitsToDouble(readLong()); }
+    public String readLine () { throw new UnsupportedOperationException(); }
+    public String readUTF () throws IOException { return DataInputStream.readUTF(this); }
+
+    private final ByteBuffer _buf;
+  }
+
+  private final KeyType<K> _keys;
+  private final Serializer<V> _values;
+  private final ByteBuffer _buf;
+  private final int _indexPos;
+  private final K[] _indexKeys;
+  private final int[] _indexPoss;
+
+  /** The number of entries between sparse index entries. */
+  static final int INDEX_EVERY = 16;
+
+  private static final int MAGIC = 0x43445852; // CDXR
+}
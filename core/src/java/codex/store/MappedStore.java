@@ -0,0 +1,537 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.extract.Writer;
+import codex.model.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An immutable project store backed by a single memory mapped file, compiled from another store
+ * via {@link #compile}. This is meant for library stores (the JDK, jar dependencies) which are
+ * indexed once and then only read. Opening a mapped store reads only its header, and the file is
+ * only ever read, so many processes can share it (and the OS page cache for it).
+ *
+ * <p>The file consists of a header and a set of sections, each an array of fixed size records
+ * (or in the case of the string pool, length prefixed strings). Def ids are the indices of defs
+ * in the defs section. All lookups are binary searches or direct reads of records in the mapped
+ * file, so queries allocate only the objects they return.</p>
+ */
+public class MappedStore extends ProjectStore {
+
+  /**
+   * Compiles the contents of {@code store} into a mapped store file at {@code path}, replacing any
+   * existing file. The store is read only via the {@link ProjectStore} API, so any store can be
+   * compiled.
+   */
+  public static void compile (ProjectStore store, Path path) throws IOException {
+    new MappedStoreCompiler(store).write(path);
+  }
+
+  /** Opens the mapped store file at {@code path}.
+    * @throws IOException if the file can't be read or is not a mapped store file. */
+  public MappedStore (String name, Path path) throws IOException {
+    super(name);
+    try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (chan.size() > Integer.MAX_VALUE) throw new IOException(
+        "Mapped store too large: " + path + " (" + chan.size() + " bytes)");
+      _buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+    }
+    if (_buf.limit() < HEADER_SIZE || _buf.getInt(0) != MAGIC) throw new IOException(
+      "Not a mapped store: " + path);
+    if (_buf.getInt(4) != VERSION) throw new IOException(
+      "Unsupported mapped store version " + _buf.getInt(4) + ": " + path);
+    for (int ss = 0; ss < SECTIONS; ss++) {
+      _base[ss] = _buf.getInt(8 + ss*8);
+      _size[ss] = _buf.getInt(12 + ss*8);
+    }
+    _defCount = _size[DEFS] / DEF_SIZE;
+    _globals = new Ref.Global[_size[GLOBALS] / GLOBAL_SIZE];
+  }
+
+  /** Returns the number of defs in this store. */
+  public int defCount () {
+    return _defCount;
+  }
+
+  @Override public Writer writer () {
+    throw new UnsupportedOperationException("Mapped stores are read-only: " + name);
+  }
+
+  @Override public Iterable<Def> topLevelDefs () {
+    int count = _size[TOP] / 4;
+    List<Def> defs = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) defs.add(toDef(_buf.getInt(_base[TOP] + ii*4)));
+    return defs;
+  }
+
+  @Override public long lastIndexed (Source source) {
+    int srcIdx = findSource(source.toString());
+    return (srcIdx < 0) ? 0L : _buf.getLong(sourceRec(srcIdx) + SRC_INDEXED);
+  }
+
+  @Override public Iterable<Def> sourceDefs (Source source) {
+    int srcIdx = findSource(source.toString());
+    if (srcIdx < 0) throw new IllegalArgumentException("Unknown source " + source);
+    int rec = sourceRec(srcIdx), start = _buf.getInt(rec + SRC_DEFS);
+    int count = _buf.getInt(rec + SRC_DEFS + 4);
+    List<Def> defs = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) defs.add(toDef(start + ii));
+    return defs;
+  }
+
+  @Override public boolean mayDefine (Ref.Global ref) {
+    return definedIdx(ref) >= 0;
+  }
+
+  @Override public Optional<Def> def (Ref.Global ref) {
+    int idx = definedIdx(ref);
+    return (idx < 0) ? Optional.empty() : Optional.of(toDef(idx));
+  }
+
+  @Override public Def def (Long defId) {
+    return toDef(defIdx(defId));
+  }
+
+  @Override public Ref.Global ref (Long defId) {
+    return global(_buf.getInt(defRec(defIdx(defId)) + DEF_GLOBAL));
+  }
+
+  @Override public Optional<Sig> sig (Long defId) {
+    int sig = _buf.getInt(defRec(defIdx(defId)) + DEF_SIG);
+    if (sig < 0) return Optional.empty();
+    int rec = _base[SIGS] + sig*SIG_SIZE;
+    return Optional.of(new Sig(str(_buf.getInt(rec)), uses(rec + 4)));
+  }
+
+  @Override public Optional<Doc> doc (Long defId) {
+    int doc = _buf.getInt(defRec(defIdx(defId)) + DEF_DOC);
+    if (doc < 0) return Optional.empty();
+    int rec = _base[DOCS] + doc*DOC_SIZE;
+    return Optional.of(new Doc(_buf.getInt(rec), _buf.getInt(rec + 4), uses(rec + 8)));
+  }
+
+  @Override public Source source (Long defId) {
+    int srcIdx = _buf.getInt(defRec(defIdx(defId)) + DEF_SOURCE);
+    return Source.fromString(str(_buf.getInt(sourceRec(srcIdx) + SRC_PATH)));
+  }
+
+  @Override public Iterable<Def> defsIn (Long defId) {
+    int rec = defRec(defIdx(defId)), start = _buf.getInt(rec + DEF_MEMS);
+    int count = _buf.getInt(rec + DEF_MEMS + 4);
+    List<Def> defs = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) {
+      defs.add(toDef(_buf.getInt(_base[MEMBERS] + (start+ii)*4)));
+    }
+    return defs;
+  }
+
+  @Override public Iterable<Use> usesIn (Long defId) {
+    return uses(defRec(defIdx(defId)) + DEF_USES);
+  }
+
+  @Override public Set<Ref> relationsFrom (Relation rel, Long defId) {
+    int rec = defRec(defIdx(defId)), start = _buf.getInt(rec + DEF_RELS);
+    int count = _buf.getInt(rec + DEF_RELS + 4);
+    Set<Ref> refs = new HashSet<>();
+    for (int ii = 0; ii < count; ii++) {
+      int rrec = _base[RELS] + (start+ii)*REL_SIZE;
+      if (_buf.get(rrec) == rel.code) refs.add(targetRef(_buf.getInt(rrec + 1)));
+    }
+    return refs;
+  }
+
+  @Override public Set<Def> relationsTo (Relation rel, Ref ref) {
+    Set<Def> defs = new HashSet<>();
+    int target = target(ref);
+    if (target == NO_TARGET) return defs;
+    int base = _base[RELS_TO], count = _size[RELS_TO] / RELTO_SIZE;
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1, rec = base + mid*RELTO_SIZE;
+      int cmp = Integer.compare(_buf.getInt(rec), target);
+      if (cmp == 0) cmp = Integer.compare(_buf.get(rec + 4), rel.code);
+      if (cmp < 0) lo = mid + 1; else hi = mid;
+    }
+    for (int ii = lo; ii < count; ii++) {
+      int rec = base + ii*RELTO_SIZE;
+      if (_buf.getInt(rec) != target || _buf.get(rec + 4) != rel.code) break;
+      defs.add(toDef(_buf.getInt(rec + 5)));
+    }
+    return defs;
+  }
+
+  @Override public Map<Source,int[]> usesOf (Def def) {
+    boolean isLocal = (def.project == this);
+    int target = isLocal ? defIdx(def.id) : target(def.globalRef());
+    Map<Source,int[]> uses = new HashMap<>();
+    if (target == NO_TARGET) return uses;
+
+    // the postings for a target are contiguous and sorted by the using def and then offset, and
+    // defs are grouped by source, so the postings for each source are contiguous as well
+    int base = _base[POSTS], count = _size[POSTS] / POST_SIZE;
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (_buf.getInt(base + mid*POST_SIZE) < target) lo = mid + 1; else hi = mid;
+    }
+    // we always report the defining source of a local def, even if it contains no uses
+    int defSrc = isLocal ? _buf.getInt(defRec(target) + DEF_SOURCE) : -1;
+    for (int ii = lo; ii < count && _buf.getInt(base + ii*POST_SIZE) == target; ) {
+      int srcIdx = postSource(base + ii*POST_SIZE), end = ii+1;
+      while (end < count && _buf.getInt(base + end*POST_SIZE) == target &&
+             postSource(base + end*POST_SIZE) == srcIdx) end++;
+      int[] offsets = new int[end-ii];
+      for (int pp = ii; pp < end; pp++) offsets[pp-ii] = _buf.getInt(base + pp*POST_SIZE + 8);
+      Arrays.sort(offsets); // sorted by def, then offset; nested defs can interleave
+      uses.put(sourceOf(srcIdx), offsets);
+      if (srcIdx == defSrc) defSrc = -1;
+      ii = end;
+    }
+    if (defSrc >= 0) uses.put(sourceOf(defSrc), new int[0]);
+    return uses;
+  }
+
+  private int postSource (int rec) {
+    return _buf.getInt(defRec(_buf.getInt(rec + 4)) + DEF_SOURCE);
+  }
+
+  @Override public void find (Query query, boolean expOnly, List<Def> into) {
+    switch (query.mode) {
+    case EXACT:
+    case PREFIX:
+      scanIndex(NAME_IDX, query.name, query.prefix, idx -> {
+        if (matches(idx, query, expOnly)) into.add(toDef(idx));
+      });
+      break;
+
+    default:
+      // gather candidates from the camel and trigram indices (as MapDBStore does), then score
+      // their names to weed out the ones that don't actually match
+      IntList cands = new IntList();
+      StringBuilder initials = new StringBuilder();
+      for (String hump : query.humps) initials.append(hump.charAt(0));
+      if (initials.length() > 0) scanIndex(CAMEL_IDX, initials.toString(), true, cands::add);
+      if (query.mode == Query.Mode.FUZZY) {
+        addTrigramCandidates(query.name, cands);
+        scanIndex(NAME_IDX, query.name, true, cands::add);
+      }
+      int[] ids = cands.sortedDistinct();
+      for (int idx : ids) {
+        if (matches(idx, query, expOnly) && query.score(name(idx), () -> outerName(idx)) !=
+            NameMatcher.NO_MATCH) into.add(toDef(idx));
+      }
+      break;
+    }
+  }
+
+  @Override public String idToString (Long id) {
+    return String.valueOf(id);
+  }
+
+  @Override public void clear () {
+    throw new UnsupportedOperationException("Mapped stores are read-only: " + name);
+  }
+
+  @Override public void close () {
+    // a mapped buffer is unmapped when it's garbage collected, there's no way to do so sooner
+  }
+
+  private Def toDef (int idx) {
+    int rec = defRec(idx), outer = _buf.getInt(rec + DEF_OUTER);
+    return new Def(this, Long.valueOf(idx), (outer < 0) ? null : Long.valueOf(outer),
+                   KINDS[_buf.get(rec + DEF_KIND)], FLAVORS[_buf.get(rec + DEF_FLAVOR)],
+                   _buf.get(rec + DEF_EXPORTED) != 0, ACCESSES[_buf.get(rec + DEF_ACCESS)],
+                   str(_buf.getInt(rec + DEF_NAME)), _buf.getInt(rec + DEF_OFFSET),
+                   _buf.getInt(rec + DEF_BODY), _buf.getInt(rec + DEF_BODY + 4));
+  }
+
+  private String name (int idx) {
+    return str(_buf.getInt(defRec(idx) + DEF_NAME));
+  }
+
+  private String outerName (int idx) {
+    int outer = _buf.getInt(defRec(idx) + DEF_OUTER);
+    return (outer < 0) ? null : name(outer);
+  }
+
+  private boolean matches (int idx, Query query, boolean expOnly) {
+    int rec = defRec(idx);
+    return query.kinds.contains(KINDS[_buf.get(rec + DEF_KIND)]) &&
+      (!expOnly || _buf.get(rec + DEF_EXPORTED) != 0);
+  }
+
+  private int defIdx (Long defId) {
+    long id = defId.longValue();
+    if (id < 0 || id >= _defCount) throw new NoSuchElementException("No def with id " + id);
+    return (int)id;
+  }
+
+  private int defRec (int idx) {
+    return _base[DEFS] + idx*DEF_SIZE;
+  }
+
+  private int sourceRec (int srcIdx) {
+    return _base[SOURCES] + srcIdx*SOURCE_SIZE;
+  }
+
+  private Source sourceOf (int srcIdx) {
+    return Source.fromString(str(_buf.getInt(sourceRec(srcIdx) + SRC_PATH)));
+  }
+
+  private int findSource (String path) {
+    int lo = 0, hi = _size[SOURCES] / SOURCE_SIZE;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1, cmp = compareStr(_buf.getInt(sourceRec(mid) + SRC_PATH), path);
+      if (cmp == 0) return mid;
+      if (cmp < 0) lo = mid + 1; else hi = mid;
+    }
+    return -1;
+  }
+
+  private List<Use> uses (int pos) {
+    int start = _buf.getInt(pos), count = _buf.getInt(pos + 4);
+    List<Use> uses = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) {
+      int rec = _base[USES] + (start+ii)*USE_SIZE;
+      byte kind = _buf.get(rec + 12); // -1 for unknown kind
+      uses.add(new Use(targetRef(_buf.getInt(rec)), (kind < 0) ? null : KINDS[kind],
+                       _buf.getInt(rec + 4), _buf.getInt(rec + 8)));
+    }
+    return uses;
+  }
+
+  /** Targets (of uses and relations) are def indices if non-negative, global indices otherwise. */
+  private Ref targetRef (int target) {
+    return (target >= 0) ? Ref.local(this, Long.valueOf(target)) : global(-target-1);
+  }
+
+  private int target (Ref ref) {
+    if (ref instanceof Ref.Local) {
+      Ref.Local lref = (Ref.Local)ref;
+      if (lref.project == this) return defIdx(lref.defId);
+      ref = lref.project.ref(lref.defId);
+    }
+    Ref.Global gref = (Ref.Global)ref;
+    int gidx = globalIdx(gref);
+    if (gidx < 0) return NO_TARGET;
+    int idx = _buf.getInt(_base[GLOBAL_DEFS] + gidx*4);
+    return (idx >= 0) ? idx : -gidx-1;
+  }
+
+  private int definedIdx (Ref.Global ref) {
+    int gidx = globalIdx(ref);
+    return (gidx < 0) ? -1 : _buf.getInt(_base[GLOBAL_DEFS] + gidx*4);
+  }
+
+  private Ref.Global global (int gidx) {
+    if (gidx < 0) return Ref.Global.ROOT;
+    // races are harmless, as global refs are interned
+    Ref.Global ref = _globals[gidx];
+    if (ref == null) {
+      int rec = _base[GLOBALS] + gidx*GLOBAL_SIZE;
+      _globals[gidx] = ref = global(_buf.getInt(rec)).plus(str(_buf.getInt(rec + 4)));
+    }
+    return ref;
+  }
+
+  private int globalIdx (Ref.Global ref) {
+    if (ref == Ref.Global.ROOT) return -1;
+    int hash = nameHash(ref), base = _base[GLOBAL_HASH], count = _size[GLOBAL_HASH] / HASH_SIZE;
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (_buf.getInt(base + mid*HASH_SIZE) < hash) lo = mid + 1; else hi = mid;
+    }
+    for (int ii = lo; ii < count && _buf.getInt(base + ii*HASH_SIZE) == hash; ii++) {
+      int gidx = _buf.getInt(base + ii*HASH_SIZE + 4);
+      if (globalMatches(gidx, ref)) return gidx;
+    }
+    return -1;
+  }
+
+  private boolean globalMatches (int gidx, Ref.Global ref) {
+    for (; ref != Ref.Global.ROOT; ref = ref.parent) {
+      if (gidx < 0) return false;
+      int rec = _base[GLOBALS] + gidx*GLOBAL_SIZE;
+      if (compareStr(_buf.getInt(rec + 4), ref.id) != 0) return false;
+      gidx = _buf.getInt(rec);
+    }
+    return gidx < 0;
+  }
+
+  /** Applies {@code fn} to the def index of each entry of the string keyed index {@code sec}
+    * whose key equals {@code key} or, if {@code prefix}, starts with it. */
+  private void scanIndex (int sec, String key, boolean prefix, IntConsumer fn) {
+    int base = _base[sec], count = _size[sec] / INDEX_SIZE;
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareStr(_buf.getInt(base + mid*INDEX_SIZE), key) < 0) lo = mid + 1; else hi = mid;
+    }
+    for (int ii = lo; ii < count; ii++) {
+      int str = _buf.getInt(base + ii*INDEX_SIZE);
+      if (prefix ? !strStartsWith(str, key) : compareStr(str, key) != 0) break;
+      fn.accept(_buf.getInt(base + ii*INDEX_SIZE + 4));
+    }
+  }
+
+  private void addTrigramCandidates (String name, IntList cands) {
+    // any name with at least half of the query's trigrams has one of the k-ceil(k/2)+1 rarest
+    int count = name.length()-2;
+    if (count <= 0) return;
+    long[] keys = new long[count];
+    for (int ii = 0; ii < count; ii++) keys[ii] = trigramKey(name, ii);
+    Arrays.sort(keys);
+    int distinct = 0;
+    for (int ii = 0; ii < count; ii++) {
+      if (ii == 0 || keys[ii] != keys[ii-1]) keys[distinct++] = keys[ii];
+    }
+    int[] starts = new int[distinct], ends = new int[distinct];
+    Integer[] order = new Integer[distinct];
+    for (int ii = 0; ii < distinct; ii++) {
+      starts[ii] = trigramBound(keys[ii], false);
+      ends[ii] = trigramBound(keys[ii], true);
+      order[ii] = ii;
+    }
+    Arrays.sort(order, Comparator.comparingInt(ii -> ends[ii] - starts[ii]));
+    int base = _base[TRIGRAM_IDX];
+    for (int oo = 0, ll = distinct - (distinct+1)/2 + 1; oo < ll; oo++) {
+      for (int ii = starts[order[oo]], end = ends[order[oo]]; ii < end; ii++) {
+        cands.add(_buf.getInt(base + ii*TRIGRAM_SIZE + 8));
+      }
+    }
+  }
+
+  // returns the index of the first entry with a key greater than (or equal to) key
+  private int trigramBound (long key, boolean after) {
+    int base = _base[TRIGRAM_IDX], lo = 0, hi = _size[TRIGRAM_IDX] / TRIGRAM_SIZE;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      long mkey = _buf.getLong(base + mid*TRIGRAM_SIZE);
+      if (mkey < key || (after && mkey == key)) lo = mid + 1; else hi = mid;
+    }
+    return lo;
+  }
+
+  private String str (int off) {
+    int pos = _base[STRINGS] + off, header = _buf.getInt(pos), length = header >>> 1;
+    char[] chars = new char[length];
+    if ((header & 1) == 0) for (int ii = 0; ii < length; ii++) {
+      chars[ii] = (char)(_buf.get(pos + 4 + ii) & 0xFF);
+    } else for (int ii = 0; ii < length; ii++) {
+      chars[ii] = _buf.getChar(pos + 4 + ii*2);
+    }
+    return new String(chars);
+  }
+
+  private char strChar (int pos, boolean wide, int ii) {
+    return wide ? _buf.getChar(pos + 4 + ii*2) : (char)(_buf.get(pos + 4 + ii) & 0xFF);
+  }
+
+  // compares the pooled string at off to str, like String.compareTo
+  private int compareStr (int off, String str) {
+    int pos = _base[STRINGS] + off, header = _buf.getInt(pos), length = header >>> 1;
+    boolean wide = (header & 1) != 0;
+    for (int ii = 0, ll = Math.min(length, str.length()); ii < ll; ii++) {
+      int cmp = strChar(pos, wide, ii) - str.charAt(ii);
+      if (cmp != 0) return cmp;
+    }
+    return length - str.length();
+  }
+
+  private boolean strStartsWith (int off, String prefix) {
+    int pos = _base[STRINGS] + off, header = _buf.getInt(pos), length = header >>> 1;
+    if (length < prefix.length()) return false;
+    boolean wide = (header & 1) != 0;
+    for (int ii = 0, ll = prefix.length(); ii < ll; ii++) {
+      if (strChar(pos, wide, ii) != prefix.charAt(ii)) return false;
+    }
+    return true;
+  }
+
+  /** A hash of the components of a global name, which doesn't depend on {@link Ref.Global}'s own
+    * hash code, so that stored hashes can't be invalidated by changes to it. */
+  static int nameHash (Ref.Global ref) {
+    return (ref == Ref.Global.ROOT) ? 0 : 31*nameHash(ref.parent) + ref.id.hashCode();
+  }
+
+  /** Packs the three (lower case) characters of the trigram at {@code idx} in {@code name}. */
+  static long trigramKey (String name, int idx) {
+    return ((long)name.charAt(idx) << 32) | ((long)name.charAt(idx+1) << 16) | name.charAt(idx+2);
+  }
+
+  private interface IntConsumer { void accept (int value); }
+
+  private final ByteBuffer _buf;
+  private final int[] _base = new int[SECTIONS], _size = new int[SECTIONS];
+  private final int _defCount;
+  private final Ref.Global[] _globals;
+
+  private static final Kind[] KINDS = Kind.values();
+  private static final Flavor[] FLAVORS = Flavor.values();
+  private static final Access[] ACCESSES = Access.values();
+
+  private static final int NO_TARGET = Integer.MIN_VALUE;
+
+  // the file format, shared with MappedStoreCompiler
+  static final int MAGIC = 0x43445853; // CDXS
+  static final int VERSION = 1;
+
+  // the sections, in file order; the header contains the offset and size in bytes of each
+  static final int STRINGS     = 0;  // (length << 1 | wide) int, then latin-1 bytes or chars
+  static final int GLOBALS     = 1;  // parent global int, id string int
+  static final int GLOBAL_HASH = 2;  // name hash int, global int; sorted
+  static final int GLOBAL_DEFS = 3;  // def int (or -1) for each global
+  static final int DEFS        = 4;  // see DEF_*
+  static final int SOURCES     = 5;  // see SRC_*; sorted by path
+  static final int TOP         = 6;  // def int
+  static final int MEMBERS     = 7;  // def int
+  static final int USES        = 8;  // target int, offset int, length int, kind byte
+  static final int SIGS        = 9;  // text string int, uses start int, uses count int
+  static final int DOCS        = 10; // offset int, length int, uses start int, uses count int
+  static final int RELS        = 11; // relation code byte, target int
+  static final int RELS_TO     = 12; // target int, relation code byte, def int; sorted
+  static final int POSTS       = 13; // target int, def int, offset int; sorted
+  static final int NAME_IDX    = 14; // lower case name string int, def int; sorted
+  static final int CAMEL_IDX   = 15; // hump initials string int, def int; sorted
+  static final int TRIGRAM_IDX = 16; // trigram key long, def int; sorted
+  static final int SECTIONS    = 17;
+
+  static final int HEADER_SIZE = 8 + SECTIONS*8;
+
+  static final int GLOBAL_SIZE = 8, HASH_SIZE = 8, USE_SIZE = 13, SIG_SIZE = 12, DOC_SIZE = 16;
+  static final int REL_SIZE = 5, RELTO_SIZE = 9, POST_SIZE = 12, INDEX_SIZE = 8;
+  static final int TRIGRAM_SIZE = 12;
+
+  // the layout of a def record; enums are stored as ordinals
+  static final int DEF_OUTER    = 0;  // outer def int, or -1
+  static final int DEF_GLOBAL   = 4;  // global int
+  static final int DEF_NAME     = 8;  // name string int
+  static final int DEF_SOURCE   = 12; // source int
+  static final int DEF_OFFSET   = 16; // offset int
+  static final int DEF_BODY     = 20; // body start int, body end int
+  static final int DEF_KIND     = 28; // kind byte
+  static final int DEF_FLAVOR   = 29; // flavor byte
+  static final int DEF_ACCESS   = 30; // access byte
+  static final int DEF_EXPORTED = 31; // exported byte
+  static final int DEF_SIG      = 32; // sig int, or -1
+  static final int DEF_DOC      = 36; // doc int, or -1
+  static final int DEF_USES     = 40; // uses start int, uses count int
+  static final int DEF_MEMS     = 48; // members start int, members count int
+  static final int DEF_RELS     = 56; // relations start int, relations count int
+  static final int DEF_SIZE     = 64;
+
+  // the layout of a source record
+  static final int SRC_PATH     = 0;  // path string int
+  static final int SRC_DEFS     = 4;  // defs start int, defs count int
+  static final int SRC_INDEXED  = 12; // last indexed long
+  static final int SOURCE_SIZE  = 20;
+}
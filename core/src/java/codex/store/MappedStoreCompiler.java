@@ -0,0 +1,343 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.model.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import static codex.store.MappedStore.*;
+
+/**
+ * Compiles a project store into the {@link MappedStore} file format. The store is read entirely
+ * via the {@link ProjectStore} API, and the file is assembled in memory and then written in one go.
+ */
+class MappedStoreCompiler {
+
+  public MappedStoreCompiler (ProjectStore store) {
+    _store = store;
+  }
+
+  public void write (Path path) throws IOException {
+    collectDefs();
+    // intern the names of all of our defs first, so that we know which globals we define when we
+    // encode the targets of uses and relations
+    for (int ii = 0; ii < _defs.size(); ii++) {
+      _defGlobals[ii] = global(_store.ref(_defs.get(ii).id));
+    }
+    _globalDefs = new int[_globalParents.size()];
+    Arrays.fill(_globalDefs, -1);
+    for (int ii = 0; ii < _defs.size(); ii++) _globalDefs[_defGlobals[ii]] = ii;
+
+    Section defs = new Section(), sources = new Section(), top = new Section();
+    Section members = new Section(), sigs = new Section(), docs = new Section();
+    Section rels = new Section();
+    List<long[]> relsTo = new ArrayList<>();
+    List<Object[]> names = new ArrayList<>(), camels = new ArrayList<>();
+    List<long[]> trigrams = new ArrayList<>();
+
+    int memCount = 0, relCount = 0, sigCount = 0, docCount = 0;
+    for (int ii = 0; ii < _defs.size(); ii++) {
+      Def def = _defs.get(ii);
+      Integer outer = (def.outerId == null) ? null : _defIdx.get(def.outerId);
+      if (outer == null) top.putInt(ii);
+
+      int sig = -1, doc = -1;
+      Optional<Sig> osig = _store.sig(def.id);
+      if (osig.isPresent()) {
+        sigs.putInt(string(osig.get().text));
+        writeUses(sigs, osig.get().uses, -1);
+        sig = sigCount++;
+      }
+      Optional<Doc> odoc = _store.doc(def.id);
+      if (odoc.isPresent()) {
+        docs.putInt(odoc.get().offset);
+        docs.putInt(odoc.get().length);
+        writeUses(docs, odoc.get().uses, -1);
+        doc = docCount++;
+      }
+
+      defs.putInt(outer == null ? -1 : outer);
+      defs.putInt(_defGlobals[ii]);
+      defs.putInt(string(def.name));
+      defs.putInt(_defSources[ii]);
+      defs.putInt(def.offset);
+      defs.putInt(def.bodyStart);
+      defs.putInt(def.bodyEnd);
+      defs.putByte(def.kind.ordinal());
+      defs.putByte(def.flavor.ordinal());
+      defs.putByte(def.access.ordinal());
+      defs.putByte(def.exported ? 1 : 0);
+      defs.putInt(sig);
+      defs.putInt(doc);
+      writeUses(defs, _store.usesIn(def.id), ii);
+
+      int memStart = memCount;
+      for (Def mem : _store.defsIn(def.id)) {
+        Integer memIdx = _defIdx.get(mem.id);
+        if (memIdx != null) { members.putInt(memIdx); memCount++; }
+      }
+      defs.putInt(memStart);
+      defs.putInt(memCount - memStart);
+
+      int relStart = relCount;
+      for (Relation rel : Relation.values()) {
+        for (Ref ref : _store.relationsFrom(rel, def.id)) {
+          int target = target(ref);
+          rels.putByte(rel.code);
+          rels.putInt(target);
+          relsTo.add(new long[] { target, rel.code, ii });
+          relCount++;
+        }
+      }
+      defs.putInt(relStart);
+      defs.putInt(relCount - relStart);
+
+      String lname = def.name.toLowerCase();
+      names.add(new Object[] { lname, ii });
+      camels.add(new Object[] { NameMatcher.initials(def.name), ii });
+      for (int tt = 0, ll = lname.length()-2; tt < ll; tt++) {
+        trigrams.add(new long[] { trigramKey(lname, tt), ii });
+      }
+    }
+
+    for (int ss = 0; ss < _sourceList.size(); ss++) {
+      Source source = _sourceList.get(ss);
+      sources.putInt(string(source.toString()));
+      sources.putInt(_sourceStarts[ss]);
+      sources.putInt(_sourceStarts[ss+1] - _sourceStarts[ss]);
+      sources.putLong(_store.lastIndexed(source));
+    }
+
+    // now that we've seen every global, we can write the global tables
+    Section globals = new Section(), globalHash = new Section(), globalDefs = new Section();
+    List<long[]> hashes = new ArrayList<>();
+    for (int gg = 0; gg < _globalParents.size(); gg++) {
+      globals.putInt(_globalParents.get(gg));
+      globals.putInt(_globalIds.get(gg));
+      hashes.add(new long[] { nameHash(_globalRefs.get(gg)), gg });
+      globalDefs.putInt(gg < _globalDefs.length ? _globalDefs[gg] : -1);
+    }
+    writeSorted(globalHash, hashes, 4, 4);
+    Section relsToSec = new Section(), postsSec = new Section();
+    writeSorted(relsToSec, relsTo, 4, 1, 4);
+    writeSorted(postsSec, _posts, 4, 4, 4);
+    Section nameIdx = new Section(), camelIdx = new Section(), trigramIdx = new Section();
+    writeStringIndex(nameIdx, names);
+    writeStringIndex(camelIdx, camels);
+    writeSorted(trigramIdx, trigrams, 8, 4);
+
+    Section[] sections = new Section[SECTIONS];
+    sections[STRINGS] = _strings;
+    sections[GLOBALS] = globals;
+    sections[GLOBAL_HASH] = globalHash;
+    sections[GLOBAL_DEFS] = globalDefs;
+    sections[DEFS] = defs;
+    sections[SOURCES] = sources;
+    sections[TOP] = top;
+    sections[MEMBERS] = members;
+    sections[USES] = _uses;
+    sections[SIGS] = sigs;
+    sections[DOCS] = docs;
+    sections[RELS] = rels;
+    sections[RELS_TO] = relsToSec;
+    sections[POSTS] = postsSec;
+    sections[NAME_IDX] = nameIdx;
+    sections[CAMEL_IDX] = camelIdx;
+    sections[TRIGRAM_IDX] = trigramIdx;
+
+    long total = HEADER_SIZE;
+    for (Section sec : sections) total += sec.size();
+    if (total > Integer.MAX_VALUE) throw new IOException(
+      "Store " + _store.name + " too large for a mapped store (" + total + " bytes)");
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION);
+    int offset = HEADER_SIZE;
+    for (Section sec : sections) {
+      header.putInt(offset).putInt(sec.size());
+      offset += sec.size();
+    }
+    header.flip();
+
+    // write to a temporary file and move it into place, so that readers never see a partial file
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel chan = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                             StandardOpenOption.WRITE,
+                                             StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining()) chan.write(header);
+      for (Section sec : sections) {
+        ByteBuffer buf = ByteBuffer.wrap(sec.toByteArray());
+        while (buf.hasRemaining()) chan.write(buf);
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Collects all of the store's defs, grouped by source (sorted by path), and numbers them. */
+  private void collectDefs () {
+    Map<String,List<Def>> bySource = new TreeMap<>();
+    Map<String,Source> sources = new HashMap<>();
+    Set<Long> seen = new HashSet<>();
+    Deque<Def> pending = new ArrayDeque<>();
+    for (Def def : _store.topLevelDefs()) pending.add(def);
+    while (!pending.isEmpty()) {
+      Def def = pending.removeFirst();
+      if (!seen.add(def.id)) continue;
+      Source source = _store.source(def.id);
+      String path = source.toString();
+      sources.putIfAbsent(path, source);
+      bySource.computeIfAbsent(path, p -> new ArrayList<>()).add(def);
+      List<Def> mems = new ArrayList<>();
+      for (Def mem : _store.defsIn(def.id)) mems.add(mem);
+      // visit members next, so that defs are in (roughly) source order
+      for (int ii = mems.size()-1; ii >= 0; ii--) pending.addFirst(mems.get(ii));
+    }
+
+    _sourceStarts = new int[bySource.size()+1];
+    int ss = 0;
+    for (Map.Entry<String,List<Def>> entry : bySource.entrySet()) {
+      _sourceStarts[ss] = _defs.size();
+      _sourceList.add(sources.get(entry.getKey()));
+      for (Def def : entry.getValue()) _defs.add(def);
+      ss++;
+    }
+    _sourceStarts[ss] = _defs.size();
+
+    _defSources = new int[_defs.size()];
+    _defGlobals = new int[_defs.size()];
+    for (ss = 0; ss < _sourceList.size(); ss++) {
+      for (int ii = _sourceStarts[ss]; ii < _sourceStarts[ss+1]; ii++) _defSources[ii] = ss;
+    }
+    for (int ii = 0; ii < _defs.size(); ii++) _defIdx.put(_defs.get(ii).id, ii);
+  }
+
+  /** Writes the (start, count) of {@code uses} in the uses section to {@code sec}, and records a
+    * posting for each use of {@code defIdx}, if it's not -1. */
+  private void writeUses (Section sec, Iterable<Use> uses, int defIdx) {
+    int start = _useCount;
+    for (Use use : uses) {
+      int target = target(use.ref);
+      _uses.putInt(target);
+      _uses.putInt(use.offset);
+      _uses.putInt(use.length);
+      _uses.putByte(use.refKind == null ? -1 : use.refKind.ordinal());
+      if (defIdx >= 0) _posts.add(new long[] { target, defIdx, use.offset });
+      _useCount++;
+    }
+    sec.putInt(start);
+    sec.putInt(_useCount - start);
+  }
+
+  /** Returns the def index for a ref to one of our defs, or the encoded global index otherwise. */
+  private int target (Ref ref) {
+    if (ref instanceof Ref.Local) {
+      Ref.Local lref = (Ref.Local)ref;
+      Integer idx = (lref.project == _store) ? _defIdx.get(lref.defId) : null;
+      if (idx != null) return idx;
+      ref = lref.project.ref(lref.defId);
+    }
+    int gidx = global((Ref.Global)ref);
+    // a global ref to one of our own defs targets that def
+    if (gidx < _globalDefs.length && _globalDefs[gidx] >= 0) return _globalDefs[gidx];
+    return -gidx-1;
+  }
+
+  private int global (Ref.Global ref) {
+    if (ref == Ref.Global.ROOT) return -1;
+    Integer gidx = _globalIdx.get(ref);
+    if (gidx == null) {
+      int parent = global(ref.parent);
+      _globalIdx.put(ref, gidx = _globalParents.size());
+      _globalParents.add(parent);
+      _globalIds.add(string(ref.id));
+      _globalRefs.add(ref);
+    }
+    return gidx;
+  }
+
+  private int string (String str) {
+    Integer off = _stringOffs.get(str);
+    if (off == null) {
+      _stringOffs.put(str, off = _strings.size());
+      boolean wide = false;
+      for (int ii = 0, ll = str.length(); ii < ll; ii++) wide |= (str.charAt(ii) > 0xFF);
+      _strings.putInt(str.length() << 1 | (wide ? 1 : 0));
+      for (int ii = 0, ll = str.length(); ii < ll; ii++) {
+        if (wide) _strings.putChar(str.charAt(ii));
+        else _strings.putByte(str.charAt(ii));
+      }
+    }
+    return off;
+  }
+
+  /** Sorts {@code entries} (by their elements, in order) and writes each element of each entry
+    * using the corresponding number of bytes in {@code widths}. */
+  private static void writeSorted (Section sec, List<long[]> entries, int... widths) {
+    entries.sort((a, b) -> {
+      for (int ii = 0; ii < a.length; ii++) {
+        int cmp = Long.compare(a[ii], b[ii]);
+        if (cmp != 0) return cmp;
+      }
+      return 0;
+    });
+    for (long[] entry : entries) {
+      for (int ii = 0; ii < widths.length; ii++) {
+        switch (widths[ii]) {
+        case 1: sec.putByte((int)entry[ii]); break;
+        case 4: sec.putInt((int)entry[ii]); break;
+        default: sec.putLong(entry[ii]); break;
+        }
+      }
+    }
+  }
+
+  /** Sorts {@code entries} of (string, def index) and writes them as an index section. */
+  private void writeStringIndex (Section sec, List<Object[]> entries) {
+    entries.sort((a, b) -> {
+      int cmp = ((String)a[0]).compareTo((String)b[0]);
+      return (cmp != 0) ? cmp : Integer.compare((Integer)a[1], (Integer)b[1]);
+    });
+    for (Object[] entry : entries) {
+      sec.putInt(string((String)entry[0]));
+      sec.putInt((Integer)entry[1]);
+    }
+  }
+
+  /** A growable section of the file, in big endian byte order (like ByteBuffer). */
+  private static class Section extends ByteArrayOutputStream {
+    void putByte (int value) { write(value); }
+    void putChar (int value) { write(value >>> 8); write(value); }
+    void putInt (int value) { putChar(value >>> 16); putChar(value); }
+    void putLong (long value) { putInt((int)(value >>> 32)); putInt((int)value); }
+  }
+
+  private final ProjectStore _store;
+
+  private final List<Def> _defs = new ArrayList<>();
+  private final Map<Long,Integer> _defIdx = new HashMap<>();
+  private int[] _defSources, _defGlobals;
+
+  private final List<Source> _sourceList = new ArrayList<>();
+  private int[] _sourceStarts;
+
+  private final Map<Ref.Global,Integer> _globalIdx = new HashMap<>();
+  private final List<Integer> _globalParents = new ArrayList<>(), _globalIds = new ArrayList<>();
+  private final List<Ref.Global> _globalRefs = new ArrayList<>();
+  private int[] _globalDefs = new int[0];
+
+  private final Section _strings = new Section();
+  private final Map<String,Integer> _stringOffs = new HashMap<>();
+
+  private final Section _uses = new Section();
+  private int _useCount;
+  private final List<long[]> _posts = new ArrayList<>();
+}
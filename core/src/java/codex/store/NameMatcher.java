@@ -0,0 +1,164 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Name matching and ranking for camel-case and fuzzy queries, along with the name decompositions
+ * (camel hump initials and trigrams) used by stores to index names for such queries.
+ */
+public final class NameMatcher {
+
+  /** Returned by the scoring methods for names that don't match a query. */
+  public static final int NO_MATCH = -1;
+
+  /**
+   * Returns the indices at which each camel hump in {@code name} starts. A hump starts at an
+   * upper case letter that follows a lower case letter (getName), at the last upper case letter in
+   * a run followed by a lower case letter (URLPath), at a letter or digit that follows a digit or
+   * letter (utf8Encode), and at any letter or digit that follows punctuation (MAX_VALUE).
+   */
+  public static int[] humpStarts (String name) {
+    int[] starts = new int[name.length()];
+    int count = 0;
+    for (int ii = 0, ll = name.length(); ii < ll; ii++) {
+      if (isHumpStart(name, ii)) starts[count++] = ii;
+    }
+    int[] result = new int[count];
+    System.arraycopy(starts, 0, result, 0, count);
+    return result;
+  }
+
+  /** Returns the (lower case) first character of each of the camel humps of {@code name}. For
+    * example, {@code RefGlobalSerializer} yields {@code rgs}. */
+  public static String initials (String name) {
+    StringBuilder sb = new StringBuilder();
+    for (int ii = 0, ll = name.length(); ii < ll; ii++) {
+      if (isHumpStart(name, ii)) sb.append(Character.toLowerCase(name.charAt(ii)));
+    }
+    return sb.toString();
+  }
+
+  /** Applies {@code fn} to each trigram of {@code name}, which should already be lower case. Names
+    * shorter than three characters have no trigrams. A trigram may be reported more than once. */
+  public static void trigrams (String name, Consumer<String> fn) {
+    for (int ii = 0, ll = name.length()-2; ii < ll; ii++) fn.accept(name.substring(ii, ii+3));
+  }
+
+  /**
+   * Splits a camel-case query into its humps, each lower cased. A query that is all upper or all
+   * lower case ({@code RGS}, {@code rgs}) is treated as a list of initials, one per hump.
+   * Otherwise the query is split like a name ({@code RefGS} yields {@code ref, g, s}).
+   */
+  public static List<String> queryHumps (String query) {
+    List<String> humps = new ArrayList<>();
+    boolean upper = query.equals(query.toUpperCase()), lower = query.equals(query.toLowerCase());
+    if (upper || lower) {
+      for (int ii = 0, ll = query.length(); ii < ll; ii++) {
+        char c = query.charAt(ii);
+        if (Character.isLetterOrDigit(c)) humps.add(String.valueOf(Character.toLowerCase(c)));
+      }
+    } else {
+      int[] starts = humpStarts(query);
+      for (int ii = 0; ii < starts.length; ii++) {
+        int end = (ii == starts.length-1) ? query.length() : starts[ii+1];
+        String hump = query.substring(starts[ii], end).replaceAll("[^\\p{Alnum}]", "");
+        humps.add(hump.toLowerCase());
+      }
+    }
+    return humps;
+  }
+
+  /**
+   * Scores {@code name} against a camel-case query. Each query hump must be a prefix of the
+   * corresponding hump of {@code name}, starting with the first. Names with fewer extra humps and
+   * fewer unmatched characters score higher.
+   *
+   * @param humps the humps of the query, from {@link #queryHumps}.
+   * @return the score (zero or more), or {@link #NO_MATCH}.
+   */
+  public static int camelScore (List<String> humps, String name) {
+    int[] starts = humpStarts(name);
+    if (humps.isEmpty() || humps.size() > starts.length) return NO_MATCH;
+    int matched = 0;
+    for (int ii = 0, ll = humps.size(); ii < ll; ii++) {
+      String hump = humps.get(ii);
+      int end = (ii == starts.length-1) ? name.length() : starts[ii+1];
+      if (hump.length() > end - starts[ii] ||
+          !name.regionMatches(true, starts[ii], hump, 0, hump.length())) return NO_MATCH;
+      matched += hump.length();
+    }
+    int score = 100 - 10*(starts.length - humps.size()) - (name.length() - matched)/2;
+    return Math.max(score, 0) + (starts.length == humps.size() ? EXACT_BONUS : 0);
+  }
+
+  /**
+   * Scores {@code name} against a fuzzy query. The characters of {@code query} must appear in
+   * order in {@code name} (ignoring case), but need not be adjacent. Among the ways to align the
+   * query with the name, the best is chosen, rewarding characters that start a camel hump and runs
+   * of adjacent characters, and penalizing skipped characters. Exact and prefix matches get a
+   * further bonus.
+   *
+   * @param query the lower case query.
+   * @return the score (zero or more), or {@link #NO_MATCH}.
+   */
+  public static int fuzzyScore (String query, String name) {
+    int qlen = query.length(), nlen = name.length();
+    if (qlen == 0) return 0;
+    if (qlen > nlen) return NO_MATCH;
+
+    // best[j] is the best score of an alignment of the query so far whose last char is at j
+    int[] prev = new int[nlen], best = new int[nlen];
+    for (int qq = 0; qq < qlen; qq++) {
+      char qc = query.charAt(qq);
+      // the best score of an alignment of the previous query chars ending before j, less the
+      // penalty for the characters skipped between it and j
+      int run = NONE;
+      for (int jj = 0; jj < nlen; jj++) {
+        if (qq > 0 && jj > 0) run = Math.max(run - GAP_PENALTY, prev[jj-1]);
+        int score;
+        if (jj < qq || Character.toLowerCase(name.charAt(jj)) != qc) score = NONE;
+        else if (qq == 0) score = -Math.min(jj, MAX_LEAD_PENALTY);
+        else score = Math.max(run, prev[jj-1] + ADJACENT_BONUS);
+        if (score != NONE) score += 1 + (isHumpStart(name, jj) ? HUMP_BONUS : 0);
+        best[jj] = Math.max(score, NONE);
+      }
+      int[] tmp = prev; prev = best; best = tmp;
+    }
+
+    int score = NONE;
+    for (int jj = 0; jj < nlen; jj++) score = Math.max(score, prev[jj]);
+    if (score <= NONE/2) return NO_MATCH;
+    score = Math.max(score, 0);
+    if (nlen == qlen && name.equalsIgnoreCase(query)) score += EXACT_BONUS;
+    else if (name.regionMatches(true, 0, query, 0, qlen)) score += PREFIX_BONUS;
+    return score;
+  }
+
+  private static boolean isHumpStart (String name, int idx) {
+    char c = name.charAt(idx);
+    if (!Character.isLetterOrDigit(c)) return false;
+    if (idx == 0) return true;
+    char p = name.charAt(idx-1);
+    if (!Character.isLetterOrDigit(p)) return true;
+    if (Character.isDigit(c) != Character.isDigit(p)) return true;
+    if (Character.isUpperCase(c)) {
+      if (Character.isLowerCase(p)) return true;
+      // the last upper case letter of a run that's followed by lower case: URL|Path
+      return idx+1 < name.length() && Character.isLowerCase(name.charAt(idx+1));
+    }
+    return false;
+  }
+
+  private static final int NONE = Integer.MIN_VALUE/4;
+  private static final int GAP_PENALTY = 1, MAX_LEAD_PENALTY = 8;
+  private static final int HUMP_BONUS = 8, ADJACENT_BONUS = 4;
+  private static final int PREFIX_BONUS = 20, EXACT_BONUS = 50;
+
+  private NameMatcher () {} // static methods only
+}
@@ -6,12 +6,19 @@ package codex.store;
 
 import codex.extract.Writer;
 import codex.model.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Contains metadata for a single project. NOTE: the use of {@code Long} in this API does not mean
@@ -19,6 +26,23 @@ import java.util.function.Consumer;
  */
 public abstract class ProjectStore implements AutoCloseable {
 
+  /** A def along with its signature, uses and relations, as delivered by {@link #scanDefData}. */
+  public static final class DefData {
+    public final Def def;
+    public final Optional<Sig> sig;
+    /** The uses nested immediately inside {@link #def} (see {@link #usesIn}). */
+    public final List<Use> uses;
+    /** The targets of each of {@link #def}'s relations, omitting relations that it lacks. */
+    public final Map<Relation,Set<Ref>> relations;
+
+    public DefData (Def def, Optional<Sig> sig, List<Use> uses, Map<Relation,Set<Ref>> relations) {
+      this.def = def;
+      this.sig = sig;
+      this.uses = uses;
+      this.relations = relations;
+    }
+  }
+
   /** The user friendly name of this project. */
   public final String name;
 
@@ -32,9 +56,30 @@ public abstract class ProjectStore implements AutoCloseable {
     * never been indexed by this project. */
   public abstract long lastIndexed (Source source);
 
+  /** Returns the hash of the contents of {@code source} as of when it was last indexed by this
+    * project, 0L if it has never been indexed or its extractor didn't report one (see {@link
+    * Writer#emitHashes}). The default implementation always returns 0L. */
+  public long contentHash (Source source) {
+    return 0L;
+  }
+
+  /** Returns the hash of the public API of {@code source} as of when it was last indexed by this
+    * project, 0L if it has never been indexed or its extractor didn't report one (see {@link
+    * Writer#emitHashes}). The default implementation always returns 0L. */
+  public long apiHash (Source source) {
+    return 0L;
+  }
+
   /** Returns all defs in the specified source file. */
   public abstract Iterable<Def> sourceDefs (Source source);
 
+  /** Returns false if this project definitely does not define {@code ref}, true if it may. This
+    * is meant to be much cheaper than {@link #def(Ref.Global)}, so that resolution can skip
+    * projects that don't define a name. The default implementation always returns true. */
+  public boolean mayDefine (Ref.Global ref) {
+    return true;
+  }
+
   /** Returns the def referred to by {@code ref}, if it is part of this project. */
   public abstract Optional<Def> def (Ref.Global ref);
 
@@ -58,6 +103,32 @@ public abstract class ProjectStore implements AutoCloseable {
     * @throws NoSuchElementException if no def exists with that id. */
   public abstract Source source (Long defId);
 
+  /** Returns the defs with ids {@code defIds}, in the same order as the ids. Stores resolve a
+    * batch of ids in a single pass (in id order) over their defs, which is cheaper than looking up
+    * each id separately. The default implementation calls {@link #def(Long)} for each id.
+    * @throws NoSuchElementException if no def exists with one of the ids. */
+  public List<Def> defs (long[] defIds) {
+    List<Def> defs = new ArrayList<>(defIds.length);
+    for (long defId : defIds) defs.add(def(defId));
+    return defs;
+  }
+
+  /** Returns the signatures for {@code defIds}, in the same order as the ids. See {@link #defs}.
+    * @throws NoSuchElementException if no def exists with one of the ids. */
+  public List<Optional<Sig>> sigs (long[] defIds) {
+    List<Optional<Sig>> sigs = new ArrayList<>(defIds.length);
+    for (long defId : defIds) sigs.add(sig(defId));
+    return sigs;
+  }
+
+  /** Returns global refs for {@code defIds}, in the same order as the ids. See {@link #defs}.
+    * @throws NoSuchElementException if no def exists with one of the ids. */
+  public List<Ref.Global> refs (long[] defIds) {
+    List<Ref.Global> refs = new ArrayList<>(defIds.length);
+    for (long defId : defIds) refs.add(ref(defId));
+    return refs;
+  }
+
   /** Returns all defs nested immediately inside {@code defId}. This does not return defs nested two
     * or more levels deep.
     * @throws NoSuchElementException if no def exists with that id. */
@@ -85,6 +156,52 @@ public abstract class ProjectStore implements AutoCloseable {
     * and non-exported defs. */
   public abstract void find (Query query, boolean expOnly, List<Def> into);
 
+  /** Delivers the defs that match {@code query} to {@code into}, until it returns false. Defs are
+    * delivered in order of non-increasing {@link Query#score(Def)}, which allows top-K queries
+    * to stop reading once nothing further can make the cut. The default implementation
+    * collects all matching defs via {@link #find(Query,boolean,List)} and sorts them.
+    * @param expdOnly if true, include only exported defs in the results; if false, include exported
+    * and non-exported defs. */
+  public void find (Query query, boolean expOnly, Predicate<Def> into) {
+    List<Def> defs = new ArrayList<>();
+    find(query, expOnly, defs);
+    defs.sort(Comparator.comparingInt(def -> -query.score(def)));
+    for (Def def : defs) if (!into.test(def)) break;
+  }
+
+  /**
+   * Returns a spliterator over all defs in this project, in order of id. The spliterator splits
+   * the store's defs into ranges of ids, so that a {@link Stream#parallel} stream over it can
+   * process a store on multiple cores. The default implementation walks the def tree from {@link
+   * #topLevelDefs} via {@link #defsIn}, and sorts the results.
+   */
+  public Spliterator<Def> defSpliterator () {
+    List<Def> defs = new ArrayList<>();
+    addDefs(topLevelDefs(), defs);
+    defs.sort(Comparator.comparing(def -> def.id));
+    return defs.spliterator();
+  }
+
+  /** Returns a spliterator over all defs in this project along with their data, in order of id.
+    * See {@link #defSpliterator}. The default implementation looks up the data of each def
+    * delivered by {@link #defSpliterator}. */
+  public Spliterator<DefData> defDataSpliterator () {
+    return scanDefs().map(this::defData).spliterator();
+  }
+
+  /** Returns a sequential stream of all defs in this project, in order of id. Call {@link
+    * Stream#parallel} on the stream to process it on multiple cores. */
+  public Stream<Def> scanDefs () {
+    return StreamSupport.stream(defSpliterator(), false);
+  }
+
+  /** Returns a sequential stream of all defs in this project along with their signatures, uses
+    * and relations, in order of id. Call {@link Stream#parallel} on the stream to process it on
+    * multiple cores. */
+  public Stream<DefData> scanDefData () {
+    return StreamSupport.stream(defDataSpliterator(), false);
+  }
+
   /** Returns a debug representation of {@code id}. */
   public abstract String idToString (Long id);
 
@@ -118,6 +235,25 @@ public abstract class ProjectStore implements AutoCloseable {
     return getClass().getSimpleName() + "(" + name + ")";
   }
 
+  /** Looks up the data for {@code def} one piece at a time. */
+  protected DefData defData (Def def) {
+    Map<Relation,Set<Ref>> rels = new EnumMap<>(Relation.class);
+    for (Relation rel : Relation.values()) {
+      Set<Ref> refs = relationsFrom(rel, def.id);
+      if (!refs.isEmpty()) rels.put(rel, refs);
+    }
+    List<Use> uses = new ArrayList<>();
+    for (Use use : usesIn(def.id)) uses.add(use);
+    return new DefData(def, sig(def.id), uses, rels);
+  }
+
+  private void addDefs (Iterable<Def> defs, List<Def> into) {
+    for (Def def : defs) {
+      into.add(def);
+      addDefs(defsIn(def.id), into);
+    }
+  }
+
   protected ProjectStore (String name) {
     this.name = name;
   }
@@ -7,9 +7,13 @@ package codex.store;
 import codex.model.Def;
 import codex.model.Kind;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /** Encapsulates a search query. */
 public class Query {
@@ -33,19 +37,49 @@ public class Query {
     abstract boolean expOnly (boolean primaryStore);
   }
 
+  /** Controls how {@link #name} is matched against def names. */
+  public static enum Mode {
+    /** Names must equal the query. */
+    EXACT,
+    /** Names must start with the query. */
+    PREFIX,
+    /** The query humps must prefix the leading camel humps of a name: {@code RGS} or
+      * {@code RefGlSer} match {@code RefGlobalSerializer}. Results are ranked. */
+    CAMEL,
+    /** The query characters must appear in order in a name, not necessarily adjacently: {@code
+      * mdbstr} matches {@code MapDBStore}. A def whose bare name doesn't match is also matched by
+      * its name qualified by its enclosing def's name: {@code bwstoreunit} matches {@code
+      * BatchWriter.storeUnit}. To avoid scanning every name, stores need only report defs whose
+      * bare names also share at least half of the query's trigrams, or match it as a camel or
+      * prefix query. Results are ranked. */
+    FUZZY;
+
+    /** Whether the results of queries in this mode are ordered by {@link Query#score}. */
+    public boolean ranked () { return this == CAMEL || this == FUZZY; }
+  }
+
   /** The set of kinds to consider. */
   public final Set<Kind> kinds;
   /** The name, or name prefix, to be matched. This is always lowercase. */
   public final String name;
-  /** Whether {@link #name} is exact or a prefix. */
+  /** How {@link #name} is matched against def names. */
+  public final Mode mode;
+  /** Whether {@link #name} is a prefix, i.e. whether {@link #mode} is {@link Mode#PREFIX}. */
   public final boolean prefix;
+  /** The lowercase camel humps of the query, for {@link Mode#CAMEL} and {@link Mode#FUZZY}
+    * queries, empty otherwise. See {@link NameMatcher#queryHumps}. */
+  public final List<String> humps;
   /** Indicates the criteria for including non-exported defs. */
   public final Locality locality;
 
   /** Returns a query that matches {@code name} completely. */
-  public static Query name (String name) { return new Query(name, false); }
+  public static Query name (String name) { return new Query(name, Mode.EXACT); }
   /** Returns a query that matches {@code name} as a prefix. */
-  public static Query prefix (String name) { return new Query(name, true); }
+  public static Query prefix (String name) { return new Query(name, Mode.PREFIX); }
+  /** Returns a query that matches {@code name} against the camel humps of def names. */
+  public static Query camel (String name) { return new Query(name, Mode.CAMEL); }
+  /** Returns a query that matches {@code name} as a subsequence of def names. */
+  public static Query fuzzy (String name) { return new Query(name, Mode.FUZZY); }
 
   /** Copies this query and sets {@link #kinds} to just {@code kind}. */
   public Query kind (Kind kind) {
@@ -53,44 +87,180 @@ public class Query {
   }
   /** Copies this query and sets {@link #kinds} to {@code kinds}. */
   public Query kinds (Set<Kind> kinds) {
-    return new Query(kinds, name, prefix, locality);
+    return new Query(kinds, text, mode, locality);
   }
   /** Copies this query and configures it to return only exported defs. */
   public Query expExportedOnly () {
-    return new Query(kinds, name, prefix, Locality.EXPORTED_ONLY);
+    return new Query(kinds, text, mode, Locality.EXPORTED_ONLY);
   }
   /** Copies this query and configures it to return all defs. */
   public Query expAll () {
-    return new Query(kinds, name, prefix, Locality.ALL);
+    return new Query(kinds, text, mode, Locality.ALL);
+  }
+
+  /**
+   * Returns how well {@code name} matches this query, higher is better, or {@link
+   * NameMatcher#NO_MATCH} if it doesn't match. Exact queries score all matching names zero, prefix
+   * queries score exact matches one and other matches zero.
+   */
+  public int score (String name) {
+    switch (mode) {
+    case EXACT: return name.equalsIgnoreCase(this.name) ? 0 : NameMatcher.NO_MATCH;
+    case PREFIX: return !name.regionMatches(true, 0, this.name, 0, this.name.length()) ?
+      NameMatcher.NO_MATCH : (name.length() == this.name.length() ? 1 : 0);
+    case CAMEL: return NameMatcher.camelScore(humps, name);
+    default: return NameMatcher.fuzzyScore(this.name, name);
+    }
+  }
+
+  /**
+   * Returns how well a def named {@code name} matches this query, as {@link #score(String)}, but a
+   * fuzzy query that doesn't match {@code name} is also scored against the name qualified by that
+   * of the def's enclosing def. {@code outer} supplies the latter, or null for a top-level def, and
+   * is only consulted when needed.
+   */
+  public int score (String name, Supplier<String> outer) {
+    int score = score(name);
+    if (score != NameMatcher.NO_MATCH || mode != Mode.FUZZY) return score;
+    String oname = outer.get();
+    return (oname == null) ? NameMatcher.NO_MATCH :
+      NameMatcher.fuzzyScore(this.name, oname + "." + name);
+  }
+
+  /** Returns how well {@code def} matches this query. See {@link #score(String,Supplier)}. */
+  public int score (Def def) {
+    return score(def.name, () -> {
+      Def outer = def.outer();
+      return (outer == null) ? null : outer.name;
+    });
   }
 
   /**
    * Issues this query to all project stores in {@code stores}. Returns all defs matching our
-   * criteria. Name comparison is done case-insensitively.
+   * criteria. Name comparison is done case-insensitively. Results of ranked queries are ordered
+   * from best to worst match, and otherwise by store. The stores are queried concurrently.
    */
   public List<Def> find (Iterable<ProjectStore> stores) {
     // TODO: support filtering non-public from dependent stores, other query bits
-    List<Def> matches = new ArrayList<>();
-    boolean primary = true; // the first store is primary
-    for (ProjectStore store : stores) {
-      store.find(this, locality.expOnly(primary), matches);
-      primary = false; // subsequent stores are not
-    }
-    return matches;
+    List<List<Def>> results = FanOut.map(stores, (store, index) -> {
+      List<Def> matches = new ArrayList<>();
+      store.find(this, locality.expOnly(index == 0), matches); // the first store is primary
+      return matches;
+    });
+    List<Def> matches = results.size() == 1 ? results.get(0) : new ArrayList<>();
+    if (results.size() > 1) for (List<Def> result : results) matches.addAll(result);
+    return mode.ranked() ? rank(matches) : matches;
+  }
+
+  /**
+   * Issues this query to all project stores in {@code stores} and returns the {@code limit} best
+   * matching defs according to {@code ranker}, best first. Stores deliver defs in order of
+   * decreasing name score, so we stop reading a store once none of its remaining defs can outrank
+   * the defs we have, which also cuts short dependent stores when the primary store fills the
+   * results. The stores are queried concurrently, but among equally ranked defs, those from
+   * earlier stores are preferred, so the results don't depend on thread scheduling.
+   */
+  public List<Def> find (Iterable<ProjectStore> stores, int limit, Ranker ranker) {
+    if (limit <= 0) throw new IllegalArgumentException("Limit must be positive: " + limit);
+    TopK top = new TopK(limit);
+    FanOut.map(stores, (store, index) -> {
+      boolean primary = (index == 0); // the first store is primary
+      long[] seq = { (long)index << 32 };
+      store.find(this, locality.expOnly(primary), def -> {
+        int nameScore = score(def);
+        if (top.settled(ranker.bound(this, nameScore, primary), seq[0])) return false;
+        top.add(def, ranker.score(this, nameScore, def, primary), seq[0]++);
+        return true;
+      });
+      return null;
+    });
+    return top.result();
+  }
+
+  /** Returns the {@code limit} best matching defs according to {@link Ranker#DEFAULT}.
+    * See {@link #find(Iterable,int,Ranker)}. */
+  public List<Def> find (Iterable<ProjectStore> stores, int limit) {
+    return find(stores, limit, Ranker.DEFAULT);
   }
 
   @Override public String toString () {
-    return "Query(" + name + ", pre=" + prefix + ", loc=" + locality + ", kinds=" + kinds + ")";
+    return "Query(" + text + ", mode=" + mode + ", loc=" + locality + ", kinds=" + kinds + ")";
+  }
+
+  private List<Def> rank (List<Def> matches) {
+    // score each def once and sort stably, so equally good matches stay in store order
+    int count = matches.size();
+    long[] keyed = new long[count];
+    for (int ii = 0; ii < count; ii++) {
+      keyed[ii] = ((long)-score(matches.get(ii)) << 32) | ii;
+    }
+    Arrays.sort(keyed);
+    List<Def> ranked = new ArrayList<>(count);
+    for (long key : keyed) ranked.add(matches.get((int)key));
+    return ranked;
   }
 
-  private Query (Set<Kind> kinds, String name, boolean prefix, Locality locality) {
+  /** Retains the best K scored defs, preferring earlier defs (by sequence) among equals. Defs are
+    * added concurrently by the threads querying each store. */
+  private static class TopK {
+    private final int limit;
+    private final PriorityQueue<Scored> heap; // worst def at the head
+
+    TopK (int limit) {
+      this.limit = limit;
+      this.heap = new PriorityQueue<>(Math.min(limit, 1024)+1);
+    }
+
+    /** Returns true if no def scoring {@code bound} or less, with sequence {@code seq} or
+      * greater, can make the cut. */
+    synchronized boolean settled (int bound, long seq) {
+      if (heap.size() < limit) return false;
+      Scored min = heap.peek();
+      return min.score > bound || (min.score == bound && min.seq < seq);
+    }
+
+    synchronized void add (Def def, int score, long seq) {
+      Scored scored = new Scored(def, score, seq);
+      if (heap.size() >= limit && scored.compareTo(heap.peek()) <= 0) return;
+      heap.add(scored);
+      if (heap.size() > limit) heap.poll();
+    }
+
+    synchronized List<Def> result () {
+      Scored[] scored = heap.toArray(new Scored[heap.size()]);
+      Arrays.sort(scored, Collections.reverseOrder());
+      List<Def> defs = new ArrayList<>(scored.length);
+      for (Scored sc : scored) defs.add(sc.def);
+      return defs;
+    }
+  }
+
+  private static class Scored implements Comparable<Scored> {
+    final Def def;
+    final int score;
+    final long seq;
+    Scored (Def def, int score, long seq) { this.def = def; this.score = score; this.seq = seq; }
+    // worse scores and, among equal scores, later defs order first
+    public int compareTo (Scored other) {
+      return (score != other.score) ? Integer.compare(score, other.score) :
+        Long.compare(other.seq, seq);
+    }
+  }
+
+  private Query (Set<Kind> kinds, String text, Mode mode, Locality locality) {
     this.kinds = kinds;
-    this.name = name.toLowerCase();
-    this.prefix = prefix;
+    this.text = text;
+    this.name = text.toLowerCase();
+    this.mode = mode;
+    this.prefix = (mode == Mode.PREFIX);
+    this.humps = mode.ranked() ? NameMatcher.queryHumps(text) : Collections.<String>emptyList();
     this.locality = locality;
   }
 
-  private Query (String name, boolean prefix) {
-    this(EnumSet.allOf(Kind.class), name, prefix, Locality.EXPORTED_DEPENDENTS);
+  private Query (String name, Mode mode) {
+    this(EnumSet.allOf(Kind.class), name, mode, Locality.EXPORTED_DEPENDENTS);
   }
+
+  // the query as supplied, camel humps are determined by case
+  private final String text;
 }
@@ -0,0 +1,50 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.model.Access;
+import codex.model.Def;
+
+/**
+ * Scores the results of a top-K query, see {@link Query#find(Iterable,int,Ranker)}. Higher scores
+ * are better.
+ */
+public interface Ranker {
+
+  /**
+   * Returns the score of {@code def}.
+   * @param nameScore the {@link Query#score(Def)} of the def.
+   * @param primary whether the def comes from the primary (first) store.
+   */
+  int score (Query query, int nameScore, Def def, boolean primary);
+
+  /**
+   * Returns an upper bound on the score of any def whose name scores {@code nameScore} or less.
+   * Once the top K defs all score at least this much, the query stops reading defs from a store.
+   */
+  int bound (Query query, int nameScore, boolean primary);
+
+  /** Ranks defs first by name score, then by whether they're in the primary store, whether
+    * they're exported, their access and finally their kind (types before funcs before values). */
+  Ranker DEFAULT = new Ranker() {
+    public int score (Query query, int nameScore, Def def, boolean primary) {
+      int score = nameScore * NAME_WEIGHT + (primary ? 16 : 0) + (def.exported ? 8 : 0);
+      score += Access.LOCAL.ordinal() - def.access.ordinal(); // 0 to 4
+      switch (def.kind) {
+      case TYPE: return score + 3;
+      case MODULE: case FUNC: return score + 2;
+      case VALUE: return score + 1;
+      default: return score;
+      }
+    }
+
+    public int bound (Query query, int nameScore, boolean primary) {
+      return nameScore * NAME_WEIGHT + (primary ? NAME_WEIGHT-1 : NAME_WEIGHT-1-16);
+    }
+
+    // the other criteria sum to less than this, so a better name always outranks them
+    private static final int NAME_WEIGHT = 32;
+  };
+}
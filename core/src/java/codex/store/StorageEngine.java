@@ -0,0 +1,162 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import org.mapdb.Serializer;
+
+/**
+ * The storage beneath a {@link MapDBStore}: a set of named, ordered maps and sets whose changes
+ * are made durable together by {@link #commit}. Keys are ordered naturally; tuple keys may contain
+ * nulls, which order before all other values, when used as the starting point of an iteration.
+ *
+ * <p>A store has a single writer, but readers may use tables (or snapshots) concurrently with it.
+ * Values are encoded with MapDB {@link Serializer}s, which are simply codecs over {@code
+ * DataInput} and {@code DataOutput}, and can be used by any engine.</p>
+ */
+public interface StorageEngine {
+
+  /** An ordered map of keys to values. */
+  interface OrderedMap<K,V> {
+    V get (K key);
+    /** Maps {@code key} to {@code value}, returns the previous value or null. */
+    V put (K key, V value);
+    /** Removes the mapping for {@code key}, returns the previous value or null. */
+    V remove (K key);
+    boolean isEmpty ();
+    /** Returns the number of mappings, which may require a scan of the whole map. */
+    int size ();
+    /** Returns the greatest key in this map, or null if it is empty. */
+    K lastKey ();
+    /** Iterates over the entries with keys greater than or equal to {@code from}, in ascending key
+      * order. If {@code from} is null, iterates over all entries. */
+    Iterator<Map.Entry<K,V>> iterator (K from);
+    void clear ();
+
+    default V getOrDefault (K key, V defval) {
+      V value = get(key);
+      return (value == null) ? defval : value;
+    }
+  }
+
+  /** An ordered set of elements. */
+  interface OrderedSet<E> extends Iterable<E> {
+    boolean add (E elem);
+    boolean remove (E elem);
+    boolean contains (E elem);
+    boolean isEmpty ();
+    /** Returns the number of elements, which may require a scan of the whole set. */
+    int size ();
+    /** Iterates over the elements greater than or equal to {@code from}, in ascending order. If
+      * {@code from} is null, iterates over all elements. The iterator supports removal. */
+    Iterator<E> iterator (E from);
+    void clear ();
+
+    @Override default Iterator<E> iterator () {
+      return iterator(null);
+    }
+
+    default void addAll (Collection<? extends E> elems) {
+      for (E elem : elems) add(elem);
+    }
+  }
+
+  /** A commit whose changes have been captured, but are not yet durable, see {@link
+    * #beginCommit}. */
+  interface Commit {
+    /** Makes the commit's changes durable.
+      * @return the number of bytes written, or -1 if the engine doesn't know. */
+    long write ();
+  }
+
+  /** A read-only view of the tables of an engine as of a particular commit. */
+  interface Snapshot {
+    <K,V> OrderedMap<K,V> map (String name);
+    <E> OrderedSet<E> set (String name);
+  }
+
+  /** Returns the map named {@code name}, creating it if it doesn't exist. */
+  <K,V> OrderedMap<K,V> map (String name, KeyType<K> keys, Serializer<V> values);
+
+  /** Returns the set named {@code name}, creating it if it doesn't exist. */
+  <E> OrderedSet<E> set (String name, KeyType<E> elems);
+
+  /** Replaces the contents of the map named {@code name} with {@code data} and returns it. This
+    * allows an engine to build the map in a single sequential pass, rather than by inserting each
+    * entry. The map must previously have been obtained via {@link #map}. */
+  <K,V> OrderedMap<K,V> load (String name, NavigableMap<K,V> data);
+
+  /** Replaces the contents of the set named {@code name} with {@code data} and returns it, see
+    * {@link #load(String,NavigableMap)}. */
+  <E> OrderedSet<E> load (String name, NavigableSet<E> data);
+
+  /** Returns the value of the byte array variable {@code name}, or null if it was never set. */
+  byte[] getBytes (String name);
+
+  /** Sets the value of the byte array variable {@code name}. */
+  void setBytes (String name, byte[] value);
+
+  /** Makes all changes since the last commit durable. */
+  void commit ();
+
+  /** Captures all changes since the last commit as a new commit, which subsequent snapshots
+    * reflect, and returns it so that it can be made durable, possibly on another thread. Commits
+    * must be written in the order they were begun. Like other changes, this must not be called
+    * concurrently with changes to the tables. Engines that can't separate the two steps commit
+    * immediately. */
+  default Commit beginCommit () {
+    commit();
+    return () -> -1L;
+  }
+
+  /** Returns an estimate of the number of bytes that the next commit will write, or -1 if the
+    * engine can't estimate it. */
+  default long pendingBytes () {
+    return -1L;
+  }
+
+  /** Returns a view of the tables as of the last commit. */
+  Snapshot snapshot ();
+
+  /** Commits any outstanding changes and releases the engine's resources. */
+  void close ();
+
+  /** Wraps a (concurrent) navigable map in the {@link OrderedMap} API. */
+  static <K,V> OrderedMap<K,V> wrap (NavigableMap<K,V> map) {
+    return new OrderedMap<K,V>() {
+      public V get (K key) { return map.get(key); }
+      public V put (K key, V value) { return map.put(key, value); }
+      public V remove (K key) { return map.remove(key); }
+      public boolean isEmpty () { return map.isEmpty(); }
+      public int size () { return map.size(); }
+      public K lastKey () { return map.isEmpty() ? null : map.lastKey(); }
+      public Iterator<Map.Entry<K,V>> iterator (K from) {
+        return (from == null ? map : map.tailMap(from, true)).entrySet().iterator();
+      }
+      public void clear () { map.clear(); }
+      public V getOrDefault (K key, V defval) { return map.getOrDefault(key, defval); }
+    };
+  }
+
+  /** Wraps a (concurrent) navigable set in the {@link OrderedSet} API. */
+  static <E> OrderedSet<E> wrap (NavigableSet<E> set) {
+    return new OrderedSet<E>() {
+      public boolean add (E elem) { return set.add(elem); }
+      public boolean remove (E elem) { return set.remove(elem); }
+      public boolean contains (E elem) { return set.contains(elem); }
+      public boolean isEmpty () { return set.isEmpty(); }
+      public int size () { return set.size(); }
+      public Iterator<E> iterator (E from) {
+        return (from == null ? set : set.tailSet(from, true)).iterator();
+      }
+      public void clear () { set.clear(); }
+      public void addAll (Collection<? extends E> elems) { set.addAll(elems); }
+    };
+  }
+}
@@ -5,23 +5,33 @@
 package codex.store
 
 import codex.model._
-import java.io.{DataInput, DataOutput, Externalizable, ObjectInput, ObjectOutput, Serializable}
+import java.io.{DataInput, DataOutput, Externalizable, IOException, ObjectInput, ObjectOutput,
+                Serializable}
 import java.util.{ArrayList, List}
-import org.mapdb.Serializer
-import scala.collection.immutable.TreeSet
+import org.mapdb.{DataInput2, DataOutput2, Serializer}
+import scala.reflect.ClassTag
 import scaled.{Seq, Set}
 
+/** Serializers for the data stored in a [[MapDBStore]]. Values are written compactly: ints and
+  * longs are packed as varints (zig-zag encoded where they may be negative), enums as a single
+  * ordinal byte, and ids are split into their name and unit parts (see [[MapDBStore.UNIT_BITS]]),
+  * with sorted sequences delta-coded against their predecessor.
+  *
+  * MapDB records the serializer of each tree in the store's catalog by class name, and uses that
+  * serializer when the store is reopened. So a serializer's format never changes: a new format gets
+  * a new class (and a bump of the store's schema version), and a migration copies the trees into
+  * it. The classes of older formats are kept so that older stores can be read to migrate them.
+  */
 object IO {
+  import MapDBStore.{UNIT_BITS, UNIT_MASK}
 
   type Id = java.lang.Long
-  type IdSet = TreeSet[Id]
-  type IdSetBuilder = scala.collection.mutable.Builder[Id,TreeSet[Id]]
 
   val ZeroId :Id = 0L
-  def NoIds :IdSet = TreeSet[Id]()
-  def idSetBuilder :IdSetBuilder = TreeSet.newBuilder[Id]
+  def NoIds :IdSet = IdSet.Empty
 
-  case class SourceInfo (source :String, indexed :Long)
+  case class SourceInfo (source :String, indexed :Long, contentHash :Long, apiHash :Long,
+                         digest :Long)
   case class Name (id :String, parentId :Long, kind :Kind, unitId :Int)
   case class PUse (nameId :Long, offset :Int, length :Int)
   case class PSig (text :String, uses :Seq[PUse]) {
@@ -42,6 +52,116 @@ object IO {
                                      df.offset, df.bodyStart, df.bodyEnd)
   }
 
+  // schema 7 source infos; the fields added later read as zero (unknown)
+  class SourceInfoSerializerV2 extends Serializer[SourceInfo] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, info :SourceInfo) :Unit = {
+      out.writeUTF(info.source)
+      DataOutput2.packLong(out, info.indexed)
+    }
+    override def deserialize (in :DataInput, available :Int) =
+      SourceInfo(in.readUTF, DataInput2.unpackLong(in), 0L, 0L, 0L)
+  }
+
+  // schema 9 added content and API hashes to source infos
+  class SourceInfoSerializerV3 extends SourceInfoSerializerV2 {
+    override def serialize (out :DataOutput, info :SourceInfo) :Unit = {
+      super.serialize(out, info)
+      out.writeLong(info.contentHash)
+      out.writeLong(info.apiHash)
+    }
+    override def deserialize (in :DataInput, available :Int) = {
+      val info = super.deserialize(in, available)
+      info.copy(contentHash=in.readLong, apiHash=in.readLong)
+    }
+  }
+
+  // schema 10 added the digest of the unit's defs
+  class SourceInfoSerializerV4 extends SourceInfoSerializerV3 {
+    override def serialize (out :DataOutput, info :SourceInfo) :Unit = {
+      super.serialize(out, info)
+      out.writeLong(info.digest)
+    }
+    override def deserialize (in :DataInput, available :Int) =
+      super.deserialize(in, available).copy(digest=in.readLong)
+  }
+  val SRCINFO_SZ = new SourceInfoSerializerV4()
+
+  class IdSetSerializerV2 extends Serializer[IdSet] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, ids :IdSet) :Unit = {
+      DataOutput2.packInt(out, ids.size)
+      var prev = 0L ; ids foreach { id => writeIdDelta(out, prev, id) ; prev = id }
+    }
+    override def deserialize (in :DataInput, available :Int) = {
+      // ids are written in ascending order, so we can read them directly into the set's array
+      val ids = new Array[Long](DataInput2.unpackInt(in))
+      var prev = 0L
+      var ii = 0 ; while (ii < ids.length) { prev = readIdDelta(in, prev) ; ids(ii) = prev ; ii += 1 }
+      IdSet.wrapSorted(ids)
+    }
+  }
+  val IDS_SZ = new IdSetSerializerV2()
+
+  class NameSerializerV2 extends Serializer[Name] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, name :Name) :Unit = {
+      out.writeUTF(name.id)
+      writeNameId(out, name.parentId)
+      writeEnum(out, name.kind)
+      DataOutput2.packInt(out, name.unitId)
+    }
+    override def deserialize (in :DataInput, available :Int) =
+      Name(in.readUTF(), readNameId(in), readEnum(Kinds, in), DataInput2.unpackInt(in))
+  }
+  val NAME_SZ = new NameSerializerV2()
+
+  class NameIdSerializer extends Serializer[Id] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, nameId :Id) = writeNameId(out, nameId)
+    override def deserialize (in :DataInput, available :Int) :Id = readNameId(in)
+  }
+  val NAME_ID_SZ = new NameIdSerializer()
+
+  class SigSerializerV2 extends Serializer[PSig] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, sig :PSig) :Unit = {
+      out.writeUTF(sig.text)
+      writeUses(out, sig.uses)
+    }
+    override def deserialize (in :DataInput, available :Int) = PSig(in.readUTF, readUses(in))
+  }
+  val SIG_SZ = new SigSerializerV2()
+
+  class DocSerializerV2 extends Serializer[PDoc] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, doc :PDoc) :Unit = {
+      DataOutput2.packInt(out, doc.offset)
+      DataOutput2.packInt(out, doc.length)
+      writeUses(out, doc.uses)
+    }
+    override def deserialize (in :DataInput, available :Int) =
+      PDoc(DataInput2.unpackInt(in), DataInput2.unpackInt(in), readUses(in))
+  }
+  val DOC_SZ = new DocSerializerV2()
+
+  class UsesSerializerV2 extends Serializer[Seq[PUse]] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, uses :Seq[PUse]) = writeUses(out, uses)
+    override def deserialize (in :DataInput, available :Int) = readUses(in)
+  }
+  val USES_SZ = new UsesSerializerV2()
+
+  class DefSerializerV2 extends Serializer[PDef] with Serializable {
+    override def fixedSize = -1
+    override def serialize (out :DataOutput, df :PDef) = writeDef(out, df)
+    override def deserialize (in :DataInput, available :Int) = readDef(in)
+  }
+  val DEF_SZ = new DefSerializerV2()
+
+  // The serializers of schema 4 through 6, which wrote ints and longs at full width and enums by
+  // name. These are only used to read the stores of those schemas in order to migrate them.
+
   class SourceInfoSerializer extends Serializer[SourceInfo] with Serializable {
     override def fixedSize = -1
     override def serialize (out :DataOutput, info :SourceInfo) :Unit = {
@@ -49,9 +169,8 @@ object IO {
       out.writeLong(info.indexed)
     }
     override def deserialize (in :DataInput, available :Int) =
-      new SourceInfo(in.readUTF, in.readLong)
+      SourceInfo(in.readUTF, in.readLong, 0L, 0L, 0L)
   }
-  val SRCINFO_SZ = new SourceInfoSerializer()
 
   class IdSetSerializer extends Serializer[IdSet] with Serializable {
     override def fixedSize = -1
@@ -60,15 +179,14 @@ object IO {
       ids foreach { out.writeLong(_) }
     }
     override def deserialize (in :DataInput, available :Int) = {
-      val sb = idSetBuilder
       val count = in.readInt
-      sb.sizeHint(count)
-      var ii = 0 ; while (ii < count) { sb += in.readLong ; ii += 1 }
-      sb.result
+      val ib = IdSet.builder(count)
+      var ii = 0 ; while (ii < count) { ib += in.readLong ; ii += 1 }
+      ib.result()
     }
   }
-  val IDS_SZ = new IdSetSerializer()
 
+  // used by the (nameId -> Set(unitId)) index that schema 6 replaced with use postings
   class IntSetSerializer extends Serializer[Set[Integer]] with Serializable {
     override def fixedSize = -1
     override def serialize (out :DataOutput, ids :Set[Integer]) :Unit = {
@@ -82,102 +200,191 @@ object IO {
       sb.build()
     }
   }
-  val INT_SET_SZ = new IntSetSerializer()
 
   class NameSerializer extends Serializer[Name] with Serializable {
     override def fixedSize = -1
     override def serialize (out :DataOutput, name :Name) :Unit = {
       out.writeUTF(name.id)
       out.writeLong(name.parentId)
-      writeEnum(out, name.kind)
+      writeEnumName(out, name.kind)
       out.writeInt(name.unitId)
     }
     override def deserialize (in :DataInput, available :Int) =
-      Name(in.readUTF(), in.readLong(), readEnum(classOf[Kind], in), in.readInt())
+      Name(in.readUTF(), in.readLong(), readEnumName(classOf[Kind], in), in.readInt())
   }
-  val NAME_SZ = new NameSerializer()
 
   class SigSerializer extends Serializer[PSig] with Serializable {
     override def fixedSize = -1
     override def serialize (out :DataOutput, sig :PSig) :Unit = {
       out.writeUTF(sig.text)
-      writeUses(out, sig.uses)
+      writeUsesV1(out, sig.uses)
     }
-    override def deserialize (in :DataInput, available :Int) = PSig(in.readUTF, readUses(in))
+    override def deserialize (in :DataInput, available :Int) = PSig(in.readUTF, readUsesV1(in))
   }
-  val SIG_SZ = new SigSerializer()
 
   class DocSerializer extends Serializer[PDoc] with Serializable {
     override def fixedSize = -1
     override def serialize (out :DataOutput, doc :PDoc) :Unit = {
       out.writeInt(doc.offset)
       out.writeInt(doc.length)
-      writeUses(out, doc.uses)
+      writeUsesV1(out, doc.uses)
     }
     override def deserialize (in :DataInput, available :Int) =
-      PDoc(in.readInt, in.readInt, readUses(in))
+      PDoc(in.readInt, in.readInt, readUsesV1(in))
   }
-  val DOC_SZ = new DocSerializer()
 
   class UsesSerializer extends Serializer[Seq[PUse]] with Serializable {
     override def fixedSize = -1
-    override def serialize (out :DataOutput, uses :Seq[PUse]) = writeUses(out, uses)
-    override def deserialize (in :DataInput, available :Int) = readUses(in)
+    override def serialize (out :DataOutput, uses :Seq[PUse]) = writeUsesV1(out, uses)
+    override def deserialize (in :DataInput, available :Int) = readUsesV1(in)
   }
-  val USES_SZ = new UsesSerializer()
 
   class DefSerializer extends Serializer[PDef] with Serializable {
     override def fixedSize = -1
-    override def serialize (out :DataOutput, df :PDef) = writeDef(out, df)
-    override def deserialize (in :DataInput, available :Int) = readDef(in)
+    override def serialize (out :DataOutput, df :PDef) :Unit = {
+      out.writeLong(df.id)
+      out.writeLong(df.outerId)
+      writeEnumName(out, df.kind)
+      writeEnumName(out, df.flavor)
+      out.writeBoolean(df.exported)
+      writeEnumName(out, df.access)
+      out.writeUTF(df.name)
+      out.writeInt(df.offset)
+      out.writeInt(df.bodyStart)
+      out.writeInt(df.bodyEnd)
+    }
+    override def deserialize (in :DataInput, available :Int) = PDef(
+      in.readLong /*id*/, in.readLong /*outerId*/,
+      readEnumName(classOf[Kind], in), readEnumName(classOf[Flavor], in),
+      in.readBoolean /*exported*/, readEnumName(classOf[Access], in),
+      in.readUTF /*name*/, in.readInt /*offset*/,
+      in.readInt /*bodyStart*/, in.readInt /*bodyEnd*/)
+  }
+
+  def readUsesV1 (in :DataInput) :Seq[PUse] = {
+    val count = in.readInt
+    val ub = Seq.builder[PUse](count)
+    var ii = 0 ; while (ii < count) { ub += PUse(in.readLong, in.readInt, in.readInt) ; ii += 1 }
+    ub.build()
+  }
+  def writeUsesV1 (out :DataOutput, uses :Seq[PUse]) :Unit = {
+    out.writeInt(uses.size)
+    var iter = uses.iterator ; while (iter.hasNext) {
+      val use = iter.next
+      out.writeLong(use.nameId)
+      out.writeInt(use.offset)
+      out.writeInt(use.length)
+    }
   }
-  val DEF_SZ = new DefSerializer()
 
-  def readDef (in :DataInput) = PDef(
-    in.readLong /*id*/, zero2null(in.readLong) /*outerId*/,
-    readEnum(classOf[Kind], in), readEnum(classOf[Flavor], in),
-    in.readBoolean /*exported*/, readEnum(classOf[Access], in),
-    in.readUTF /*name*/, in.readInt /*offset*/,
-    in.readInt /*bodyStart*/, in.readInt /*bodyEnd*/)
+  def readEnumName[E <: Enum[E]] (eclass :Class[E], in :DataInput) :E = {
+    val estr = in.readUTF
+    if (estr.length == 0) null.asInstanceOf[E] else Enum.valueOf(eclass, estr)
+  }
+  def writeEnumName (out :DataOutput, eval :Enum[_]) =
+    out.writeUTF(if (eval == null) "" else eval.name)
+
+  def readDef (in :DataInput) = {
+    val id = readId(in)
+    val outerName = readNameId(in)
+    val outerId = if (outerName == 0L) 0L else outerName | ((id & UNIT_MASK) + readZigZag(in))
+    val kind = readEnum(Kinds, in)
+    val flavor = readEnum(Flavors, in)
+    val exported = in.readBoolean
+    val access = readEnum(Accesses, in)
+    val name = in.readUTF
+    val offset = readZigZag(in)
+    val bodyStart = offset + readZigZag(in)
+    val bodyEnd = bodyStart + readZigZag(in)
+    PDef(id, outerId, kind, flavor, exported, access, name, offset, bodyStart, bodyEnd)
+  }
 
   def writeDef (out :DataOutput, df :PDef) :Unit = {
-    out.writeLong(df.id)
-    out.writeLong(null2zero(df.outerId))
+    writeId(out, df.id)
+    // an outer def is nearly always in the same unit as its member, so we delta-code its unit
+    val outerId = df.outerId
+    writeNameId(out, outerId)
+    if (outerId != 0L) writeZigZag(out, ((outerId & UNIT_MASK) - (df.id & UNIT_MASK)).toInt)
     writeEnum(out, df.kind)
     writeEnum(out, df.flavor)
     out.writeBoolean(df.exported)
     writeEnum(out, df.access)
     out.writeUTF(df.name)
-    out.writeInt(df.offset)
-    out.writeInt(df.bodyStart)
-    out.writeInt(df.bodyEnd)
+    // offsets are -1 for synthetic defs, so they're zig-zag encoded rather than packed directly
+    writeZigZag(out, df.offset)
+    writeZigZag(out, df.bodyStart - df.offset)
+    writeZigZag(out, df.bodyEnd - df.bodyStart)
   }
 
-  def readUse (in :DataInput) = PUse(in.readLong(), in.readInt(), in.readInt())
-  def writeUse (out :DataOutput, use :PUse) :Unit = {
-    out.writeLong(use.nameId)
-    out.writeInt(use.offset)
-    out.writeInt(use.length)
+  // uses are (mostly) emitted in offset order, so we delta-code each offset against the previous
+  def readUse (in :DataInput, prevOffset :Int) =
+    PUse(readNameId(in), prevOffset + readZigZag(in), DataInput2.unpackInt(in))
+  def writeUse (out :DataOutput, prevOffset :Int, use :PUse) :Unit = {
+    writeNameId(out, use.nameId)
+    writeZigZag(out, use.offset - prevOffset)
+    DataOutput2.packInt(out, use.length)
   }
 
   def readUses (in :DataInput) :Seq[PUse] = {
-    val count = in.readInt
+    val count = DataInput2.unpackInt(in)
     val ub = Seq.builder[PUse](count)
-    var ii = 0 ; while (ii < count) { ub += readUse(in) ; ii += 1 }
+    var prev = 0
+    var ii = 0 ; while (ii < count) { val use = readUse(in, prev) ; ub += use ; prev = use.offset ; ii += 1 }
     ub.build()
   }
   def writeUses (out :DataOutput, uses :Seq[PUse]) :Unit = {
-    out.writeInt(uses.size)
-    var iter = uses.iterator ; while (iter.hasNext) writeUse(out, iter.next)
+    DataOutput2.packInt(out, uses.size)
+    var prev = 0
+    var iter = uses.iterator ; while (iter.hasNext) {
+      val use = iter.next ; writeUse(out, prev, use) ; prev = use.offset
+    }
   }
 
-  def readEnum[E <: Enum[E]] (eclass :Class[E], in :DataInput) = {
-    val estr = in.readUTF
-    if (estr.length == 0) null.asInstanceOf[E] else Enum.valueOf(eclass, estr)
+  // enums are written as their persistent codes, with zero indicating null, and read back via a
+  // table from code to value
+  private def codeTable[E <: AnyRef :ClassTag] (values :Array[E])(code :E => Int) :Array[E] = {
+    val table = new Array[E](values.map(code).max + 1)
+    values foreach { v => table(code(v)) = v }
+    table
   }
-  def writeEnum (out :DataOutput, eval :Enum[_]) =
-    out.writeUTF(if (eval == null) "" else eval.name)
+  private val Kinds = codeTable(Kind.values)(_.code)
+  private val Flavors = codeTable(Flavor.values)(_.code)
+  private val Accesses = codeTable(Access.values)(_.code)
+
+  def readEnum[E <: AnyRef] (byCode :Array[E], in :DataInput) :E = {
+    val code = in.readUnsignedByte
+    if (code == 0) null.asInstanceOf[E]
+    else if (code < byCode.length && byCode(code) != null) byCode(code)
+    else throw new IOException(s"Unknown enum code: $code")
+  }
+  def writeEnum (out :DataOutput, kind :Kind) = out.writeByte(if (kind == null) 0 else kind.code)
+  def writeEnum (out :DataOutput, flavor :Flavor) =
+    out.writeByte(if (flavor == null) 0 else flavor.code)
+  def writeEnum (out :DataOutput, access :Access) =
+    out.writeByte(if (access == null) 0 else access.code)
+
+  // name ids always have zero unit bits, so we drop those before packing them
+  def readNameId (in :DataInput) :Long = DataInput2.unpackLong(in) << UNIT_BITS
+  def writeNameId (out :DataOutput, nameId :Long) = DataOutput2.packLong(out, nameId >>> UNIT_BITS)
+
+  def readId (in :DataInput) :Long = readNameId(in) | DataInput2.unpackInt(in)
+  def writeId (out :DataOutput, id :Long) :Unit = {
+    writeNameId(out, id)
+    DataOutput2.packInt(out, (id & UNIT_MASK).toInt)
+  }
+
+  // ids in a set are sorted, so their name parts increase and are delta-coded; their unit parts are
+  // usually the same (i.e. all defs in a unit) and are zig-zag delta-coded against the previous id
+  def readIdDelta (in :DataInput, prev :Long) :Long = {
+    val nameId = (prev & ~UNIT_MASK) + readNameId(in)
+    nameId | ((prev & UNIT_MASK) + readZigZag(in))
+  }
+  def writeIdDelta (out :DataOutput, prev :Long, id :Long) :Unit = {
+    writeNameId(out, (id & ~UNIT_MASK) - (prev & ~UNIT_MASK))
+    writeZigZag(out, ((id & UNIT_MASK) - (prev & UNIT_MASK)).toInt)
+  }
+
+  def readZigZag (in :DataInput) :Int = { val v = DataInput2.unpackInt(in) ; (v >>> 1) ^ -(v & 1) }
+  def writeZigZag (out :DataOutput, value :Int) = DataOutput2.packInt(out, (value << 1) ^ (value >> 31))
 
-  @inline private def zero2null (value :Long) = if (value == 0L) null else (value :Id)
-  @inline private def null2zero (value :Id) = if (value == null) 0L else value.longValue
 }
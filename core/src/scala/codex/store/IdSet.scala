@@ -0,0 +1,163 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store
+
+import java.util.{AbstractCollection, Arrays, Collection, Iterator => JIterator}
+
+/** An immutable set of def ids, stored as a sorted array of primitive longs. A unit can contain
+  * thousands of defs, so we avoid boxing each of their ids into a tree node. Unions and differences
+  * are computed by merging the sorted arrays.
+  */
+final class IdSet private (private val ids :Array[Long], val size :Int) {
+  import IdSet._
+
+  def isEmpty :Boolean = size == 0
+  def nonEmpty :Boolean = size > 0
+
+  /** Returns the `idx`th smallest id in this set. */
+  def apply (idx :Int) :Long = {
+    if (idx < 0 || idx >= size) throw new IndexOutOfBoundsException(s"$idx (size $size)")
+    ids(idx)
+  }
+
+  def contains (id :Long) :Boolean = Arrays.binarySearch(ids, 0, size, id) >= 0
+
+  /** Applies `fn` to each id in this set, in ascending order. */
+  def foreach[U] (fn :Long => U) :Unit = {
+    var ii = 0 ; while (ii < size) { fn(ids(ii)) ; ii += 1 }
+  }
+
+  /** Applies `fn` to each id in this set, in descending order. */
+  def reverseForeach[U] (fn :Long => U) :Unit = {
+    var ii = size-1 ; while (ii >= 0) { fn(ids(ii)) ; ii -= 1 }
+  }
+
+  /** Returns the union of this set and `that`. */
+  def ++ (that :IdSet) :IdSet =
+    if (that.isEmpty) this
+    else if (isEmpty) that
+    else {
+      val nids = new Array[Long](size + that.size)
+      var ii = 0 ; var jj = 0 ; var nn = 0
+      while (ii < size && jj < that.size) {
+        val a = ids(ii) ; val b = that.ids(jj)
+        if (a < b) { nids(nn) = a ; ii += 1 }
+        else if (b < a) { nids(nn) = b ; jj += 1 }
+        else { nids(nn) = a ; ii += 1 ; jj += 1 }
+        nn += 1
+      }
+      while (ii < size) { nids(nn) = ids(ii) ; ii += 1 ; nn += 1 }
+      while (jj < that.size) { nids(nn) = that.ids(jj) ; jj += 1 ; nn += 1 }
+      new IdSet(nids, nn)
+    }
+
+  /** Returns a set containing the ids in this set and `id`. */
+  def + (id :Long) :IdSet = if (contains(id)) this else this ++ new IdSet(Array(id), 1)
+
+  /** Returns a set containing the ids in this set other than `id`. */
+  def - (id :Long) :IdSet = if (!contains(id)) this else this -- new IdSet(Array(id), 1)
+
+  /** Returns the ids in this set which are not in `that`. */
+  def -- (that :IdSet) :IdSet =
+    if (isEmpty || that.isEmpty) this
+    else {
+      val nids = new Array[Long](size)
+      var ii = 0 ; var jj = 0 ; var nn = 0
+      while (ii < size) {
+        val a = ids(ii)
+        while (jj < that.size && that.ids(jj) < a) jj += 1
+        if (jj == that.size || that.ids(jj) != a) { nids(nn) = a ; nn += 1 }
+        ii += 1
+      }
+      if (nn == size) this else if (nn == 0) Empty else new IdSet(nids, nn)
+    }
+
+  /** Returns a copy of the ids in this set, in ascending order. */
+  def toArray :Array[Long] = Arrays.copyOf(ids, size)
+
+  /** Returns a read-only view of this set as a Java collection. The ids are boxed as they are
+    * iterated over. */
+  def asJava :Collection[java.lang.Long] = new AbstractCollection[java.lang.Long]() {
+    override def size = IdSet.this.size
+    override def contains (o :Any) = o match {
+      case id :java.lang.Long => IdSet.this.contains(id.longValue)
+      case _ => false
+    }
+    override def iterator = new JIterator[java.lang.Long]() {
+      private var _idx = 0
+      override def hasNext = _idx < IdSet.this.size
+      override def next () = {
+        if (_idx >= IdSet.this.size) throw new NoSuchElementException()
+        val id = ids(_idx) ; _idx += 1 ; id
+      }
+    }
+  }
+
+  override def equals (other :Any) = other match {
+    case that :IdSet => size == that.size && Arrays.equals(ids, 0, size, that.ids, 0, size)
+    case _ => false
+  }
+  override def hashCode = {
+    var code = 1 ; foreach { id => code = 31*code + java.lang.Long.hashCode(id) } ; code
+  }
+  override def toString = {
+    val sb = new java.lang.StringBuilder("IdSet(")
+    foreach { id => if (sb.length > 6) sb.append(", ") ; sb.append(id) }
+    sb.append(")").toString
+  }
+}
+
+object IdSet {
+
+  /** The empty id set. */
+  val Empty = new IdSet(new Array[Long](0), 0)
+
+  /** Accumulates ids into a set. Ids may be added in any order and may contain duplicates. */
+  final class Builder (expectedSize :Int) {
+    def this () = this(16)
+
+    /** Adds `id` to the set being built. */
+    def += (id :Long) :this.type = {
+      if (_size == _ids.length) _ids = Arrays.copyOf(_ids, math.max(16, _size*2))
+      if (_size > 0 && id <= _ids(_size-1)) _sorted = false
+      _ids(_size) = id
+      _size += 1
+      this
+    }
+
+    /** Returns a set containing all of the ids added to this builder. The builder should not be
+      * used after this call. */
+    def result () :IdSet = if (_size == 0) Empty else {
+      if (!_sorted) {
+        Arrays.sort(_ids, 0, _size)
+        var nn = 1 ; var ii = 1 ; while (ii < _size) {
+          if (_ids(ii) != _ids(nn-1)) { _ids(nn) = _ids(ii) ; nn += 1 }
+          ii += 1
+        }
+        _size = nn
+      }
+      new IdSet(_ids, _size)
+    }
+
+    private var _ids = new Array[Long](math.max(expectedSize, 0))
+    private var _size = 0
+    private var _sorted = true
+  }
+
+  /** Returns a builder that expects to be given roughly `expectedSize` ids. */
+  def builder (expectedSize :Int) = new Builder(expectedSize)
+
+  /** Returns a set containing the ids in `ids`. */
+  def from (ids :Collection[java.lang.Long]) :IdSet = if (ids.isEmpty) Empty else {
+    val b = new Builder(ids.size)
+    val iter = ids.iterator ; while (iter.hasNext) b += iter.next.longValue
+    b.result()
+  }
+
+  /** Creates a set that takes ownership of `ids`, which must be sorted in strictly ascending
+    * order. Used by the serializer to avoid copying the array it reads. */
+  private[store] def wrapSorted (ids :Array[Long]) :IdSet =
+    if (ids.length == 0) Empty else new IdSet(ids, ids.length)
+}
@@ -0,0 +1,138 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store
+
+import java.io.IOException
+import java.nio.file.{Files, Path}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.{NavigableMap, NavigableSet}
+import org.mapdb.{BTreeKeySerializer, DB, Fun, Serializer}
+import scaled._
+
+/** A [[StorageEngine]] backed by a MapDB database, which stores each table in a B-tree. The
+  * database must have snapshots enabled. Long and int keys (and tuple components) are encoded
+  * with MapDB's packed serializers, so they must not be negative.
+  * @param walPath the path to the database's write-ahead log, if it has one, from whose size we
+  * estimate the bytes written by a commit. */
+class MapDBEngine (db :DB, walPath :Path) extends StorageEngine {
+  import MapDBEngine._
+
+  /** Creates an engine for a database with no write-ahead log (i.e. an in-memory database). */
+  def this (db :DB) = this(db, null)
+
+  // the serializers of the tables we've created, which we need to recreate them in load
+  private val _keySzs = new ConcurrentHashMap[String,BTreeKeySerializer[_]]()
+  private val _valSzs = new ConcurrentHashMap[String,Serializer[_]]()
+
+  override def map[K,V] (name :String, keys :KeyType[K], values :Serializer[V]) = {
+    val kSz = keySerializer(keys)
+    _keySzs.put(name, kSz)
+    _valSzs.put(name, values)
+    StorageEngine.wrap(db.createTreeMap(name).keySerializer(kSz).valueSerializer(values).
+      makeOrGet[K,V])
+  }
+
+  override def set[E] (name :String, elems :KeyType[E]) = {
+    val eSz = keySerializer(elems)
+    _keySzs.put(name, eSz)
+    StorageEngine.wrap(db.createTreeSet(name).serializer(eSz).makeOrGet[E])
+  }
+
+  override def load[K,V] (name :String, data :NavigableMap[K,V]) = {
+    val kSz = _keySzs.get(name).asInstanceOf[BTreeKeySerializer[K]]
+    val vSz = _valSzs.get(name).asInstanceOf[Serializer[V]]
+    // the data pump requires its source in descending key order
+    val iter = data.descendingMap.entrySet.iterator
+    var pump = pumpCount(data.size)
+    db.delete(name)
+    val maker = db.createTreeMap(name).keySerializer(kSz).valueSerializer(vSz)
+    if (pump > 0) maker.pumpSource(new JIterator[Fun.Tuple2[K,V]] {
+      def hasNext = pump > 0 && iter.hasNext
+      def next = { pump -= 1 ; val ent = iter.next ; Fun.t2(ent.getKey, ent.getValue) }
+    })
+    val tree = maker.make[K,V]()
+    // insert any (smallest) entries that we held back from the pump
+    while (iter.hasNext) { val ent = iter.next ; tree.put(ent.getKey, ent.getValue) }
+    StorageEngine.wrap(tree)
+  }
+
+  override def load[E] (name :String, data :NavigableSet[E]) = {
+    val eSz = _keySzs.get(name).asInstanceOf[BTreeKeySerializer[E]]
+    val iter = data.descendingIterator
+    var pump = pumpCount(data.size)
+    db.delete(name)
+    val maker = db.createTreeSet(name).serializer(eSz)
+    if (pump > 0) maker.pumpSource(new JIterator[E] {
+      def hasNext = pump > 0 && iter.hasNext
+      def next = { pump -= 1 ; iter.next }
+    })
+    val tree = maker.make[E]()
+    while (iter.hasNext) tree.add(iter.next)
+    StorageEngine.wrap(tree)
+  }
+
+  override def getBytes (name :String) :Array[Byte] =
+    if (db.exists(name)) db.getAtomicVar[Array[Byte]](name).get else null
+
+  override def setBytes (name :String, value :Array[Byte]) :Unit =
+    if (db.exists(name)) db.getAtomicVar[Array[Byte]](name).set(value)
+    else db.createAtomicVar(name, value, Serializer.BYTE_ARRAY)
+
+  override def commit () :Unit = db.commit()
+
+  // MapDB can't commit in the background, so we commit up front
+  override def beginCommit () :StorageEngine.Commit = {
+    val bytes = pendingBytes
+    db.commit()
+    () => bytes
+  }
+
+  // the log holds every change made since the last commit, and is emptied by a commit
+  override def pendingBytes () :Long = if (walPath == null) -1L else try Files.size(walPath) catch {
+    case ioe :IOException => 0L
+  }
+
+  override def snapshot () = {
+    val snap = db.snapshot()
+    new StorageEngine.Snapshot {
+      def map[K,V] (name :String) = StorageEngine.wrap(snap.getTreeMap[K,V](name))
+      def set[E] (name :String) = StorageEngine.wrap(snap.getTreeSet[E](name))
+    }
+  }
+
+  override def close () :Unit = {
+    db.commit()
+    db.close()
+  }
+}
+
+object MapDBEngine {
+
+  /** Returns the B-tree key serializer for keys of type `keys`. These match the serializers that
+    * stores used before engines were pluggable, which MapDB records in a store's catalog. */
+  def keySerializer[K] (keys :KeyType[K]) :BTreeKeySerializer[K] = (keys.parts.size match {
+    case 1 => keys.parts.get(0) match {
+      case KeyType.Part.LONG   => BTreeKeySerializer.ZERO_OR_POSITIVE_LONG
+      case KeyType.Part.INT    => BTreeKeySerializer.ZERO_OR_POSITIVE_INT
+      case KeyType.Part.STRING => BTreeKeySerializer.STRING
+    }
+    case 2 => new BTreeKeySerializer.Tuple2KeySerializer[AnyRef,AnyRef](null, null, null)
+    case _ => new BTreeKeySerializer.Tuple3KeySerializer[AnyRef,AnyRef,AnyRef](
+      null, null, null, null, null)
+  }).asInstanceOf[BTreeKeySerializer[K]]
+
+  /** Returns how many of a bulk table's `size` (largest) entries to feed to the data pump; the
+    * remainder are inserted normally once the tree is built. MapDB 1.0's pump fills each leaf with
+    * 24 keys and each dir node with 23 children (for the default node size of 32), and when the
+    * last leaf completes a dir node in a tree with two or more of them, it can build a root dir
+    * node with no keys, which chokes the key serializer. So we avoid pumping those leaf counts. */
+  private[store] def pumpCount (size :Int) :Int = {
+    val leaves = (size + PUMP_LEAF_KEYS - 1) / PUMP_LEAF_KEYS
+    if (leaves >= 2*PUMP_DIR_KIDS && leaves % PUMP_DIR_KIDS == 0) (leaves-1) * PUMP_LEAF_KEYS
+    else size
+  }
+  private final val PUMP_LEAF_KEYS = 24
+  private final val PUMP_DIR_KIDS = 23
+}
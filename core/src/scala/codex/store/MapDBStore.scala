@@ -7,114 +7,343 @@ package codex.store
 import codex.extract.BatchWriter
 import codex.extract.Writer
 import codex.model._
+import com.google.common.cache.{Cache, CacheBuilder, CacheStats}
+import com.google.common.hash.{BloomFilter, Funnels}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
 import java.io.{File, IOException}
+import java.nio.charset.StandardCharsets
 import java.nio.file.{Files, Path, Paths}
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap, ConcurrentSkipListSet}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.function.{Consumer, Predicate}
 import java.util.stream.Collectors
-import java.util.{Arrays, ArrayList, Collection, Collections, List => JList}
-import java.util.{HashMap, HashSet, Optional}
-import org.mapdb.{BTreeKeySerializer, BTreeMap, Bind, DB, DBMaker, Fun, Serializer}
+import java.util.{Arrays, ArrayList, Collections, List => JList}
+import java.util.{EnumMap, HashMap, HashSet, Map => JMap, Optional, Set => JSet, Spliterator}
+import org.mapdb.{BTreeKeySerializer, BTreeMap, DB, DBMaker, Fun, Serializer, StoreWAL}
 import scala.collection.mutable.{Builder, Map => MMap, Set => MSet}
 import scaled._
 
-class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(name) {
+/** A project store whose tables are kept in a [[StorageEngine]]: by default a MapDB database, in
+  * memory or on disk, but any engine (like [[LogEngine]]) may be supplied. */
+class MapDBStore (name :String, engine :StorageEngine) extends ProjectStore(name) {
 
   import scala.jdk.CollectionConverters._
-  import BTreeKeySerializer.{
-    ZERO_OR_POSITIVE_LONG => longSz, ZERO_OR_POSITIVE_INT => intSz, STRING => stringSz,
-    Tuple2KeySerializer => T2KS, Tuple3KeySerializer => T3KS}
+  import KeyType.{LONG => longKey, INT => intKey, STRING => stringKey, tuple}
+  import StorageEngine.{OrderedMap, OrderedSet}
   import IO._
+  import MapDBStore._
 
   /** Creates an ephemeral (memory backed) store. */
-  def this (name :String) = this(name, DBMaker.newMemoryDB)
+  def this (name :String) = this(name, new MapDBEngine(DBMaker.newMemoryDB.snapshotEnable.make()))
 
   /** Creates a persistent store backed by `storePath`. */
   def this (name :String, storePath :Path) = this(
-    name, DBMaker.newFileDB(MapDBStore.checkSchema(name, storePath).toFile).
-      mmapFileEnableIfSupported.
-      cacheDisable.
-      compressionEnable.
+    name, new MapDBEngine(MapDBStore.fileDB(MapDBStore.checkSchema(name, storePath)).
       asyncWriteEnable.
-      closeOnJvmShutdown)
-
-  private val _db = maker.make()
-
-  private def createTreeMap[K,V] (name :String, kSz :BTreeKeySerializer[K], vSz :Serializer[V]) =
-    _db.createTreeMap(name).keySerializer(kSz).valueSerializer(vSz).makeOrGet[K,V]
+      snapshotEnable.
+      closeOnJvmShutdown.
+      make(), Paths.get(storePath.toString + StoreWAL.TRANS_LOG_FILE_EXT)))
+
+  // the read view pinned by the current thread, if any, see reading
+  private val _pinned = new ThreadLocal[View]()
+
+  // each engine table is accessed through a table, which allows a bulk load to swap in an
+  // in-memory stand-in while the session is running, and then have the engine build the table from
+  // it in a single pass; it also routes readers that have pinned a view to that view's snapshot
+  private abstract class Table {
+    _tables.add(this)
+    def beginBulk () :Unit
+    def endBulk () :Unit
+  }
+  private val _tables = new ArrayList[Table]()
+
+  private class MapTable[K,V] (name :String, keys :KeyType[K], vSz :Serializer[V])
+      extends Table {
+    var live :OrderedMap[K,V] = engine.map(name, keys, vSz)
+    private var _bulk :ConcurrentSkipListMap[K,V] = _
+    def map :OrderedMap[K,V] = _pinned.get match {
+      case null => live
+      case view => view.map(name)
+    }
+    def beginBulk () = {
+      _bulk = new ConcurrentSkipListMap[K,V]()
+      live = StorageEngine.wrap(_bulk)
+    }
+    def endBulk () = {
+      live = engine.load(name, _bulk)
+      _bulk = null
+    }
+  }
 
-  private def createTreeSet[E] (name :String, eSz :BTreeKeySerializer[E]) =
-    _db.createTreeSet(name).serializer(eSz).makeOrGet[E]
+  private class SetTable[E] (name :String, elems :KeyType[E]) extends Table {
+    var live :OrderedSet[E] = engine.set(name, elems)
+    private var _bulk :ConcurrentSkipListSet[E] = _
+    def set :OrderedSet[E] = _pinned.get match {
+      case null => live
+      case view => view.set(name)
+    }
+    def beginBulk () = {
+      _bulk = new ConcurrentSkipListSet[E]()
+      live = StorageEngine.wrap(_bulk)
+    }
+    def endBulk () = {
+      live = engine.load(name, _bulk)
+      _bulk = null
+    }
+  }
 
-  private val _names = createTreeMap("names", longSz, NAME_SZ)
-  private val _fqNames = createTreeMap("fqNames", stringSz, Serializer.LONG)
+  private val _namesT = new MapTable("names", longKey, NAME_SZ)
+  private def _names = _namesT.map
+  private val _fqNamesT = new MapTable("fqNames", stringKey, NAME_ID_SZ)
+  private def _fqNames = _fqNamesT.map
 
   // read the highest name value and seed our next name id counter
   private var _maxNameId = new AtomicLong(
-    if (_names.isEmpty) 0L else _names.keySet().last().longValue)
-
-  private val _srcToId = createTreeMap("srcToId", stringSz, Serializer.INTEGER) // source -> unitId
-  private val _srcDefs = createTreeMap("srcDefs", intSz, IDS_SZ) // unitId -> Set(defId)
-  private val _srcInfo = createTreeMap("srcInfo", intSz, SRCINFO_SZ)
-  private val _topDefs = createTreeSet("topDefs", longSz)
-
-  private val _defs    = createTreeMap("defs",    longSz, DEF_SZ)
-  private val _defSig  = createTreeMap("defSig",  longSz, SIG_SZ)
-  private val _defDoc  = createTreeMap("defDoc",  longSz, DOC_SZ)
-  private val _defMems = createTreeMap("defMems", longSz, IDS_SZ)
-  private val _defUses = createTreeMap("defUses", longSz, USES_SZ)
+    if (_names.isEmpty) 0L else _names.lastKey.longValue)
+
+  private val _srcToIdT = new MapTable("srcToId", stringKey, Serializer.INTEGER) // source -> unitId
+  private def _srcToId = _srcToIdT.map
+  private val _srcDefsT = new MapTable("srcDefs", intKey, IDS_SZ) // unitId -> Set(defId)
+  private def _srcDefs = _srcDefsT.map
+  private val _srcInfoT = new MapTable("srcInfo", intKey, SRCINFO_SZ)
+  private def _srcInfo = _srcInfoT.map
+
+  // unit ids are never reused, so we seed our next unit id counter from the highest assigned id
+  // (this was once _srcToId.size+1, but computing the size of a B-tree requires scanning it)
+  private val _maxUnitId = new AtomicInteger(
+    if (_srcInfo.isEmpty) 0 else _srcInfo.lastKey.intValue)
+
+  private val _topDefsT = new SetTable("topDefs", longKey)
+  private def _topDefs = _topDefsT.set
+
+  private val _defsT    = new MapTable("defs",    longKey, DEF_SZ)
+  private def _defs     = _defsT.map
+  private val _defSigT  = new MapTable("defSig",  longKey, SIG_SZ)
+  private def _defSig   = _defSigT.map
+  private val _defDocT  = new MapTable("defDoc",  longKey, DOC_SZ)
+  private def _defDoc   = _defDocT.map
+  private val _defMemsT = new MapTable("defMems", longKey, IDS_SZ)
+  private def _defMems  = _defMemsT.map
+  private val _defUsesT = new MapTable("defUses", longKey, USES_SZ)
+  private def _defUses  = _defUsesT.map
+  // module defs are shared by every unit that defines them, this maps each to the ids of those
+  // units, so that we know when the last of them stops defining it (moduleDefId -> Set(unitId))
+  private val _modUnitsT = new MapTable("modUnits", longKey, IDS_SZ)
+  private def _modUnits  = _modUnitsT.map
+  // the digest of each def's data as of when it was last stored, see DefInfo.digest
+  private val _defDigestT = new MapTable("defDigest", longKey, Serializer.LONG)
+  private def _defDigest  = _defDigestT.map
+
+  private def relKey = tuple(longKey, intKey, longKey)
+  private val _relsFromT = new SetTable("relsFrom", relKey) // (defId, rel, nameId)
+  private def _relsFrom  = _relsFromT.set
+  private val _relsToT   = new SetTable("relsTo",   relKey) // (nameId, rel, defId)
+  private def _relsTo    = _relsToT.set
+
+  // (nameId, defId, offset) for every use, the unit id of a use is the unit id of its defId
+  private val _usePostsT = new SetTable("usePosts", postKey)
+  private def _usePosts  = _usePostsT.set
+
+  private val _indicesT = (Kind.values map { kind =>
+    (kind -> new SetTable("idx"+kind, nameIdxKey))
+  }).toMap
+  private def _indices (kind :Kind) = _indicesT(kind).set
+
+  // (initials, defId) for every def, where initials are the first letters of its name's camel humps
+  private val _camelIdxT = new SetTable("camelIdx", nameIdxKey)
+  private def _camelIdx  = _camelIdxT.set
+  // (trigram, defId) for every lowercased trigram of every def name, and the number of defs whose
+  // name contains each trigram, which lets fuzzy queries read only the postings of rare trigrams
+  private val _trigramIdxT = new SetTable("trigramIdx", nameIdxKey)
+  private def _trigramIdx  = _trigramIdxT.set
+  private val _trigramCountsT = new MapTable("trigramCounts", stringKey, Serializer.INTEGER)
+  private def _trigramCounts  = _trigramCountsT.map
+
+  // true while a writer session is bulk loading into an initially empty store
+  @volatile private var _bulk = false
+
+  // caches the names resolved by the writer during a session, see resolveName and friends
+  private val _nameCache = new NameCache(NAME_CACHE_SIZE)
+
+  // caches the refs (and names) of name ids, see cachedRef; the generation is bumped whenever a name
+  // changes so that readers don't cache a name that changed while they were resolving it
+  @volatile private var _refCacheSize = REF_CACHE_SIZE
+  @volatile private var _refCache = newRefCache(_refCacheSize)
+  private val _refCacheGen = new AtomicLong()
+
+  /** A read-only view of the store as of a particular commit. While a writer session is active,
+    * readers use the view of the writer's last commit, so that they neither block on the writer
+    * nor see partially written units. A view never changes, so it has its own ref cache. */
+  private class View (snap :StorageEngine.Snapshot) {
+    val refCache = newRefCache(_refCacheSize)
+    private val _tables = new ConcurrentHashMap[String,AnyRef]()
+    def map[K,V] (name :String) = _tables.computeIfAbsent(
+      name, n => snap.map[K,V](n)).asInstanceOf[OrderedMap[K,V]]
+    def set[E] (name :String) = _tables.computeIfAbsent(
+      name, n => snap.set[E](n)).asInstanceOf[OrderedSet[E]]
+  }
+  // the view used by readers, or null if readers should use the live tables
+  @volatile private var _view :View = null
+
+  /** Runs `op` with the current read view pinned to this thread, so that all of the tables that
+    * `op` reads reflect the same commit. */
+  private def reading[T] (op : => T) :T = {
+    val view = _view
+    if (view == null || _pinned.get != null) op
+    else {
+      _pinned.set(view)
+      try op
+      finally _pinned.remove()
+    }
+  }
 
-  private def relSz = new T3KS[Id,Integer,Id](null, null, null, null, null)
-  private val _relsFrom = createTreeSet("relsFrom", relSz) // (defId, rel, nameId)
-  private val _relsTo   = createTreeSet("relsTo",   relSz) // (nameId, rel, defId)
+  /** Runs `op` with `view` (which may be null, for the live tables) pinned to this thread. This
+    * allows work started on one thread to read the same view on others. */
+  private def readingIn[T] (view :View)(op : => T) :T = {
+    val pinned = _pinned.get
+    if (view == pinned) op
+    else {
+      if (view == null) _pinned.remove() else _pinned.set(view)
+      try op
+      finally if (pinned == null) _pinned.remove() else _pinned.set(pinned)
+    }
+  }
 
-  private val _useBySrc = createTreeMap("useBySrc", longSz, INT_SET_SZ) // nameId -> Set(unitId)
+  // a sketch of the fully qualified names defined by this store, which lets resolution skip stores
+  // that don't define a name without touching their tables; it's persisted when a writer session
+  // closes, and the persisted copy is cleared when one opens, so a store that was not closed
+  // cleanly rebuilds it rather than trusting a sketch that may be missing names
+  @volatile private var _defNames = DefNameFilter.read(engine.getBytes(DEF_NAMES)) match {
+    case null   =>
+      // building the filter requires a pass over the names, so save it
+      val defNames = buildDefNames()
+      engine.setBytes(DEF_NAMES, defNames.toBytes)
+      engine.commit()
+      defNames
+    case filter => filter
+  }
 
-  private val _indices = (Kind.values map { kind =>
-    (kind -> createTreeSet("idx"+kind, new T2KS[String,Id](null, null, null)))
-  }).toMap
+  /** Builds a def name filter from the names table. */
+  private def buildDefNames () :DefNameFilter = {
+    val defNames = DefNameFilter.create(_defs.size)
+    val iter = _names.iterator(null) ; while (iter.hasNext) {
+      val ent = iter.next
+      if (ent.getValue.unitId != 0) defNames.put(globalRef(ent.getKey).toString)
+    }
+    defNames
+  }
 
   def defCount :Int = _defs.size
   def nameCount :Int = _fqNames.size
 
+  /** Sets the maximum number of name refs cached by this store, which discards the current cache.
+    * Resolving uses to refs requires a lookup for every component of a use's name, so the cache
+    * should be large enough to hold the names in the units that are actively being viewed. */
+  def setRefCacheSize (size :Int) :Unit = {
+    _refCacheSize = size
+    _refCache = newRefCache(size)
+  }
+
+  /** Returns statistics on the name ref cache (hit rate, etc.), including the cache of the current
+    * read view, if a writer session is active. */
+  def refCacheStats :CacheStats = _view match {
+    case null => _refCache.stats
+    case view => _refCache.stats.plus(view.refCache.stats)
+  }
+
+  /** The number of name resolutions satisfied by the writer's name cache in the current (or most
+    * recent) writer session. */
+  def nameCacheHits :Long = _nameCache.hits
+  /** The number of name resolutions that missed the writer's name cache in the current (or most
+    * recent) writer session. */
+  def nameCacheMisses :Long = _nameCache.misses
+
+  /** Commits the units written during an (incremental) writer session in the background. Use this
+    * to configure when units are committed, to wait until stored units are durable, and to obtain
+    * commit statistics. */
+  val committer :GroupCommitter = new GroupCommitter(name, engine, new GroupCommitter.Target {
+    // readers move to the new commit as soon as it's begun: the engine serves its contents while
+    // they're written, and a crash before they're durable loses them from the store anyway
+    def beginCommit () = {
+      val commit = engine.beginCommit()
+      _view = new View(engine.snapshot())
+      commit
+    }
+  })
+
   override val writer = new BatchWriter() {
     import BatchWriter._
 
-    // use this to commit every 100 compilation units keeps WAL from getting too big
-    private[this] var _writeCount = 0
-    private[this] val COMMIT_EVERY = 100
-    private[this] val _nUseBySrc = new HashMap[Id,Set.Builder[Integer]]()
-
     override def openSession () :Unit = {
-      _writeCount = 0
+      _nameCache.reset()
+      // readers see the store as it was when the session started, until our next commit; a snapshot
+      // can't include uncommitted data, so commit anything written outside a session first
+      engine.setBytes(DEF_NAMES, NoBytes)
+      engine.commit()
+      _view = new View(engine.snapshot())
+      // if we're writing into an empty store (i.e. a full reindex), accumulate everything into
+      // sorted in-memory tables and build each tree in one sequential pass when the session closes
+      if (_srcToId.isEmpty && _names.isEmpty) {
+        _tables foreach { _.beginBulk() }
+        _bulk = true
+      }
+      // otherwise commit units in the background, which keeps the WAL from getting too big
+      else committer.start()
     }
 
     override def closeSession () :Unit = {
-      // update our "uses by unit id" indices
-      _nUseBySrc.toMapV foreach { (refId, nunitsB) =>
-        val units = _useBySrc.getOrDefault(refId, Set())
-        nunitsB ++= units
-        val nunits = nunitsB.build()
-        if (!units.equals(nunits)) _useBySrc.put(refId, nunits)
+      // wait for any background commit (rethrowing its failure, if any)
+      committer.stop()
+      if (_bulk) {
+        _tables foreach { _.endBulk() }
+        _bulk = false
       }
-      _nUseBySrc.clear()
 
-      // and finally commit all remaining writes
-      _db.commit()
+      // names are never removed from the def name filter, so rebuild it if too many are stale
+      if (_defNames.stale) _defNames = buildDefNames()
+      engine.setBytes(DEF_NAMES, _defNames.toBytes)
+
+      // and finally commit all remaining writes and return readers to the live tables
+      engine.commit()
+      _view = null
+      // the cache only lives as long as the session, but we keep its stats around
+      _nameCache.clear()
     }
 
-    override protected def storeUnit (source :Source, topDef :DefInfo) :Unit = {
+    // the committer only begins a commit between units
+    override protected def storeUnit (source :Source, topDef :DefInfo) :Unit =
+      committer.lock.synchronized {
+        storeUnit0(source, topDef)
+        if (!_bulk) committer.unitStored()
+      }
+
+    private def storeUnit0 (source :Source, topDef :DefInfo) :Unit = {
       val indexed = System.currentTimeMillis // note the time
 
       // resolve the unit id for this source
       val srcKey = source.toString()
-      val unitId = Mutable.getOrPut[String,Integer](_srcToId, srcKey, _srcToId.size+1)
+      val unitId = _srcToId.get(srcKey) match {
+        case null =>
+          val unitId = nextUnitId()
+          _srcToId.put(srcKey, unitId)
+          unitId
+        case unitId => unitId
+      }
+
+      // if the unit is exactly as it was when it was last stored, just note that it was reindexed
+      val oldInfo = _srcInfo.get(unitId)
+      val digest = topDef.treeDigest()
+      val unchanged = oldInfo != null && oldInfo.digest == digest
+      if (!unchanged) storeChanges(unitId, topDef)
+      _srcInfo.put(unitId, SourceInfo(srcKey, indexed, topDef.contentHash, topDef.apiHash, digest))
+    }
 
+    // stores the defs of a unit which changed since it was last stored, rewriting only the data
+    // of the defs which themselves changed
+    private def storeChanges (unitId :Int, topDef :DefInfo) :Unit = {
       // load the ids of existing defs in this source
       val oldSourceIds = _srcDefs.getOrDefault(unitId, NoIds)
-      val newSourceIdsB = idSetBuilder
-
-      // track all refs to defs defined outside this compunit
-      val extRefs = MSet[Id]()
+      val newSourceIdsB = IdSet.builder(oldSourceIds.size)
 
       // TODO: have DefInfo self-report?
       def defSpansSources (df :DefInfo) = df.kind == Kind.MODULE
@@ -127,59 +356,71 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
           ub.build()
       }
 
+      // the defs whose data is the same as when they were last stored, which we skip; a def that
+      // spans sources is shared with other units, so its stored digest may not be ours
+      val unchangedDefs = new HashSet[DefInfo]()
+      def isUnchanged (inf :DefInfo, defId :Id) =
+        !defSpansSources(inf) && (_defDigest.get(defId) match {
+          case null   => false
+          case digest => digest.longValue == inf.digest
+        })
+
       def storeDef (inf :DefInfo) :Unit = {
         val defId = resolveDefId(inf.id, inf.kind, unitId)
         val df = inf.toDef(MapDBStore.this, defId, inf.outer.defId)
-        _defs.put(df.id, PDef(df))
         newSourceIdsB += df.id
-        if (df.outerId == null) _topDefs.add(df.id)
-        _indices(df.kind).add(Fun.t2(df.name.toLowerCase, df.id))
+        if (isUnchanged(inf, defId)) unchangedDefs.add(inf)
+        else {
+          _defs.put(df.id, PDef(df))
+          _defDigest.put(df.id, inf.digest)
+          if (df.outerId == null) _topDefs.add(df.id)
+          _indices(df.kind).add(Fun.t2(df.name.toLowerCase, df.id))
+          indexName(df.name, df.id)
+          if (defSpansSources(inf)) {
+            val units = _modUnits.getOrDefault(df.id, NoIds)
+            if (!units.contains(unitId)) _modUnits.put(df.id, units + unitId)
+          }
+        }
       }
 
       def storeDefs (defs :JIterable[DefInfo]) :Unit = {
         if (defs != null) defs foreach { df =>
           storeDef(df)
           storeDefs(df.defs) // this will populate def.memDefIds with our member def ids
-
-          // now update our member def ids mapping
-          val memDefIds = df.memDefIds
-          // if this def spans source files, do more complex member def merging
-          val extMemDefIds = if (!defSpansSources(df)) NoIds
-                             else _defMems.getOrDefault(df.defId, NoIds) -- oldSourceIds
-          val ids = extMemDefIds ++ (if (memDefIds == null) NoIds else memDefIds.asScala)
-          if (ids.isEmpty) _defMems.remove(df.defId)
-          else _defMems.put(df.defId, ids)
+          // an unchanged def has the same member ids (and so member def ids) as before
+          if (!unchangedDefs.contains(df)) storeMems(df)
         }
       }
 
+      def storeMems (df :DefInfo) :Unit = {
+        // now update our member def ids mapping
+        val memDefIds = df.memDefIds
+        // if this def spans source files, do more complex member def merging
+        val extMemDefIds = if (!defSpansSources(df)) NoIds
+                           else _defMems.getOrDefault(df.defId, NoIds) -- oldSourceIds
+        val ids = extMemDefIds ++ (if (memDefIds == null) NoIds else IdSet.from(memDefIds))
+        if (ids.isEmpty) _defMems.remove(df.defId)
+        else _defMems.put(df.defId, ids)
+      }
+
       // first assign ids to all the defs and store the basic def data
       storeDefs(topDef.defs)
 
       // generate the set of all def ids in this compunit
-      val newSourceIds = newSourceIdsB.result
+      val newSourceIds = newSourceIdsB.result()
 
       def storeData (inf :DefInfo) :Unit = {
         val defId = inf.defId
         if (inf.sig != null) {
           _defSig.put(defId, PSig(inf.sig.text, resolveUses(inf.sig.uses)))
-        }
+        } else if (!_bulk) _defSig.remove(defId)
         if (inf.doc != null) {
           _defDoc.put(defId, PDoc(inf.doc.offset, inf.doc.length, resolveUses(inf.doc.uses)))
-        }
+        } else if (!_bulk) _defDoc.remove(defId)
 
-        if (inf.uses == null) _defUses.remove(defId)
-        else {
-          val uses = resolveUses(inf.uses)
-          _defUses.put(defId, uses)
-          // record all refs made from this compunit
-          uses foreach { use =>
-            // omit refs to defs that originated in this compunit when searching for refs to a def,
-            // we always include its defining compunit in the search, so we don't need to add that
-            // compunit to the index; this drastically reduces the size of the index because the
-            // vast majority of defs are not referenced outside their compunit
-            if (!newSourceIds(use.nameId)) extRefs += use.nameId
-          }
-        }
+        val uses :Seq[PUse] = if (inf.uses == null) null else resolveUses(inf.uses)
+        val oldUses = if (uses == null) _defUses.remove(defId) else _defUses.put(defId, uses)
+        updatePostings(defId, oldUses, uses)
 
         // compute (defId, relstr, tgtNameId) for all of this def's relations
         val rels = if (inf.relations == null) Collections.emptySet() else {
@@ -190,9 +431,11 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
           rels
         }
 
-        // delete stale relations and note which desired relations are still there
+        // delete stale relations and note which desired relations are still there; a bulk load
+        // starts from an empty store, so there are never any stale relations to delete
         def flip[A,B,C] (t3 :Fun.Tuple3[A,B,C]) = Fun.t3(t3.c, t3.b, t3.a)
-        val iter = _relsFrom.tailSet(Fun.t3(defId, null, null :Id)).iterator
+        val iter = if (_bulk) Collections.emptyIterator[Fun.Tuple3[Id,Integer,Id]]
+                   else _relsFrom.iterator(Fun.t3(defId, null, null :Id))
         var cont = true ; while (cont && iter.hasNext) {
           val t3 = iter.next
           if (t3.a != defId) cont = false // we're done here
@@ -212,35 +455,25 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
       // defs are stored and IDed, we can resolve many use refs to more compact local refs
       def storeDatas (defs :JIterable[DefInfo]) :Unit = {
         if (defs != null) defs foreach { df =>
-          storeData(df)
+          if (!unchangedDefs.contains(df)) storeData(df)
           storeDatas(df.defs)
         }
       }
       storeDatas(topDef.defs)
 
-      // accumulate to the indices for refs made in this compunit
-      extRefs foreach { refId =>
-        Mutable.getOrPut(_nUseBySrc, refId, Set.builder[Integer]()) += unitId
-      }
-
       // filter the reused source ids from the old source ids and delete any that remain
       val staleIds = oldSourceIds -- newSourceIds
-      if (!staleIds.isEmpty) removeDefs(staleIds)
-      _srcDefs.put(unitId, newSourceIds)
-      _srcInfo.put(unitId, SourceInfo(srcKey, indexed))
-
-      _writeCount += 1
-      if (_writeCount > COMMIT_EVERY) {
-        _db.commit()
-        _writeCount = 0
-      }
-
-      // System.err.println(srcKey + " has " + newSourceIds.size() + " defs")
+      if (!staleIds.isEmpty) removeDefs(unitId, staleIds)
+      if (newSourceIds != oldSourceIds) _srcDefs.put(unitId, newSourceIds)
     }
   }
 
   override def clear () :Unit = {
+    _maxNameId.set(0L)
+    _maxUnitId.set(0)
+    _nameCache.clear()
     _names.clear()
+    invalidateRefs()
     _fqNames.clear()
     _srcToId.clear()
     _srcInfo.clear()
@@ -251,44 +484,64 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
     _defUses.clear()
     _defSig.clear()
     _defDoc.clear()
-    _indices.values.foreach { _.clear() }
+    _defDigest.clear()
+    _modUnits.clear()
+    _indicesT.values.foreach { _.set.clear() }
+    _camelIdx.clear()
+    _trigramIdx.clear()
+    _trigramCounts.clear()
     _relsFrom.clear()
     _relsTo.clear()
-    _db.commit()
+    _defNames = DefNameFilter.create(0)
+    engine.setBytes(DEF_NAMES, NoBytes)
+    engine.commit()
   }
 
-  override def close () :Unit = {
-    _db.commit()
-    _db.close()
-  }
+  override def close () :Unit = engine.close()
 
-  override def topLevelDefs = toDefs("topLevelDefs", _topDefs)
+  override def topLevelDefs = reading {
+    val ids = Array.newBuilder[Long]
+    _topDefs.iterator.forEachRemaining(id => ids += id.longValue)
+    toDefs("topLevelDefs", ids.result)
+  }
 
-  override def lastIndexed (source :Source) =
+  override def lastIndexed (source :Source) = reading {
     Option(_srcToId.get(source.toString)).map(_srcInfo.get).map(_.indexed) getOrElse 0L
+  }
+  override def contentHash (source :Source) = reading {
+    Option(_srcToId.get(source.toString)).map(_srcInfo.get).map(_.contentHash) getOrElse 0L
+  }
+  override def apiHash (source :Source) = reading {
+    Option(_srcToId.get(source.toString)).map(_srcInfo.get).map(_.apiHash) getOrElse 0L
+  }
 
-  override def sourceDefs (source :Source) = {
+  override def sourceDefs (source :Source) = reading {
     val unitId = _srcToId.get(source.toString())
     if (unitId == null) throw new IllegalArgumentException("Unknown source " + source)
-    toDefs("sourceDefs", _srcDefs.get(unitId).asJava)
+    toDefs("sourceDefs", _srcDefs.get(unitId).toArray)
   }
 
-  override def `def` (defId :Id) = reqdef(defId, _defs.get(defId)).toDef(this)
-  override def `def` (ref :Ref.Global) = _fqNames.get(ref.toString) match {
-    case null => Optional.empty()
-    case nmid => Optional.ofNullable(_defs.get(toDefId(nmid, _names.get(nmid).unitId))).map(_.toDef(this))
+  override def `def` (defId :Id) = reading { reqdef(defId, _defs.get(defId)).toDef(this) }
+  override def mayDefine (ref :Ref.Global) = _defNames.mightContain(ref.toString)
+
+  override def `def` (ref :Ref.Global) = if (!mayDefine(ref)) Optional.empty[Def]() else reading {
+    _fqNames.get(ref.toString) match {
+      case null => Optional.empty[Def]()
+      case nmid => Optional.ofNullable(_defs.get(toDefId(nmid, cachedRef(nmid).name.unitId))).map(_.toDef(this))
+    }
   }
-  override def ref (defId :Id) = globalRef(toNameId(defId))
+  override def ref (defId :Id) = reading { globalRef(toNameId(defId)) }
 
-  override def defsIn (defId :Id) =
-    toDefs("defsIn", _defMems.getOrDefault(defId, NoIds).asJava)
+  override def defsIn (defId :Id) = reading {
+    toDefs("defsIn", _defMems.getOrDefault(defId, NoIds).toArray)
+  }
 
-  override def usesIn (defId :Id) = resolveUses(defUses(defId))
+  override def usesIn (defId :Id) = reading { resolveUses(defUses(defId)) }
   private def defUses (defId :Id) = _defUses.getOrDefault(defId, Seq())
 
-  override def relationsFrom (rel :Relation, defId :Id) = {
+  override def relationsFrom (rel :Relation, defId :Id) = reading {
     val rels = new HashSet[Ref]()
-    val iter = _relsFrom.tailSet(Fun.t3(defId, rel.code, null :Id)).iterator
+    val iter = _relsFrom.iterator(Fun.t3(defId, rel.code, null :Id))
     var cont = true ; while (cont && iter.hasNext) {
       val t3 = iter.next
       if (t3.a != defId || t3.b != rel.code) cont = false
@@ -297,57 +550,214 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
     rels
   }
 
-  override def relationsTo (rel :Relation, ref :Ref) = {
+  override def relationsTo (rel :Relation, ref :Ref) = reading {
     val nameId = ref match {
       case loc :Ref.Local  => toNameId(loc.defId)
       case glo :Ref.Global => lookupName(glo)
     }
-    val defs = new HashSet[Def]()
-    val iter = _relsTo.tailSet(Fun.t3(nameId, rel.code, null :Id)).iterator
+    val ids = Array.newBuilder[Long]
+    val iter = _relsTo.iterator(Fun.t3(nameId, rel.code, null :Id))
     var cont = true ; while (cont && iter.hasNext) {
       val t3 = iter.next
       if (t3.a != nameId || t3.b != rel.code) cont = false
-      else defs.add(`def`(t3.c))
+      else ids += t3.c.longValue
     }
-    defs
+    new HashSet[Def](defs(ids.result))
   }
 
-  override def usesOf (df :Def) = {
+  override def usesOf (df :Def) = reading {
     val isLocal = (df.project == this)
     val nameId = if (isLocal) toNameId(df.id) else lookupName(df.globalRef)
     // if we don't know about this global name, then we have no uses of it
     if (nameId == null) Collections.emptyMap[Source,Array[Int]]
     else {
+      // the postings for a name are contiguous in the index, group their offsets by unit
+      val offsets = new HashMap[Integer,Builder[Int,Array[Int]]]()
+      def unitOffsets (unitId :Integer) =
+        Mutable.getOrPut[Integer,Builder[Int,Array[Int]]](offsets, unitId, Array.newBuilder[Int])
+      // we always report the defining unit of a local def, even if it contains no uses
+      if (isLocal) unitOffsets(toUnitId(df.id))
+      val iter = _usePosts.iterator(Fun.t3(nameId, null :Id, null :Integer))
+      var cont = true ; while (cont && iter.hasNext) {
+        val post = iter.next
+        if (post.a != nameId) cont = false
+        else unitOffsets(toUnitId(post.b)) += post.c.intValue
+      }
+
       val uses = new HashMap[Source,Array[Int]]()
-      def addUses (unitId :Integer) :Unit = {
+      offsets.toMapV foreach { (unitId, offsB) =>
         val info = _srcInfo.get(unitId)
         if (info == null) {
           println(s"Def reports use in non-existent source [def=$df, unitId=$unitId]")
         } else {
-          // right now we brute force our way through all uses in matching comp units if that turns
-          // out to be too expensive, we can include enclosing def ids in our index
-          val offsets = Array.newBuilder[Int]
-          for (defId <- _srcDefs.get(unitId);
-               use  <- defUses(defId)) if (use.nameId == nameId) offsets += use.offset
-          uses.put(Source.fromString(info.source), offsets.result)
+          val offs = offsB.result
+          Arrays.sort(offs)
+          uses.put(Source.fromString(info.source), offs)
         }
       }
-      if (isLocal) addUses(toUnitId(df.id))
-      _useBySrc.getOrDefault(nameId, Set()) foreach addUses
       uses
     }
   }
 
-  override def sig (defId :Id) = _defSig.get(defId) match {
-    case null => Optional.empty[Sig]
-    case psig => Optional.of(psig.toSig(this))
+  override def defSpliterator () :Spliterator[Def] = newScan[Def](false)
+  override def defDataSpliterator () :Spliterator[ProjectStore.DefData] =
+    newScan[ProjectStore.DefData](true)
+
+  private def newScan[T] (data :Boolean) :Spliterator[T] = {
+    // the scan reads the view that's current when it starts, on whatever threads it's split onto
+    val view = _view
+    val end = readingIn(view) { if (_defs.isEmpty) 0L else _defs.lastKey.longValue + 1 }
+    new DefScan[T](view, data, 0L, end)
   }
-  override def doc (defId :Id) = _defDoc.get(defId) match {
-    case null => Optional.empty[Doc]
-    case pdoc => Optional.of(pdoc.toDoc(this))
+
+  /** Scans the defs with ids in `[from, to)` in a single ordered pass over the defs table, and (if
+    * `data` is true) the sig, uses and relations tables as well, joining their entries to the defs
+    * by id. It splits by halving its id range, which is fine as name ids are allocated densely. */
+  private class DefScan[T] (view :View, data :Boolean, private var from :Long, to :Long)
+      extends Spliterator[T] {
+    private var _defsI :JIterator[JMap.Entry[Id,PDef]] = _
+    private var _sigs :Peeker[JMap.Entry[Id,PSig]] = _
+    private var _uses :Peeker[JMap.Entry[Id,Seq[PUse]]] = _
+    private var _rels :Peeker[Fun.Tuple3[Id,Integer,Id]] = _
+
+    override def tryAdvance (action :Consumer[_ >: T]) :Boolean = readingIn(view) { advance(action) }
+    override def forEachRemaining (action :Consumer[_ >: T]) :Unit = readingIn(view) {
+      while (advance(action)) {}
+    }
+
+    override def trySplit () :Spliterator[T] =
+      if (_defsI != null || ((to - from) >>> UNIT_BITS) < MIN_SCAN_SPLIT) null
+      else {
+        val mid = from + (to - from)/2
+        val prefix = new DefScan[T](view, data, from, mid)
+        from = mid
+        prefix
+      }
+
+    // an upper bound: each name has at most one def
+    override def estimateSize () = math.max((to - from) >>> UNIT_BITS, 1L)
+    override def characteristics () =
+      Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL
+
+    private def advance (action :Consumer[_ >: T]) :Boolean = {
+      if (_defsI == null) {
+        _defsI = _defs.iterator(from)
+        if (data) {
+          _sigs = new Peeker(_defSig.iterator(from))
+          _uses = new Peeker(_defUses.iterator(from))
+          _rels = new Peeker(_relsFrom.iterator(Fun.t3(from :Id, null, null :Id)))
+        }
+      }
+      if (!_defsI.hasNext) false
+      else {
+        val ent = _defsI.next
+        val id = ent.getKey
+        if (id.longValue >= to) { _defsI = Collections.emptyIterator() ; false }
+        else {
+          val df = ent.getValue.toDef(MapDBStore.this)
+          action.accept((if (data) toData(df) else df).asInstanceOf[T])
+          true
+        }
+      }
+    }
+
+    private def toData (df :Def) :ProjectStore.DefData = {
+      val id = df.id.longValue
+      val sig = _sigs.takeIf(_.getKey.longValue, id) match {
+        case null => Optional.empty[Sig]
+        case ent  => Optional.of(ent.getValue.toSig(MapDBStore.this))
+      }
+      val uses = _uses.takeIf(_.getKey.longValue, id) match {
+        case null => Collections.emptyList[Use]
+        case ent  => resolveUses(ent.getValue)
+      }
+      var rels :JMap[Relation,JSet[Ref]] = Collections.emptyMap()
+      var rel = _rels.takeIf(_.a.longValue, id) ; while (rel != null) {
+        if (rels.isEmpty) rels = new EnumMap[Relation,JSet[Ref]](classOf[Relation])
+        rels.computeIfAbsent(Relation.fromCode(rel.b), _ => new HashSet[Ref]()).
+          add(nameToRef(rel.c))
+        rel = _rels.takeIf(_.a.longValue, id)
+      }
+      new ProjectStore.DefData(df, sig, uses, rels)
+    }
+  }
+
+  /** Wraps an iterator over entries in key order, to join them to a scan of another table. */
+  private class Peeker[E] (iter :JIterator[E]) {
+    private var _next :E = if (iter.hasNext) iter.next else null.asInstanceOf[E]
+    /** Skips entries with keys less than `key`, then returns (and consumes) the next entry if its
+      * key is `key`, otherwise returns null. */
+    def takeIf (keyOf :E => Long, key :Long) :E = {
+      while (_next != null && keyOf(_next) < key) advance()
+      if (_next == null || keyOf(_next) != key) null.asInstanceOf[E]
+      else { val next = _next ; advance() ; next }
+    }
+    private def advance () :Unit = _next = if (iter.hasNext) iter.next else null.asInstanceOf[E]
+  }
+
+  override def sig (defId :Id) = reading {
+    _defSig.get(defId) match {
+      case null => Optional.empty[Sig]
+      case psig => Optional.of(psig.toSig(this))
+    }
+  }
+  override def defs (defIds :Array[Long]) = reading {
+    val defs = new Array[Def](defIds.length)
+    lookupSorted(_defs, defIds) { (ii, pdef) => defs(ii) = reqdef(defIds(ii), pdef).toDef(this) }
+    Arrays.asList(defs :_*)
+  }
+  override def sigs (defIds :Array[Long]) = reading {
+    val sigs = new Array[Optional[Sig]](defIds.length)
+    lookupSorted(_defSig, defIds) { (ii, psig) =>
+      sigs(ii) = if (psig == null) Optional.empty[Sig] else Optional.of(psig.toSig(this))
+    }
+    Arrays.asList(sigs :_*)
+  }
+  override def refs (defIds :Array[Long]) = reading {
+    val nameIds = defIds.map(defId => toNameId(defId).longValue)
+    // load the names missing from the ref cache in one pass, then resolve them via the cache
+    val missing = nameIds.filter(nameId => nameId != ZeroId && !isCached(nameId))
+    val gen = _refCacheGen.get
+    lookupSorted(_names, missing) { (ii, name) =>
+      if (name != null) cacheRef(missing(ii), name, gen)
+    }
+    Arrays.asList(nameIds.map(nameId => globalRef(nameId)) :_*)
   }
 
-  override def source (defId :Id) = {
+  /** Looks up `keys` in `map` in key order (rather than the order given), and calls `fn` with the
+    * index of each key and its value (or null). Nearby keys are reached by stepping an iterator
+    * forward from the last key, rather than by descending the tree for each key. */
+  private def lookupSorted[V] (map :StorageEngine.OrderedMap[Id,V], keys :Array[Long])(
+    fn :(Int, V) => Unit) :Unit = {
+    val order = new Array[Integer](keys.length)
+    var ii = 0 ; while (ii < order.length) { order(ii) = ii ; ii += 1 }
+    Arrays.sort(order, (a :Integer, b :Integer) => java.lang.Long.compare(keys(a), keys(b)))
+    var iter :JIterator[JMap.Entry[Id,V]] = null
+    var cur :JMap.Entry[Id,V] = null
+    for (idx <- order) {
+      val key = keys(idx)
+      var steps = 0
+      while (cur != null && cur.getKey.longValue < key && steps < MAX_LOOKUP_STEPS) {
+        cur = if (iter.hasNext) iter.next else null
+        steps += 1
+      }
+      // if the key is further along than a few entries (or this is the first key), seek to it
+      if (iter == null || (cur != null && cur.getKey.longValue < key)) {
+        iter = map.iterator(key)
+        cur = if (iter.hasNext) iter.next else null
+      }
+      fn(idx, if (cur != null && cur.getKey.longValue == key) cur.getValue else null.asInstanceOf[V])
+    }
+  }
+
+  override def doc (defId :Id) = reading {
+    _defDoc.get(defId) match {
+      case null => Optional.empty[Doc]
+      case pdoc => Optional.of(pdoc.toDoc(this))
+    }
+  }
+
+  override def source (defId :Id) = reading {
     val info = _srcInfo.get(toUnitId(defId))
     if (info == null) throw new IllegalArgumentException("No source for def " + idToString(defId))
     Source.fromString(info.source)
@@ -359,31 +769,103 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
     s"$unitId:$defId"
   }
 
-  override def find (query :Query, expOnly :Boolean, into :JList[Def]) :Unit = {
-    val pre = query.prefix
+  override def find (query :Query, expOnly :Boolean, into :JList[Def]) :Unit =
+    find(query, expOnly, (df :Def) => into.add(df))
+
+  override def find (query :Query, expOnly :Boolean, into :Predicate[Def]) :Unit = reading {
+    if (query.mode.ranked) findRanked(query, expOnly, into)
+    else findByName(query, expOnly, into)
+  }
+
+  private def findByName (query :Query, expOnly :Boolean, into :Predicate[Def]) :Unit = {
+    def report (defId :Id) = _defs.get(defId) match {
+      case null => true // index can contain stale entries
+      // TODO: validate that def matches query (index may have stale link to reused def id)
+      case df   => (expOnly && !df.exported) || into.test(df.toDef(this))
+    }
     val name = query.name
-    val lowKey = Fun.t2(name, null :Id)
-    query.kinds foreach { kind =>
-      def loop (iter :JIterator[Fun.Tuple2[String,Id]]) :Unit = {
-        if (iter.hasNext) {
-          val ent = iter.next
-          if (!(pre && !ent.a.startsWith(name)) && !(!pre && !ent.a.equals(name))) {
-            val df = _defs.get(ent.b)
-            if (df != null) { // index can contain stale entries
-              // TODO: validate that def matches query (index may have stale link to reused def id)
-              if (!expOnly || df.exported) into.add(df.toDef(this))
-            }
-            loop(iter)
-          }
-        }
+    val kinds = query.kinds.asScala
+    // exact matches outscore longer prefix matches, so report them all first; every longer name
+    // with our prefix sorts at or after name+'\u0000'
+    kinds.forall(kind => scanIndex(_indices(kind), name, false)(report)) && (!query.prefix ||
+      kinds.forall(kind => scanIndex(_indices(kind), name, true, name + '\u0000')(report)))
+  }
+
+  private def findRanked (query :Query, expOnly :Boolean, into :Predicate[Def]) :Unit = {
+    // gather candidates from the name indices, then score each candidate's name to weed out the
+    // ones that don't actually match, and report the rest from best to worst
+    val candsB = IdSet.builder(64)
+    val cands :Id => Boolean = id => { candsB += id ; true }
+    val initials = query.humps.asScala.map(_.charAt(0)).mkString
+    if (initials.length > 0) scanIndex(_camelIdx, initials, true)(cands)
+    if (query.mode == Query.Mode.FUZZY) {
+      // any name with at least half of the query's trigrams has one of the k-ceil(k/2)+1 rarest
+      val trigrams = new HashSet[String]()
+      NameMatcher.trigrams(query.name, trigrams.add)
+      val rarest = trigrams.asScala.toSeq.sortBy(tri => trigramCount(tri))
+      rarest.take(rarest.size - (rarest.size+1)/2 + 1) foreach { tri =>
+        scanIndex(_trigramIdx, tri, false)(cands)
       }
-      loop(_indices(kind).tailSet(lowKey).iterator)
+      // and names that start with the query
+      query.kinds foreach { kind => scanIndex(_indices(kind), query.name, true)(cands) }
+    }
+    val scored = new ArrayList[(Int,PDef)]()
+    // look the candidates up in id order, which visits the defs tree in order
+    candsB.result() foreach { defId =>
+      val df = _defs.get(defId)
+      // indices can contain stale entries, so check the def itself
+      if (df != null && query.kinds.contains(df.kind) && (!expOnly || df.exported)) {
+        val score = query.score(df.name, () => _defs.get(df.outerId) match {
+          case null  => null
+          case outer => outer.name
+        })
+        if (score != NameMatcher.NO_MATCH) scored.add((score, df))
+      }
+    }
+    // the sort is stable, so equally scored defs stay in id order
+    scored.sort((a, b) => Integer.compare(b._1, a._1))
+    val iter = scored.iterator
+    while (iter.hasNext && into.test(iter.next._2.toDef(this))) {}
+  }
+
+  /** Applies `fn` to the def ids of the entries of `index` whose key is `key` or, if `prefix`,
+    * starts with `key`, starting with the first entry at or after `from`. Stops if `fn` returns
+    * false.
+    * @return false if `fn` stopped the scan, true otherwise. */
+  private def scanIndex (index :OrderedSet[Fun.Tuple2[String,Id]], key :String, prefix :Boolean,
+                         from :String = null)(fn :Id => Boolean) :Boolean = {
+    val iter = index.iterator(Fun.t2(if (from == null) key else from, null :Id))
+    while (iter.hasNext) {
+      val ent = iter.next
+      if (!(if (prefix) ent.a.startsWith(key) else ent.a.equals(key))) return true
+      if (!fn(ent.b)) return false
     }
+    true
+  }
+
+  private def trigramCount (trigram :String) :Int = _trigramCounts.get(trigram) match {
+    case null  => 0
+    case count => count.intValue
   }
 
-  private final val UNIT_BITS = 16
-  private final val UNIT_SKIP = (1 << UNIT_BITS) // 65536
-  private final val UNIT_MASK = UNIT_SKIP-1      // 0xFFFF
+  /** Adds `defId` to the camel and trigram indices for `name`. */
+  private def indexName (name :String, defId :Id) :Unit = {
+    _camelIdx.add(Fun.t2(NameMatcher.initials(name), defId))
+    NameMatcher.trigrams(name.toLowerCase, tri => {
+      if (_trigramIdx.add(Fun.t2(tri, defId))) _trigramCounts.put(tri, trigramCount(tri)+1)
+    })
+  }
+
+  /** Removes `defId` from the camel and trigram indices for `name`. */
+  private def unindexName (name :String, defId :Id) :Unit = {
+    _camelIdx.remove(Fun.t2(NameMatcher.initials(name), defId))
+    NameMatcher.trigrams(name.toLowerCase, tri => {
+      if (_trigramIdx.remove(Fun.t2(tri, defId))) trigramCount(tri) match {
+        case 1 | 0 => _trigramCounts.remove(tri)
+        case count => _trigramCounts.put(tri, count-1)
+      }
+    })
+  }
 
   @inline private def toNameId (defId :Id) :Id  = defId & ~UNIT_MASK
   @inline private def toUnitId (defId :Id) :Int = (defId & UNIT_MASK).toInt
@@ -391,39 +873,99 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
 
   private def globalRef (nameId :Id) :Ref.Global =
     if (nameId == ZeroId) Ref.Global.ROOT
-    else _names.get(nameId) match {
+    else cachedRef(nameId) match {
       case null => println(s"Missing name: $this @ $nameId") ; Ref.Global.ROOT.plus("!invalid!")
-      case name => globalRef(name.parentId).plus(name.id)
+      case cached => cached.ref
     }
 
-  private def nameToRef (nameId :Id) :Ref = nameToRef(nameId, _names.get(nameId))
-  private def nameToRef (nameId :Id, name :Name) :Ref =
-    if (name.unitId == 0) globalRef(name.parentId).plus(name.id)
-    else Ref.local(this, toDefId(nameId, name.unitId))
+  private def nameToRef (nameId :Id) :Ref = nameToRef(nameId, cachedRef(nameId))
+  private def nameToRef (nameId :Id, cached :CachedRef) :Ref =
+    if (cached.name.unitId == 0) cached.ref
+    else Ref.local(this, toDefId(nameId, cached.name.unitId))
+
+  /** Returns the global ref and name for `nameId`, or null if we have no such name. */
+  private def cachedRef (nameId :Id) :CachedRef = refCache.getIfPresent(nameId) match {
+    case null =>
+      val gen = _refCacheGen.get
+      _names.get(nameId) match {
+        case null => null
+        case name => cacheRef(nameId, name, gen)
+      }
+    case cached => cached
+  }
+
+  private def isCached (nameId :Id) = refCache.getIfPresent(nameId) != null
+
+  /** Resolves the global ref for `name` (whose id is `nameId`) and caches it, unless the cache was
+    * invalidated since `gen` (read before `name` was) and we're not reading a pinned view. */
+  private def cacheRef (nameId :Id, name :Name, gen :Long) :CachedRef = {
+    val view = _pinned.get
+    val cached = CachedRef(globalRef(name.parentId).plus(name.id), name)
+    if (view != null || _refCacheGen.get == gen) refCache.put(nameId, cached)
+    cached
+  }
+
+  private def refCache :Cache[Id,CachedRef] = _pinned.get match {
+    case null => _refCache
+    case view => view.refCache
+  }
+
+  private def invalidateRef (nameId :Id) :Unit = {
+    _refCacheGen.incrementAndGet()
+    _refCache.invalidate(nameId)
+  }
+  private def invalidateRefs () :Unit = {
+    _refCacheGen.incrementAndGet()
+    _refCache.invalidateAll()
+  }
 
   private def lookupName (ref :Ref.Global) :Id = _fqNames.get(ref.toString)
 
-  private def toDefs (where :String, ids :Collection[Id]) :Seq[Def] = {
-    val defs = Seq.builder[Def](ids.size)
-    val iter = ids.iterator() ; while (iter.hasNext) {
-      val id = iter.next
-      _defs.get(id) match {
-        case null => println(s"Missing def [in=$where, id=$id]")
-        case df   => defs += df.toDef(this)
-      }
+  private def toDefs (where :String, ids :Array[Long]) :Seq[Def] = {
+    val found = new Array[Def](ids.length)
+    lookupSorted(_defs, ids) { (ii, df) =>
+      if (df == null) println(s"Missing def [in=$where, id=${ids(ii)}]")
+      else found(ii) = df.toDef(this)
     }
+    val defs = Seq.builder[Def](ids.length)
+    for (df <- found) if (df != null) defs += df
     defs.build()
   }
 
+  private def nextUnitId () :Integer = {
+    val unitId = _maxUnitId.incrementAndGet()
+    if (unitId > UNIT_MASK) throw new IllegalStateException(
+      s"Store $name exceeded maximum unit count ($UNIT_MASK).")
+    unitId
+  }
+
   private def addName (ref :Ref.Global, kind :Kind, unitId :Int) :Id = {
     val parentId = if (ref.parent == Ref.Global.ROOT) ZeroId
                    else resolveName(ref.parent)
     val nameId :Id = _maxNameId.addAndGet(UNIT_SKIP)
-    _names.put(nameId, Name(ref.id, parentId, kind, unitId))
     _fqNames.put(ref.toString, nameId)
+    putName(ref, nameId, Name(ref.id, parentId, kind, unitId))
     nameId
   }
 
+  private def putName (ref :Ref.Global, nameId :Id, name :Name) :Unit = {
+    _names.put(nameId, name)
+    if (name.unitId != 0) _defNames.put(ref.toString)
+    invalidateRef(nameId)
+    _nameCache.put(ref, CachedName(nameId, name))
+  }
+
+  private def lookupCached (ref :Ref.Global) :CachedName = _nameCache.lookup(ref) match {
+    case null => _fqNames.get(ref.toString) match {
+      case null => null
+      case nmid =>
+        val cached = CachedName(nmid, _names.get(nmid))
+        _nameCache.put(ref, cached)
+        cached
+    }
+    case cached => cached
+  }
+
   // these resolve methods are similar, but combining them all together results in a complex,
   // incomprehensible mess, instead we separate out the three name resolution cases into three
   // methods:
@@ -432,27 +974,26 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
   // resolveDefId - resolves the nameId + unitId of a DEF, the kind and unitId may need to be
   //                updated, and we return a defId, not a nameId (unlike the other methods)
 
-  private def resolveName (ref :Ref.Global) :Id = _fqNames.get(ref.toString) match {
+  private def resolveName (ref :Ref.Global) :Id = lookupCached(ref) match {
     case null => addName(ref, null, 0)
-    case nmid => nmid
+    case cached => cached.nameId
   }
 
-  private def resolveUseName (ref :Ref.Global, kind :Kind) :Id = _fqNames.get(ref.toString) match {
+  private def resolveUseName (ref :Ref.Global, kind :Kind) :Id = lookupCached(ref) match {
     case null => addName(ref, kind, 0)
-    case nmid =>
-      val name = _names.get(nmid)
-      if (kind != name.kind) _names.put(nmid, name.copy(kind=kind))
-      nmid
+    case cached =>
+      if (kind != cached.name.kind) putName(ref, cached.nameId, cached.name.copy(kind=kind))
+      cached.nameId
   }
 
   private def resolveDefId (ref :Ref.Global, kind :Kind, unitId :Int) :Id =
-    _fqNames.get(ref.toString) match {
+    lookupCached(ref) match {
       case null => addName(ref, kind, unitId) | unitId
-      case nmid =>
-        val name = _names.get(nmid)
+      case cached =>
+        val nmid = cached.nameId ; val name = cached.name
         if (name.unitId != 0) nmid | name.unitId
         else {
-          _names.put(nmid, name.copy(kind=kind, unitId=unitId))
+          putName(ref, nmid, name.copy(kind=kind, unitId=unitId))
           nmid | unitId
         }
     }
@@ -460,49 +1001,78 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
   private[store] def resolveUses (puses :Seq[PUse]) :JList[Use] = {
     val uses = new ArrayList[Use](puses.size)
     puses foreach { use =>
-      val name = _names.get(use.nameId)
-      if (name == null) println(s"No name for $use!")
-      else uses.add(new Use(nameToRef(use.nameId, name), name.kind, use.offset, use.length))
+      val cached = cachedRef(use.nameId)
+      if (cached == null) println(s"No name for $use!")
+      else uses.add(new Use(nameToRef(use.nameId, cached), cached.name.kind, use.offset, use.length))
     }
     uses
   }
 
-  private def removeDefs (defIds :IdSet) :Unit = {
+  /** Removes `defIds`, which unit `unitId` no longer defines. */
+  private def removeDefs (unitId :Int, defIds :IdSet) :Unit = {
     println(s"Removing ${defIds.size} defs.")
     // we want to remove defs from highest def id to lowest,
     // so that we're sure to remove children before parents
-    Seq.builder[Id].append(defIds).build().reverse foreach { defId =>
-      val df = _defs.remove(defId)
-      // if this def is a module, we can't delete it because it may be "defined" by multiple source
-      // files, so the fact that one source file no longer defines it does not mean it is no longer
-      // in use; so put it back; I don't have any good ideas on how to avoid leaking module defs
-      // without making def removal way more expensive, so I'm going to punt; do a full reindex!
-      if (df != null && df.kind == Kind.MODULE) _defs.put(defId, df)
+    defIds reverseForeach { defId =>
+      val df = _defs.get(defId)
+      // a module may be "defined" by multiple source files, so the fact that this one no longer
+      // defines it does not mean it is no longer in use; if other units still define it, we just
+      // remove this unit's members (which are stale along with it)
+      val units = if (df == null || df.kind != Kind.MODULE) NoIds
+                  else _modUnits.getOrDefault(defId, NoIds) - unitId
+      if (units.nonEmpty) {
+        _modUnits.put(defId, units)
+        val mems = _defMems.getOrDefault(defId, NoIds) -- defIds
+        if (mems.isEmpty) _defMems.remove(defId)
+        else _defMems.put(defId, mems)
+      }
       else {
         // remove the def from the myriad def maps
+        _defs.remove(defId)
+        _modUnits.remove(defId)
         _topDefs.remove(defId)
         _defMems.remove(defId)
-        _defUses.remove(defId)
+        updatePostings(defId, _defUses.remove(defId), null)
         _defSig.remove(defId)
         _defDoc.remove(defId)
-        // remove any uses record for the def
-        val nameId = toNameId(defId)
-        _useBySrc.remove(nameId)
+        _defDigest.remove(defId)
+        if (df != null) unindexName(df.name, defId)
         // remove the def's name from the name tables and by-name indices
+        val nameId = toNameId(defId)
         val name = _names.remove(nameId)
+        invalidateRef(nameId)
         if (name == null) println(s"No name for ${idToString(defId)} / $df")
         else try {
+          if (name.unitId != 0) _defNames.removed += 1
           _indices(name.kind).remove(Fun.t2(name.id.toLowerCase, defId))
           // do this last because it could choke if somehow a name was missing up the chain
           val ref = globalRef(name.parentId).plus(name.id)
           _fqNames.remove(ref.toString)
+          _nameCache.remove(ref)
         } catch {
-          case t :Throwable => println(s"Remove name choked ${idToString(defId)} / $df / $name: $t")
+          case t :Throwable =>
+            println(s"Remove name choked ${idToString(defId)} / $df / $name: $t")
+            // we don't know which cached ref maps to this name, so play it safe
+            _nameCache.clear()
         }
       }
     }
   }
 
+  /** Updates the use postings for `defId` whose uses changed from `oldUses` to `newUses`, either of
+    * which may be null. */
+  private def updatePostings (defId :Id, oldUses :Seq[PUse], newUses :Seq[PUse]) :Unit = {
+    val nposts = new HashSet[Post]()
+    if (newUses != null) newUses foreach { use =>
+      nposts.add(Fun.t3[Id,Id,Integer](use.nameId, defId, use.offset))
+    }
+    if (oldUses != null) oldUses foreach { use =>
+      val post = Fun.t3[Id,Id,Integer](use.nameId, defId, use.offset)
+      if (!nposts.remove(post)) _usePosts.remove(post)
+    }
+    if (!nposts.isEmpty) _usePosts.addAll(nposts)
+  }
+
   private def reqdef[T] (defId :Id, value :T) = {
     if (value == null) throw new NoSuchElementException(s"No def with id ${idToString(defId)}")
     value
@@ -510,10 +1080,120 @@ class MapDBStore private (name :String, maker :DBMaker[_]) extends ProjectStore(
 }
 
 object MapDBStore {
+  import IO._
+  import scala.jdk.CollectionConverters._
+
+  /** A Bloom filter of the fully qualified names that a store defines. Names can't be removed from
+    * a Bloom filter, so we count removals and rebuild the filter once too many names are stale, or
+    * once it holds more names than it was sized for, which degrades its false positive rate. */
+  private class DefNameFilter (capacity :Int, filter :BloomFilter[CharSequence]) {
+    var added = 0
+    var removed = 0
+
+    def mightContain (name :String) = filter.mightContain(name)
+    def put (name :String) :Unit = if (filter.put(name)) added += 1
+    def stale = added > capacity || removed > added/4
+
+    def toBytes :Array[Byte] = {
+      val bytes = new ByteArrayOutputStream()
+      val out = new DataOutputStream(bytes)
+      out.writeInt(capacity)
+      out.writeInt(added)
+      out.writeInt(removed)
+      filter.writeTo(out)
+      out.flush()
+      bytes.toByteArray
+    }
+  }
+
+  private object DefNameFilter {
+    def create (count :Int) :DefNameFilter = {
+      // leave room for the store to double in size before it needs rebuilding
+      val capacity = math.max(count*2, 1024)
+      new DefNameFilter(capacity, BloomFilter.create(defNamesFunnel, capacity, 0.01))
+    }
+
+    /** Reads a persisted filter, returns null if there is none or it can't be read. */
+    def read (bytes :Array[Byte]) :DefNameFilter = if (bytes == null || bytes.length == 0) null
+    else try {
+      val in = new DataInputStream(new ByteArrayInputStream(bytes))
+      val capacity = in.readInt() ; val added = in.readInt() ; val removed = in.readInt()
+      val defNames = new DefNameFilter(capacity, BloomFilter.readFrom(in, defNamesFunnel))
+      defNames.added = added
+      defNames.removed = removed
+      defNames
+    } catch {
+      case ioe :IOException => println(s"Error reading def name filter: $ioe") ; null
+    }
+
+    private def defNamesFunnel = Funnels.stringFunnel(StandardCharsets.UTF_8)
+  }
+
+  private final val DEF_NAMES = "defNames"
+  private val NoBytes = new Array[Byte](0)
+
+  /** A name along with its resolved global ref. */
+  private case class CachedRef (ref :Ref.Global, name :Name)
+
+  private def newRefCache (size :Int) :Cache[Id,CachedRef] =
+    CacheBuilder.newBuilder.maximumSize(size).recordStats.build[Id,CachedRef]()
+
+  // the default size of a store's name ref cache
+  private final val REF_CACHE_SIZE = 1 << 16
+
+  /** A name resolved by the writer, along with its name id. */
+  private case class CachedName (nameId :Id, name :Name)
+
+  /** A bounded, least-recently-used cache of resolved names, keyed by ref. */
+  private class NameCache (maxSize :Int)
+      extends java.util.LinkedHashMap[Ref.Global,CachedName](1024, 0.75f, true) {
+    var hits = 0L
+    var misses = 0L
+
+    def lookup (ref :Ref.Global) :CachedName = {
+      val cached = get(ref)
+      if (cached == null) misses += 1 else hits += 1
+      cached
+    }
+
+    def reset () :Unit = {
+      clear()
+      hits = 0L
+      misses = 0L
+    }
+
+    override protected def removeEldestEntry (
+      eldest :java.util.Map.Entry[Ref.Global,CachedName]) = size > maxSize
+  }
+
+  // the writer's name cache holds this many names, about 10MB at most
+  private final val NAME_CACHE_SIZE = 1 << 16
+
+  // def ids combine a name id (high bits) and the id of the unit that defines the name (low bits);
+  // name ids are assigned in increments of UNIT_SKIP so that their unit bits are always zero
+  private[store] final val UNIT_BITS = 24
+  private[store] final val UNIT_SKIP = 1L << UNIT_BITS // 16M units
+  private[store] final val UNIT_MASK = UNIT_SKIP-1     // 0xFFFFFF
+
+  /** A def scan over fewer than this many names' worth of ids is not split further. */
+  private final val MIN_SCAN_SPLIT = 1024L
+  // how many entries a batch lookup steps over to reach the next key before seeking to it instead
+  private final val MAX_LOOKUP_STEPS = 16
+
+  private[store] type Post = Fun.Tuple3[Id,Id,Integer]
+  private[store] def postKey = KeyType.tuple(KeyType.LONG, KeyType.LONG, KeyType.INT)
+
+  private[store] def nameIdxKey = KeyType.tuple(KeyType.STRING, KeyType.LONG)
+  private[store] def nameIdxSz = MapDBEngine.keySerializer(nameIdxKey)
+
+  private[store] def fileDB (storePath :Path) :DBMaker[_] = DBMaker.newFileDB(storePath.toFile).
+    mmapFileEnableIfSupported.
+    cacheDisable.
+    compressionEnable
 
   def checkSchema (name :String, storePath :Path) :Path = {
-    // check our schema version and blow away the old db if the schema is out of date since a store
-    // is basically a fancy cache, it'll be rebuilt
+    // check our schema version and migrate the db if we can, or blow away the old db if the schema
+    // is out of date and we can't; since a store is basically a fancy cache, it'll be rebuilt
     val versFile = Paths.get(storePath.toString+".v")
     var fileVers = 0
     try {
@@ -526,15 +1206,17 @@ object MapDBStore {
         t.printStackTrace(System.err)
     }
     if (fileVers < SCHEMA_VERS) {
-      val storeName = storePath.getFileName.toString
-      assert(storeName.length > 0)
-      try {
-        val parent = storePath.getParent
-        if (parent != null && Files.exists(parent)) Files.list(parent).collect(Collectors.toList[Path]) foreach { path =>
-          if (path.getFileName.toString.startsWith(storeName)) Files.delete(path)
+      if (!migrate(storePath, fileVers)) {
+        val storeName = storePath.getFileName.toString
+        assert(storeName.length > 0)
+        try {
+          val parent = storePath.getParent
+          if (parent != null && Files.exists(parent)) Files.list(parent).collect(Collectors.toList[Path]) foreach { path =>
+            if (path.getFileName.toString.startsWith(storeName)) Files.delete(path)
+          }
+        } catch {
+          case ioe :IOException => println(s"Error deleting stale database: $ioe")
         }
-      } catch {
-        case ioe :IOException => println(s"Error deleting stale database: $ioe")
       }
       try {
         Files.write(versFile, Arrays.asList(String.valueOf(SCHEMA_VERS)))
@@ -545,5 +1227,171 @@ object MapDBStore {
     storePath
   }
 
-  private final val SCHEMA_VERS = 4
+  /** Upgrades the store at `storePath` from `fromVers` to [[SCHEMA_VERS]] in place, if there is an
+    * unbroken chain of migrations between the two versions.
+    * @return true if the store was migrated, false if it must be rebuilt. */
+  private def migrate (storePath :Path, fromVers :Int) :Boolean = {
+    val steps = (fromVers until SCHEMA_VERS).map(MIGRATIONS.get)
+    if (fromVers == 0 || steps.exists(_.isEmpty) || !Files.exists(storePath)) false
+    else try {
+      val db = fileDB(storePath).make()
+      try {
+        steps foreach { step => step.get(db) }
+        db.commit()
+      } finally db.close()
+      println(s"Migrated $storePath from schema $fromVers to $SCHEMA_VERS.")
+      true
+    } catch {
+      case t :Throwable =>
+        println(s"Error migrating $storePath from schema $fromVers, will rebuild: $t")
+        false
+    }
+  }
+
+  /** Migrations from the keyed schema version to the subsequent version. */
+  private val MIGRATIONS = Map[Int,DB => Unit](
+    4 -> migrateWideUnitIds,
+    5 -> migrateUsePostings,
+    6 -> migrateEncoding,
+    7 -> migrateNameIndices,
+    8 -> migrateSourceHashes,
+    9 -> migrateDigests,
+    10 -> migrateModUnits
+  )
+
+  /** Schema 4 reserved 16 bits of every def id for its unit id, schema 5 reserves 24. */
+  private def migrateWideUnitIds (db :DB) :Unit = {
+    def remap (id :Id) :Id = ((id >>> 16) << UNIT_BITS) | (id & 0xFFFF)
+    def remapIds (ids :IdSet) :IdSet = {
+      val ib = IdSet.builder(ids.size)
+      ids foreach { id => ib += remap(id) }
+      ib.result()
+    }
+    def remapUses (uses :Seq[PUse]) = {
+      val ub = Seq.builder[PUse](uses.size)
+      uses foreach { use => ub += use.copy(nameId=remap(use.nameId)) }
+      ub.build()
+    }
+
+    // every key in these trees is ordered by id, and remapping preserves order, but we still need
+    // to rewrite every entry, so we just pull everything out and put it all back
+    def rewriteMap[K,V] (name :String, fk :K => K, fv :V => V) = if (db.exists(name)) {
+      val map :BTreeMap[K,V] = db.getTreeMap(name)
+      val ents = new ArrayList[JMap.Entry[K,V]](map.entrySet)
+      map.clear()
+      ents foreach { ent => map.put(fk(ent.getKey), fv(ent.getValue)) }
+    }
+    def rewriteSet[E] (name :String, fe :E => E) = if (db.exists(name)) {
+      val set :java.util.NavigableSet[E] = db.getTreeSet(name)
+      val elems = new ArrayList[E](set)
+      set.clear()
+      elems foreach { elem => set.add(fe(elem)) }
+    }
+
+    rewriteMap[Id,Name]("names", remap, name => name.copy(parentId=remap(name.parentId)))
+    rewriteMap[String,Id]("fqNames", k => k, remap)
+    rewriteMap[Integer,IdSet]("srcDefs", k => k, remapIds)
+    rewriteSet[Id]("topDefs", remap)
+    rewriteMap[Id,PDef]("defs", remap, df => df.copy(id=remap(df.id), outerId=remap(df.outerId)))
+    rewriteMap[Id,PSig]("defSig", remap, sig => sig.copy(uses=remapUses(sig.uses)))
+    rewriteMap[Id,PDoc]("defDoc", remap, doc => doc.copy(uses=remapUses(doc.uses)))
+    rewriteMap[Id,IdSet]("defMems", remap, remapIds)
+    rewriteMap[Id,Seq[PUse]]("defUses", remap, remapUses)
+    rewriteMap[Id,Set[Integer]]("useBySrc", remap, v => v)
+    type Rel = Fun.Tuple3[Id,Integer,Id]
+    rewriteSet[Rel]("relsFrom", t3 => Fun.t3(remap(t3.a), t3.b, remap(t3.c)))
+    rewriteSet[Rel]("relsTo", t3 => Fun.t3(remap(t3.a), t3.b, remap(t3.c)))
+    Kind.values foreach { kind =>
+      rewriteSet[Fun.Tuple2[String,Id]]("idx"+kind, t2 => Fun.t2(t2.a, remap(t2.b)))
+    }
+  }
+
+  /** Schema 5 indexed uses by (nameId -> Set(unitId)), schema 6 indexes every use. */
+  private def migrateUsePostings (db :DB) :Unit = {
+    if (db.exists("useBySrc")) db.delete("useBySrc")
+    val posts = db.createTreeSet("usePosts").serializer(MapDBEngine.keySerializer(postKey)).
+      makeOrGet[Post]
+    if (db.exists("defUses")) {
+      val defUses :BTreeMap[Id,Seq[PUse]] = db.getTreeMap("defUses")
+      defUses.entrySet foreach { ent =>
+        ent.getValue foreach { use => posts.add(Fun.t3[Id,Id,Integer](use.nameId, ent.getKey, use.offset)) }
+      }
+    }
+  }
+
+  /** Schema 7 changed the encoding of every stored value (see [[IO]]), so we copy each tree whose
+    * values changed into one that uses the new serializer. */
+  private def migrateEncoding (db :DB) :Unit = {
+    reencode(db, "names", KeyType.LONG, new NameSerializerV2())
+    reencode(db, "fqNames", KeyType.STRING, new NameIdSerializer())
+    reencode(db, "srcDefs", KeyType.INT, new IdSetSerializerV2())
+    reencode(db, "srcInfo", KeyType.INT, new SourceInfoSerializerV2())
+    reencode(db, "defs", KeyType.LONG, new DefSerializerV2())
+    reencode(db, "defSig", KeyType.LONG, new SigSerializerV2())
+    reencode(db, "defDoc", KeyType.LONG, new DocSerializerV2())
+    reencode(db, "defMems", KeyType.LONG, new IdSetSerializerV2())
+    reencode(db, "defUses", KeyType.LONG, new UsesSerializerV2())
+  }
+
+  /** Replaces the tree `name` with a copy whose values are written by `vSz`. */
+  private def reencode[K,V] (db :DB, name :String, keys :KeyType[K], vSz :Serializer[V]) :Unit =
+    if (db.exists(name)) {
+      val temp = name + "_migrating"
+      val copy = db.createTreeMap(temp).keySerializer(MapDBEngine.keySerializer(keys)).
+        valueSerializer(vSz).make[K,V]()
+      copy.putAll(db.getTreeMap[K,V](name))
+      db.delete(name)
+      db.rename(temp, name)
+    }
+
+  /** Schema 8 added the camel hump and trigram indices, which we build from the stored defs. */
+  private def migrateNameIndices (db :DB) :Unit = {
+    val camel = db.createTreeSet("camelIdx").serializer(nameIdxSz).make[Fun.Tuple2[String,Id]]()
+    val trigrams = db.createTreeSet("trigramIdx").serializer(nameIdxSz).
+      make[Fun.Tuple2[String,Id]]()
+    val counts = new HashMap[String,Integer]()
+    db.getTreeMap[Id,PDef]("defs").values foreach { df =>
+      camel.add(Fun.t2(NameMatcher.initials(df.name), df.id))
+      NameMatcher.trigrams(df.name.toLowerCase, tri => {
+        if (trigrams.add(Fun.t2(tri, df.id))) counts.put(tri, counts.getOrDefault(tri, 0)+1)
+      })
+    }
+    db.createTreeMap("trigramCounts").keySerializer(BTreeKeySerializer.STRING).
+      valueSerializer(Serializer.INTEGER).make[String,Integer]().putAll(counts)
+  }
+
+  /** Schema 9 added content and API hashes to the source info, which only reextracting a unit can
+    * supply. So the hashes of a migrated unit are zero (unknown), which no unit hashes to, and the
+    * unit is reextracted the next time its project is reindexed. */
+  private def migrateSourceHashes (db :DB) :Unit =
+    reencode(db, "srcInfo", KeyType.INT, new SourceInfoSerializerV3())
+
+  /** Schema 10 added the digests of each unit and def as of when they were last stored. A migrated
+    * unit's digest is zero, and its defs have none, so each is rewritten when it's next stored. */
+  private def migrateDigests (db :DB) :Unit = {
+    reencode(db, "srcInfo", KeyType.INT, new SourceInfoSerializerV4())
+    db.createTreeMap("defDigest").keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG).
+      valueSerializer(Serializer.LONG).makeOrGet[Id,java.lang.Long]()
+  }
+
+  /** Schema 11 added the units that define each module def, which we recover from the defs of
+    * each unit. */
+  private def migrateModUnits (db :DB) :Unit = {
+    val defs = db.getTreeMap[Id,PDef]("defs")
+    val units = new HashMap[Id,IdSet.Builder]()
+    db.getTreeMap[Integer,IdSet]("srcDefs").entrySet foreach { ent =>
+      ent.getValue foreach { defId =>
+        val df = defs.get(defId)
+        if (df != null && df.kind == Kind.MODULE) {
+          units.computeIfAbsent(defId, _ => IdSet.builder(4)) += ent.getKey.longValue
+        }
+      }
+    }
+    val modUnits = db.createTreeMap("modUnits").
+      keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG).valueSerializer(IDS_SZ).
+      make[Id,IdSet]()
+    units.entrySet foreach { ent => modUnits.put(ent.getKey, ent.getValue.result()) }
+  }
+
+  private final val SCHEMA_VERS = 11
 }
@@ -39,8 +39,15 @@ public class ExtractingScanner extends TreePathScanner<Void,Writer> {
   }
 
   public void extract (Tree ast, Writer writer) throws IOException {
+    extract(ast, writer, 0L, 0L);
+  }
+
+  /** Extracts {@code ast} into {@code writer}, reporting the supplied hashes for its unit (unless
+    * both are 0L). See {@link Writer#emitHashes}. */
+  public void extract (Tree ast, Writer writer, long contentHash, long apiHash) throws IOException {
     JCCompilationUnit unit = (JCCompilationUnit)ast;
     writer.openUnit(uriToSource(unit.sourcefile.toUri()));
+    if (contentHash != 0L || apiHash != 0L) writer.emitHashes(contentHash, apiHash);
     _text = unit.sourcefile.getCharContent(true).toString();
     scan(ast, writer);
     writer.closeUnit();
@@ -4,32 +4,75 @@
 
 package codex.extract;
 
+import codex.model.Def;
+import codex.model.Source;
+import codex.store.ProjectStore;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteStreams;
+import com.google.common.hash.Hashing;
 import javac.source.tree.CompilationUnitTree;
 import javac.source.util.JavacTask;
 import javac.tools.javac.api.JavacTaskImpl;
 import javac.tools.javac.api.JavacTool;
+import javac.tools.javac.code.Symbol.ClassSymbol;
 import javac.tools.javac.code.Types;
+import javac.tools.javac.file.PathFileObject;
+import javac.tools.javac.tree.JCTree.JCClassDecl;
+import javac.tools.javac.tree.JCTree.JCCompilationUnit;
+import javac.tools.javac.tree.JCTree;
 import javac.tools.javac.util.Context;
+import javac.tools.sjavac.comp.PubAPIs;
+import javac.tools.sjavac.pubapi.PubApi;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import javax.lang.model.element.Element;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 
 /**
  * Handles extraction of Codex metadata from Java source code. This effectively compiles the code
@@ -54,6 +97,18 @@ public class JavaExtractor implements Extractor {
     return this;
   }
 
+  /** Configures the number of compiler tasks this extractor runs concurrently. When greater than
+    * one, sources are split into package-coherent partitions, each of which is compiled by its own
+    * compiler task on its own thread. A task parses and enters only its partition's sources (and
+    * those of other partitions that they reference, which it loads from its source path as needed),
+    * and attributes only its partition's sources. Extracted metadata is delivered to the writer on
+    * the calling thread, a unit at a time, as units are extracted.
+    */
+  public JavaExtractor setParallelism (int parallelism) {
+    _parallelism = Math.max(1, parallelism);
+    return this;
+  }
+
   /** Provides the classpath used by the compiler. */
   public Iterable<Path> classpath () { return Collections.emptyList(); }
 
@@ -61,13 +116,96 @@ public class JavaExtractor implements Extractor {
     if (sources instanceof SourceSet.Files) {
       Iterable<Path> files = ((SourceSet.Files)sources).paths;
       StandardJavaFileManager fm = _compiler.getStandardFileManager(null, null, null); // TODO: args?
-      process0(fm.getJavaFileObjectsFromFiles(Iterables.transform(files, Path::toFile)), writer);
+      process0(Lists.newArrayList(
+        fm.getJavaFileObjectsFromFiles(Iterables.transform(files, Path::toFile))), writer);
     } else {
       SourceSet.Archive sa = (SourceSet.Archive)sources;
       process0(ZipUtils.zipFiles(_compiler, sa.archive, sa.filter), writer);
     }
   }
 
+  /**
+   * Incrementally reindexes {@code files} into {@code store}. A file whose contents hash to the
+   * same value as when the store last indexed it is skipped, unless it depends on a unit whose
+   * public API changed. The public API of each changed unit is computed (via sjavac's {@link
+   * PubAPIs}) and compared with the API hash recorded by the store; if it differs, every unit that
+   * used one of the unit's old defs is reextracted as well, because its uses may now resolve
+   * differently, and its API is checked in turn.
+   *
+   * <p>If no file has changed, the compiler is not run at all. Otherwise all of {@code files} are
+   * parsed and entered, so that references resolve, but only the reextracted units are
+   * attributed. Units that are no longer in {@code files} are not removed from the store.</p>
+   *
+   * @return the sources that were reextracted.
+   */
+  public Set<Source> reindex (Iterable<Path> files, ProjectStore store) throws IOException {
+    // hash the contents of every file and note those that changed since they were last indexed
+    Map<Source,Long> hashes = new HashMap<>();
+    Set<Source> changed = new LinkedHashSet<>();
+    for (Path file : files) {
+      Source source = new Source.File(file);
+      long hash = nonZero(Hashing.murmur3_128().hashBytes(Files.readAllBytes(file)).asLong());
+      hashes.put(source, hash);
+      if (hash != store.contentHash(source)) changed.add(source);
+    }
+    if (changed.isEmpty()) return changed;
+
+    AtomicIntegerArray diags = new AtomicIntegerArray(Diagnostic.Kind.values().length);
+    StandardJavaFileManager fm = _compiler.getStandardFileManager(null, null, null);
+    JavacTaskImpl task = newTask(fm.getJavaFileObjectsFromFiles(
+      Iterables.transform(files, Path::toFile)), diags);
+    Map<Source,JCCompilationUnit> units = new HashMap<>();
+    for (CompilationUnitTree tree : task.parse()) {
+      units.put(new Source.File(Paths.get(tree.getSourceFile().toUri())), (JCCompilationUnit)tree);
+    }
+    task.enter();
+
+    // determine which units to reextract: the changed units, and the users of any unit whose
+    // public API changed (transitively)
+    PubAPIs pubApis = PubAPIs.instance(task.getContext());
+    Map<Source,Long> apiHashes = new HashMap<>();
+    Set<Source> reindex = new LinkedHashSet<>(changed);
+    Deque<Source> pending = new ArrayDeque<>(changed);
+    while (!pending.isEmpty()) {
+      Source source = pending.poll();
+      JCCompilationUnit unit = units.get(source);
+      for (ClassSymbol sym : classSymbols(unit)) pubApis.visitPubapi(sym);
+      long apiHash = apiHash(pubApis.getPubapis(Collections.singleton(unit.sourcefile), true));
+      apiHashes.put(source, apiHash);
+      // a new unit has no old defs, so nothing that we know of used them
+      if (apiHash == store.apiHash(source) || store.lastIndexed(source) == 0L) continue;
+      for (Def def : store.sourceDefs(source)) {
+        for (Source user : store.usesOf(def).keySet()) {
+          if (units.containsKey(user) && reindex.add(user)) pending.add(user);
+        }
+      }
+    }
+
+    List<Element> elems = new ArrayList<>();
+    for (Source source : reindex) addElements(units.get(source), elems);
+    task.analyze(elems);
+
+    Writer writer = store.writer();
+    writer.openSession();
+    try {
+      ExtractingScanner scanner = new ExtractingScanner(
+        Types.instance(task.getContext()), _omitBodies);
+      for (Source source : reindex) {
+        scanner.extract(units.get(source), writer, hashes.get(source), apiHashes.get(source));
+      }
+    } finally {
+      writer.closeSession();
+    }
+
+    try {
+      cleanup(task);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    reportDiags(diags);
+    return reindex;
+  }
+
   /** Combines {@code file} and {@code code} into a test file and processes it.
     * Metadata is emitted to {@code writer}. */
   public void process (String file, String code, Writer writer) {
@@ -87,59 +225,305 @@ public class JavaExtractor implements Extractor {
     System.out.println(message);
   }
 
-  private void process0 (Iterable<? extends JavaFileObject> files, Writer writer) {
+  private void process0 (List<? extends JavaFileObject> files, Writer writer) {
+    try {
+      List<List<JavaFileObject>> parts = partition(files, _parallelism);
+      if (parts.size() > 1) processParallel(parts, writer);
+      else processSerial(files, writer);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void processSerial (List<? extends JavaFileObject> files, Writer writer)
+      throws Exception {
+    AtomicIntegerArray diags = new AtomicIntegerArray(Diagnostic.Kind.values().length);
+    JavacTaskImpl task = newTask(files, diags);
+    Iterable<? extends CompilationUnitTree> asts = task.parse();
+    task.analyze(); // don't need results, but need annotations in tree
+
+    writer.openSession();
     try {
-      // we set our output dir to tmp.dir just in case annotation processors decide to generate
-      // output even though we don't want any
-      List<String> opts = Lists.newArrayList("-Xjcov", "-d", System.getProperty("java.io.tmpdir"));
-
-      String cp = Joiner.on(File.pathSeparator).join(classpath());
-      if (cp.length() > 0) {
-        opts.add("-classpath");
-        opts.add(cp);
+      Context context = task.getContext();
+      ExtractingScanner scanner = new ExtractingScanner(Types.instance(context), _omitBodies);
+      for (CompilationUnitTree tree : asts) {
+        scanner.extract(tree, writer);
       }
+    } finally {
+      writer.closeSession();
+    }
 
-      int[] diags = new int[Diagnostic.Kind.values().length];
-      DiagnosticListener<JavaFileObject> diag = new DiagnosticListener<JavaFileObject>() {
-        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
-          diags[diagnostic.getKind().ordinal()]++;
+    cleanup(task);
+    reportDiags(diags);
+  }
+
+  private void processParallel (List<List<JavaFileObject>> parts, Writer writer)
+      throws Exception {
+    List<JavaFileObject> files = new ArrayList<>();
+    for (List<JavaFileObject> part : parts) {
+      for (ListIterator<JavaFileObject> iter = part.listIterator(); iter.hasNext(); ) {
+        JavaFileObject file = iter.next();
+        if (file instanceof PathFileObject) iter.set(file = new SharedSource(file));
+        files.add(file);
+      }
+    }
+    SourcePath srcpath = new SourcePath(files);
+    AtomicIntegerArray diags = new AtomicIntegerArray(Diagnostic.Kind.values().length);
+    // the writer is not thread-safe, so the tasks hand each extracted unit to this thread; the
+    // queue is bounded, so that extraction can't run arbitrarily far ahead of the writer
+    BlockingQueue<RecordingWriter> units = new ArrayBlockingQueue<>(4*_parallelism);
+    ExecutorService exec = Executors.newFixedThreadPool(Math.min(_parallelism, parts.size()), r -> {
+      Thread thread = new Thread(r, "JavaExtractor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (List<JavaFileObject> part : parts) results.add(exec.submit(() -> {
+        try {
+          extractPartition(part, srcpath, diags, units);
+        } finally {
+          units.put(PART_DONE);
         }
-      };
-      JavacTaskImpl task = (JavacTaskImpl)_compiler.getTask(null, null, diag, opts, null, files);
-      Iterable<? extends CompilationUnitTree> asts = task.parse();
-      task.analyze(); // don't need results, but need annotations in tree
+        return null;
+      }));
 
       writer.openSession();
       try {
-        Context context = task.getContext();
-        ExtractingScanner scanner = new ExtractingScanner(Types.instance(context), _omitBodies);
-        for (CompilationUnitTree tree : asts) {
-          scanner.extract(tree, writer);
+        for (int done = 0; done < parts.size(); ) {
+          RecordingWriter unit = units.take();
+          if (unit == PART_DONE) done += 1;
+          else unit.replay(writer);
         }
       } finally {
         writer.closeSession();
       }
+      for (Future<?> result : results) result.get(); // report any failure
+    } finally {
+      exec.shutdownNow();
+    }
 
-      // annoyingly, there's no (public) way to tell the task that we're done without generating
-      // .class files, so instead we have to do this reach around
-      Method endContext = Iterables.find(Arrays.asList(task.getClass().getDeclaredMethods()),
-                                         m -> m.getName().equals("cleanup"));
-      endContext.setAccessible(true);
-      endContext.invoke(task);
-
-      // report the number of diagnostics
-      StringBuilder sb = new StringBuilder();
-      for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
-        int count = diags[kind.ordinal()];
-        if (count == 0) continue;
-        if (sb.length() > 0) sb.append(", ");
-        sb.append(kind.toString().toLowerCase()).append('=').append(count);
+    reportDiags(diags);
+  }
+
+  private void extractPartition (List<JavaFileObject> part, SourcePath srcpath,
+                                 AtomicIntegerArray diags, BlockingQueue<RecordingWriter> units)
+      throws Exception {
+    // the task parses and enters only the partition's sources; those of other partitions are
+    // loaded from the source path as the partition references them, and they are entered (but not
+    // attributed) only as far as is needed to resolve those references
+    StandardJavaFileManager fm = _compiler.getStandardFileManager(null, null, null);
+    try {
+      JavacTaskImpl task = newTask(part, diags, srcpath.manager(fm));
+      List<CompilationUnitTree> asts = Lists.newArrayList(task.parse());
+      task.enter();
+
+      List<Element> elems = new ArrayList<>();
+      for (CompilationUnitTree tree : asts) addElements((JCCompilationUnit)tree, elems);
+      task.analyze(elems);
+
+      ExtractingScanner scanner = new ExtractingScanner(
+        Types.instance(task.getContext()), _omitBodies);
+      for (CompilationUnitTree tree : asts) {
+        RecordingWriter unit = new RecordingWriter();
+        scanner.extract(tree, unit);
+        units.put(unit);
       }
-      if (sb.length() > 0) log("Diagnostics [" + sb + "]");
+      cleanup(task);
+    } finally {
+      fm.close();
+    }
+  }
 
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /** A source file that compiler tasks on several threads may share. The file objects of a file
+    * manager read their contents via its caches, which are not thread-safe. */
+  private static class SharedSource extends ForwardingJavaFileObject<JavaFileObject> {
+    SharedSource (JavaFileObject file) {
+      super(file);
     }
+
+    @Override public CharSequence getCharContent (boolean ignoreEncodingErrors) throws IOException {
+      // the text is needed by the task that parses the file and again to extract it, but we don't
+      // want to pin every file's text in memory for the whole extraction
+      String text = _text.get();
+      if (text == null) {
+        try (InputStream in = fileObject.openInputStream()) {
+          text = new String(ByteStreams.toByteArray(in), Charset.defaultCharset());
+        }
+        _text = new SoftReference<>(text);
+      }
+      return text;
+    }
+
+    private volatile SoftReference<String> _text = new SoftReference<>(null);
+  }
+
+  /** Serves a source set to compiler tasks from their source path, by package. */
+  private static class SourcePath {
+    final Map<String,List<JavaFileObject>> pkgs = new HashMap<>();
+    final Map<JavaFileObject,String> names = new HashMap<>();
+
+    SourcePath (List<? extends JavaFileObject> files) throws IOException {
+      for (JavaFileObject file : files) {
+        // we find each file's package by scanning its text for the package declaration, which is
+        // far cheaper than parsing it
+        Matcher m = PACKAGE.matcher(file.getCharContent(true));
+        String pkg = m.find() ? m.group(1) : "";
+        String uri = file.toUri().toString();
+        String name = uri.substring(uri.lastIndexOf('/')+1, uri.length()-".java".length());
+        pkgs.computeIfAbsent(pkg, p -> new ArrayList<>()).add(file);
+        names.put(file, pkg.isEmpty() ? name : pkg + "." + name);
+      }
+    }
+
+    /** Returns a file manager that delegates to {@code fm}, but serves our sources from its
+      * source path. */
+    JavaFileManager manager (StandardJavaFileManager fm) {
+      return new ForwardingJavaFileManager<JavaFileManager>(fm) {
+        @Override public boolean hasLocation (Location loc) {
+          return loc == StandardLocation.SOURCE_PATH || super.hasLocation(loc);
+        }
+        @Override public Iterable<JavaFileObject> list (
+          Location loc, String pkg, Set<JavaFileObject.Kind> kinds, boolean recurse)
+            throws IOException {
+          if (loc != StandardLocation.SOURCE_PATH) return super.list(loc, pkg, kinds, recurse);
+          if (!kinds.contains(JavaFileObject.Kind.SOURCE)) return Collections.emptyList();
+          if (!recurse) return pkgs.getOrDefault(pkg, Collections.emptyList());
+          List<JavaFileObject> files = new ArrayList<>();
+          for (Map.Entry<String,List<JavaFileObject>> entry : pkgs.entrySet()) {
+            String epkg = entry.getKey();
+            if (pkg.isEmpty() || epkg.equals(pkg) || epkg.startsWith(pkg + ".")) {
+              files.addAll(entry.getValue());
+            }
+          }
+          return files;
+        }
+        @Override public String inferBinaryName (Location loc, JavaFileObject file) {
+          String name = names.get(file);
+          return (name != null) ? name : super.inferBinaryName(loc, file);
+        }
+        @Override public boolean isSameFile (FileObject a, FileObject b) {
+          if (names.containsKey(a) || names.containsKey(b)) return a.toUri().equals(b.toUri());
+          return super.isSameFile(a, b);
+        }
+      };
+    }
+
+    private static final Pattern PACKAGE = Pattern.compile(
+      "^\\s*package\\s+([\\p{javaJavaIdentifierPart}.]+)\\s*;", Pattern.MULTILINE);
+  }
+
+  // the elements to attribute in order to extract unit
+  private static void addElements (JCCompilationUnit unit, List<Element> into) {
+    if (unit.packge != null) into.add(unit.packge);
+    into.addAll(classSymbols(unit));
+  }
+
+  private static List<ClassSymbol> classSymbols (JCCompilationUnit unit) {
+    List<ClassSymbol> syms = new ArrayList<>();
+    for (JCTree def : unit.defs) {
+      if (def instanceof JCClassDecl && ((JCClassDecl)def).sym != null) {
+        syms.add(((JCClassDecl)def).sym);
+      }
+    }
+    return syms;
+  }
+
+  // combines the public APIs of the packages defined by a unit (usually just one) into a hash
+  private static long apiHash (Map<String,PubApi> apis) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (String pkg : new TreeSet<>(apis.keySet())) {
+      hasher.putString(pkg, StandardCharsets.UTF_8);
+      for (String line : apis.get(pkg).asListOfStrings()) {
+        hasher.putString(line, StandardCharsets.UTF_8).putChar('\n');
+      }
+    }
+    return nonZero(hasher.hash().asLong());
+  }
+
+  // a zero hash means "unknown" to the store
+  private static long nonZero (long hash) {
+    return (hash == 0L) ? 1L : hash;
+  }
+
+  private JavacTaskImpl newTask (Iterable<? extends JavaFileObject> files,
+                                 AtomicIntegerArray diags) {
+    return newTask(files, diags, null);
+  }
+
+  private JavacTaskImpl newTask (Iterable<? extends JavaFileObject> files,
+                                 AtomicIntegerArray diags, JavaFileManager fm) {
+    // we set our output dir to tmp.dir just in case annotation processors decide to generate
+    // output even though we don't want any
+    List<String> opts = Lists.newArrayList("-Xjcov", "-d", System.getProperty("java.io.tmpdir"));
+
+    String cp = Joiner.on(File.pathSeparator).join(classpath());
+    if (cp.length() > 0) {
+      opts.add("-classpath");
+      opts.add(cp);
+    }
+
+    DiagnosticListener<JavaFileObject> diag = new DiagnosticListener<JavaFileObject>() {
+      public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        diags.incrementAndGet(diagnostic.getKind().ordinal());
+      }
+    };
+    return (JavacTaskImpl)_compiler.getTask(null, fm, diag, opts, null, files);
+  }
+
+  private void cleanup (JavacTaskImpl task) throws Exception {
+    // annoyingly, there's no (public) way to tell the task that we're done without generating
+    // .class files, so instead we have to do this reach around
+    Method endContext = Iterables.find(Arrays.asList(task.getClass().getDeclaredMethods()),
+                                       m -> m.getName().equals("cleanup"));
+    endContext.setAccessible(true);
+    endContext.invoke(task);
+  }
+
+  private void reportDiags (AtomicIntegerArray diags) {
+    // report the number of diagnostics
+    StringBuilder sb = new StringBuilder();
+    for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
+      int count = diags.get(kind.ordinal());
+      if (count == 0) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(kind.toString().toLowerCase()).append('=').append(count);
+    }
+    if (sb.length() > 0) log("Diagnostics [" + sb + "]");
+  }
+
+  /** Splits {@code files} into at most {@code count} partitions of roughly equal size. Files in a
+    * given package (directory) are kept together unless the package is larger than a partition's
+    * share, in which case it is split into share-sized chunks. */
+  private static List<List<JavaFileObject>> partition (List<? extends JavaFileObject> files,
+                                                       int count) {
+    Map<String,List<JavaFileObject>> pkgs = new LinkedHashMap<>();
+    for (JavaFileObject file : files) {
+      String path = file.toUri().toString();
+      String pkg = path.substring(0, path.lastIndexOf('/')+1);
+      pkgs.computeIfAbsent(pkg, p -> new ArrayList<>()).add(file);
+    }
+    if (count <= 1 || files.size() <= 1) return Collections.singletonList(new ArrayList<>(files));
+
+    // split oversized packages (a partition's sources resolve their package peers from the source
+    // path, so this costs some redundant entering but keeps one package from setting the pace)
+    int share = (files.size() + count - 1) / count;
+    List<List<JavaFileObject>> groups = new ArrayList<>();
+    for (List<JavaFileObject> pkg : pkgs.values()) {
+      for (int ii = 0; ii < pkg.size(); ii += share) {
+        groups.add(pkg.subList(ii, Math.min(ii + share, pkg.size())));
+      }
+    }
+    // assign the largest groups first, each to the currently smallest partition
+    groups.sort((a, b) -> Integer.compare(b.size(), a.size()));
+    List<List<JavaFileObject>> parts = new ArrayList<>();
+    for (int ii = 0, ll = Math.min(count, groups.size()); ii < ll; ii++) parts.add(new ArrayList<>());
+    for (List<JavaFileObject> group : groups) {
+      List<JavaFileObject> smallest = parts.get(0);
+      for (List<JavaFileObject> part : parts) if (part.size() < smallest.size()) smallest = part;
+      smallest.addAll(group);
+    }
+    return parts;
   }
 
   private JavaFileObject mkTestObject (String file, String code) {
@@ -150,6 +534,10 @@ public class JavaExtractor implements Extractor {
     };
   }
 
+  // marks the end of a partition's units
+  private static final RecordingWriter PART_DONE = new RecordingWriter();
+
   private final JavacTool _compiler;
   private boolean _omitBodies;
+  private int _parallelism = 1;
 }
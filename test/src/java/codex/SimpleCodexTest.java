@@ -7,6 +7,7 @@ package codex;
 import codex.extract.*;
 import codex.model.*;
 import codex.store.*;
+import com.google.common.io.CharStreams;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -20,7 +21,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import java.util.zip.ZipFile;
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -45,7 +48,11 @@ public class SimpleCodexTest {
   }
 
   public static MapDBStore createCodexStore () throws Exception {
-    MapDBStore store = new MapDBStore("test");
+    return indexCodex(new MapDBStore("test"));
+  }
+
+  /** Indexes the codex sources into {@code store}, which is returned. */
+  public static <S extends ProjectStore> S indexCodex (S store) throws Exception {
     List<Path> classpath = new ArrayList<>();
     for (URL url : ((URLClassLoader)SimpleCodexTest.class.getClassLoader()).getURLs()) {
       classpath.add(Paths.get(url.toURI()));
@@ -57,7 +64,7 @@ public class SimpleCodexTest {
     return store;
   }
 
-  public static MapDBStore store;
+  public static ProjectStore store;
   @BeforeClass public static void populateStore () throws Exception {
     store = createCodexStore();
   }
@@ -101,4 +108,107 @@ public class SimpleCodexTest {
       // dump(def);
     }
   }
+
+  @Test public void testFindCamel () {
+    List<ProjectStore> stores = Collections.singletonList(store);
+    List<Def> pdefs = Query.camel("PS").kind(Kind.TYPE).find(stores);
+    assertFalse(pdefs.isEmpty());
+    assertEquals("ProjectStore", pdefs.get(0).name); // exact hump count ranks first
+    for (Def def : pdefs) assertTrue(def.name, def.name.startsWith("P"));
+
+    List<Def> gets = Query.camel("getDefId").find(stores);
+    for (Def def : gets) assertTrue(def.name, def.name.startsWith("get"));
+  }
+
+  @Test public void testFindFuzzy () {
+    List<ProjectStore> stores = Collections.singletonList(store);
+    List<Def> stores_ = Query.fuzzy("prjstore").kind(Kind.TYPE).find(stores);
+    assertFalse(stores_.isEmpty());
+    assertEquals("ProjectStore", stores_.get(0).name);
+
+    List<Def> locals = Query.fuzzy("local").find(stores);
+    assertFalse(locals.isEmpty());
+    // an exact match outranks names that merely contain the query
+    assertEquals("local", locals.get(0).name.toLowerCase());
+
+    // a def's name can be qualified by its enclosing def's name
+    List<Def> units = Query.fuzzy("bwstoreunit").find(stores);
+    assertFalse(units.isEmpty());
+    assertEquals("storeUnit", units.get(0).name);
+    assertEquals("BatchWriter", units.get(0).outer().name);
+  }
+
+  @Test public void testFindTopK () {
+    List<ProjectStore> stores = Collections.singletonList(store);
+    List<Def> refs = Query.prefix("ref").find(stores, 3);
+    assertEquals(3, refs.size());
+    // the exact match that is an exported public type ranks first
+    assertEquals("Ref", refs.get(0).name);
+    assertEquals(Kind.TYPE, refs.get(0).kind);
+
+    // the top K must score the same as the best K of all matches
+    Query query = Query.prefix("to");
+    List<Def> all = query.find(stores);
+    List<Def> top = query.find(stores, 10);
+    assertEquals(10, top.size());
+    List<Integer> allScores = new ArrayList<>();
+    for (Def def : all) allScores.add(rank(query, def));
+    allScores.sort(Collections.reverseOrder());
+    for (int ii = 0; ii < top.size(); ii++) {
+      assertEquals(allScores.get(ii).intValue(), rank(query, top.get(ii)));
+    }
+  }
+
+  private static int rank (Query query, Def def) {
+    return Ranker.DEFAULT.score(query, query.score(def.name), def, true);
+  }
+
+  @Test public void testUsesOf () throws IOException {
+    List<ProjectStore> stores = Collections.singletonList(store);
+    Def kind = Ref.resolve(stores, Ref.global("codex.model", "Kind")).get();
+    Map<Source,int[]> uses = store.usesOf(kind);
+    boolean sawDef = false;
+    for (Map.Entry<Source,int[]> entry : uses.entrySet()) {
+      String text = CharStreams.toString(entry.getKey().reader());
+      for (int offset : entry.getValue()) {
+        assertEquals("Kind", text.substring(offset, offset+4));
+      }
+      if (entry.getKey().toString().endsWith("Def.java")) sawDef = entry.getValue().length > 0;
+    }
+    assertTrue("Def.java uses Kind", sawDef);
+  }
+
+  @Test public void testScanDefs () {
+    // walk the def tree to find all defs, then check that a scan yields them in id order
+    List<Long> walked = new ArrayList<>();
+    addIds(store.topLevelDefs(), walked);
+    Collections.sort(walked);
+    List<Long> scanned = store.scanDefs().map(def -> def.id).collect(Collectors.toList());
+    assertEquals(walked, scanned);
+    assertEquals(scanned, store.scanDefs().parallel().map(def -> def.id).
+                 collect(Collectors.toList()));
+  }
+
+  private static void addIds (Iterable<Def> defs, List<Long> into) {
+    for (Def def : defs) {
+      into.add(def.id);
+      addIds(store.defsIn(def.id), into);
+    }
+  }
+
+  @Test public void testScanDefData () {
+    long withRels = store.scanDefData().parallel().filter(data -> {
+      Long id = data.def.id;
+      assertEquals(store.sig(id).map(sig -> sig.text), data.sig.map(sig -> sig.text));
+      List<String> uses = new ArrayList<>();
+      for (Use use : store.usesIn(id)) uses.add(use.toString());
+      assertEquals(uses, data.uses.stream().map(Use::toString).collect(Collectors.toList()));
+      for (Relation rel : Relation.values()) {
+        assertEquals(store.relationsFrom(rel, id),
+                     data.relations.getOrDefault(rel, Collections.emptySet()));
+      }
+      return !data.relations.isEmpty();
+    }).count();
+    assertTrue(withRels > 0);
+  }
 }
@@ -53,7 +53,8 @@ public class TestCodex {
     store.clear();
 
     long start = System.currentTimeMillis();
-    JavaExtractor extract = new JavaExtractor().setSummaryMode(true);
+    JavaExtractor extract = new JavaExtractor().setSummaryMode(true).
+      setParallelism(Runtime.getRuntime().availableProcessors());
     switch (what) {
     case "guava":
       {
@@ -0,0 +1,115 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import codex.store.*;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AsyncWriterTest {
+
+  private static void writeUnit (Writer w, String path) {
+    w.openUnit(new Source.File(path));
+    w.openDef(Ref.Global.fromString("pkg " + path), path, Kind.TYPE, Flavor.CLASS, true,
+              Access.PUBLIC, 0, 0, 10);
+    w.closeDef();
+    w.closeUnit();
+  }
+
+  @Test public void testStore () {
+    ProjectStore store = new MapDBStore("test");
+    new JavaExtractor().process("TestA.java", TestSources.TESTA,
+                                new AsyncWriter(store.writer(), 4));
+    assertTrue(store.def(Ref.Global.fromString("foo.bar TestA B")).isPresent());
+    store.close();
+  }
+
+  @Test public void testReplayEvents () {
+    StringWriter direct = new StringWriter(), async = new StringWriter();
+    String code = TestSources.TESTA;
+    new JavaExtractor().process("TestA.java", code, new TextWriter(new PrintWriter(direct)));
+    new JavaExtractor().process("TestA.java", code,
+                                new AsyncWriter(new TextWriter(new PrintWriter(async)), 1));
+    // a unit is replayed from its batched form, so each def's events are grouped by type, rather
+    // than in the order the extractor emitted them, but the events are the same
+    assertEquals(sortedLines(direct), sortedLines(async));
+  }
+
+  private static List<String> sortedLines (StringWriter out) {
+    List<String> lines = new ArrayList<>(Arrays.asList(out.toString().split("\n")));
+    Collections.sort(lines);
+    return lines;
+  }
+
+  @Test public void testFailure () {
+    List<String> stored = new ArrayList<>();
+    AsyncWriter w = new AsyncWriter(new BatchWriter() {
+      public void openSession () {}
+      public void closeSession () {}
+      protected void storeUnit (Source source, DefInfo topDef) {
+        if (source.toString().equals("/B.java")) throw new IllegalArgumentException("Boom!");
+        stored.add(source.toString());
+      }
+    }, 1);
+    w.openSession();
+    writeUnit(w, "/A.java");
+    writeUnit(w, "/B.java");
+    try {
+      for (int ii = 0; ii < 100; ii++) writeUnit(w, "/C" + ii + ".java");
+      w.closeSession();
+      fail("Failure not propagated");
+    } catch (RuntimeException re) {
+      assertEquals("Boom!", re.getCause().getMessage());
+    }
+    assertEquals(1, stored.size());
+  }
+
+  @Test public void testInterrupt () throws Exception {
+    List<String> stored = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch storing = new CountDownLatch(1), release = new CountDownLatch(1);
+    AsyncWriter w = new AsyncWriter(new BatchWriter() {
+      public void openSession () {}
+      public void closeSession () {}
+      protected void storeUnit (Source source, DefInfo topDef) {
+        storing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new AssertionError("Storage thread interrupted during store.");
+        }
+        stored.add(source.toString());
+      }
+    }, 4);
+    w.openSession();
+    writeUnit(w, "/A.java");
+    writeUnit(w, "/B.java");
+    writeUnit(w, "/C.java");
+    storing.await();
+
+    // the unit being stored completes once we're waiting for it, the rest are discarded
+    Thread main = Thread.currentThread();
+    new Thread(() -> {
+      while (main.getState() != Thread.State.WAITING) Thread.yield();
+      release.countDown();
+    }).start();
+    main.interrupt();
+    try {
+      w.closeSession();
+      fail("Interruption not reported");
+    } catch (IllegalStateException ise) {
+      assertEquals("Storage interrupted.", ise.getMessage());
+    }
+    assertTrue(Thread.interrupted());
+    assertEquals(Arrays.asList("/A.java"), stored);
+  }
+}
@@ -0,0 +1,69 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import codex.model.*;
+import codex.store.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Optional;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BinaryWriterTest {
+
+  private byte[] extract () {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new JavaExtractor().process("TestA.java", TestSources.TESTA, new BinaryWriter(bytes));
+    return bytes.toByteArray();
+  }
+
+  @Test public void testReplay () throws IOException {
+    StringWriter direct = new StringWriter();
+    new JavaExtractor().process("TestA.java", TestSources.TESTA,
+                                new TextWriter(new PrintWriter(direct)));
+
+    StringWriter replayed = new StringWriter();
+    int units = new BinaryReader(new ByteArrayInputStream(extract())).replay(
+      new TextWriter(new PrintWriter(replayed)));
+    assertEquals(1, units);
+    assertEquals(direct.toString(), replayed.toString());
+  }
+
+  @Test public void testReplayIntoStore () throws IOException {
+    ProjectStore store = new MapDBStore("test");
+    new BinaryReader(new ByteArrayInputStream(extract())).replay(store.writer());
+    Optional<Def> bdef = store.def(Ref.Global.fromString("foo.bar TestA B"));
+    assertTrue(bdef.isPresent());
+    assertEquals(Kind.TYPE, bdef.get().kind);
+    assertTrue(bdef.get().sig().isPresent());
+    store.close();
+  }
+
+  @Test public void testHashes () throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryWriter out = new BinaryWriter(bytes);
+    out.openUnit(new Source.File("/A.java"));
+    out.emitHashes(-1L, 42L);
+    out.closeUnit();
+    out.flush();
+    long[] hashes = new long[2];
+    new BinaryReader(new ByteArrayInputStream(bytes.toByteArray())).replay(new RecordingWriter() {
+      @Override public void emitHashes (long contentHash, long apiHash) {
+        hashes[0] = contentHash;
+        hashes[1] = apiHash;
+      }
+    });
+    assertArrayEquals(new long[] { -1L, 42L }, hashes);
+  }
+
+  @Test(expected=IOException.class) public void testInvalidStream () throws IOException {
+    new BinaryReader(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 })).replay(
+      new RecordingWriter());
+  }
+}
@@ -5,8 +5,18 @@
 package codex.extract;
 
 import codex.extract.DebugWriter;
+import codex.model.Source;
+import codex.store.MapDBStore;
+import codex.store.ProjectStore;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import org.junit.*;
 import scaled.Seq;
 import static org.junit.Assert.*;
@@ -98,4 +108,77 @@ public class JavaExtractorTest {
     assertTrue("new Thread() {} refs Thread()",
                out.contains("use {tgt=java.lang Thread Thread()void, kind=FUNC"));
   }
+
+  @Test public void testParallel () {
+    List<String> files = Arrays.asList("foo/A.java", "foo/B.java", "bar/C.java");
+    List<String> codes = Arrays.asList(
+      "package foo; public class A { public bar.C c; }",
+      "package foo; public class B extends A { public int b () { return c.c(); } }",
+      "package bar; public class C { public int c () { return 0; } }");
+    String serial = testExtract(new JavaExtractor(), files, codes);
+    String parallel = testExtract(new JavaExtractor().setParallelism(2), files, codes);
+    // units may be delivered in a different order, but each unit must be extracted identically,
+    // including uses that cross partition boundaries
+    assertEquals(units(serial), units(parallel));
+    assertTrue(parallel.contains("use target bar C c()int"));
+  }
+
+  private String testExtract (JavaExtractor ex, List<String> files, List<String> codes) {
+    StringWriter out = new StringWriter();
+    ex.process(files, codes, new TextWriter(new PrintWriter(out)));
+    return out.toString();
+  }
+
+  @Test public void testReindex () throws Exception {
+    Path dir = Files.createTempDirectory("codex");
+    Path a = dir.resolve("A.java"), b = dir.resolve("B.java"), c = dir.resolve("C.java");
+    List<Path> files = Arrays.asList(a, b, c);
+    Source sa = new Source.File(a), sb = new Source.File(b), sc = new Source.File(c);
+    Files.write(a, Arrays.asList("package foo;", "public class A {",
+                                 "    public int value () { return 1; }",
+                                 "}"));
+    Files.write(b, Arrays.asList("package foo;", "public class B {",
+                                 "    public int value (A a) { return a.value(); }",
+                                 "}"));
+    Files.write(c, Arrays.asList("package foo;", "public class C {}"));
+
+    JavaExtractor ex = new JavaExtractor();
+    ProjectStore store = new MapDBStore("test");
+    try {
+      assertEquals(set(sa, sb, sc), ex.reindex(files, store));
+      assertNotEquals(0L, store.contentHash(sa));
+      assertNotEquals(0L, store.apiHash(sa));
+      // nothing changed, so nothing is reextracted
+      assertEquals(set(), ex.reindex(files, store));
+
+      // changing the body of A doesn't change its API, so B is not reextracted
+      Files.write(a, Arrays.asList("package foo;", "public class A {",
+                                   "    public int value () { return 2; }",
+                                   "}"));
+      long apiHash = store.apiHash(sa);
+      assertEquals(set(sa), ex.reindex(files, store));
+      assertEquals(apiHash, store.apiHash(sa));
+
+      // but changing its API reextracts B, which uses it, and not C, which doesn't
+      Files.write(a, Arrays.asList("package foo;", "public class A {",
+                                   "    public int value () { return 2; }",
+                                   "    public int other () { return 3; }",
+                                   "}"));
+      assertEquals(set(sa, sb), ex.reindex(files, store));
+      assertNotEquals(apiHash, store.apiHash(sa));
+      assertEquals(set(), ex.reindex(files, store));
+    } finally {
+      store.close();
+      for (Path file : files) Files.delete(file);
+      Files.delete(dir);
+    }
+  }
+
+  private static Set<Source> set (Source... sources) {
+    return new HashSet<>(Arrays.asList(sources));
+  }
+
+  private TreeSet<String> units (String out) {
+    return new TreeSet<>(Arrays.asList(out.split("(?m)^(?=unit )")));
+  }
 }
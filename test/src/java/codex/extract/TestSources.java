@@ -0,0 +1,30 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.extract;
+
+import com.google.common.base.Joiner;
+
+/** Source fixtures shared by the writer tests. */
+public class TestSources {
+
+  /** A Java source with nested classes, a relation and some uses. */
+  public static final String TESTA = Joiner.on("\n").join(
+    "package foo.bar;",
+    "/** A test class. */",
+    "public class TestA {",
+    "    public static class A {",
+    "        public int value;",
+    "    }",
+    "    public static class B extends A implements Runnable {",
+    "        public void run () {",
+    "        }",
+    "    }",
+    "    public static void main (String[] args) {",
+    "        int av = new A().value;",
+    "        B b = new B();",
+    "        b.run();",
+    "    }",
+    "}");
+}
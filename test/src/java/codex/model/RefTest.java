@@ -0,0 +1,34 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.model;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RefTest {
+
+  @Test public void testInterning () {
+    Ref.Global str = Ref.Global.fromString("java.lang String");
+    assertSame(str, Ref.global("java.lang", "String"));
+    assertSame(str, Ref.Global.ROOT.plus("java.lang").plus(new String("String")));
+    assertSame(str.parent, Ref.global("java.lang"));
+    assertNotSame(str, Ref.global("java.lang", "Object"));
+    assertNotEquals(str, Ref.global("java.util", "String"));
+    assertEquals("java.lang String", str.toString());
+    assertEquals(str.hashCode(), Ref.Global.fromString("java.lang String").hashCode());
+  }
+
+  @Test public void testCollection () throws Exception {
+    Ref.Global parent = Ref.Global.fromString("codex.model RefTest");
+    int hash = parent.plus("collected").hashCode();
+    // once nothing references a ref, it may be collected and a new instance created in its place,
+    // which must still look the same as the original
+    for (int ii = 0; ii < 5; ii++) System.gc();
+    Ref.Global ref = parent.plus("collected");
+    assertSame(ref, parent.plus("collected"));
+    assertEquals(hash, ref.hashCode());
+    assertEquals("codex.model RefTest collected", ref.toString());
+  }
+}
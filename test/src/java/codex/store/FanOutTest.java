@@ -0,0 +1,47 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.extract.Writer;
+import codex.model.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FanOutTest {
+
+  static MapDBStore store (String name, String... classes) {
+    MapDBStore store = new MapDBStore(name);
+    Writer w = store.writer();
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/" + name + ".java", classes);
+    w.closeSession();
+    return store;
+  }
+
+  @Test public void testStoreOrder () {
+    List<ProjectStore> stores = Arrays.asList(
+      store("one", "B"), store("two", "A", "C"), store("three", "A", "D"));
+
+    // resolve returns the def from the earliest store that has it
+    Optional<Def> adef = Ref.resolve(stores, Ref.Global.fromString("pkg A"));
+    assertTrue(adef.isPresent());
+    assertSame(stores.get(1), adef.get().project);
+    assertFalse(Ref.resolve(stores, Ref.Global.fromString("pkg E")).isPresent());
+
+    // find results are in store order, as are equally ranked top-K results
+    List<Def> as = Query.name("a").find(stores);
+    assertEquals(2, as.size());
+    assertSame(stores.get(1), as.get(0).project);
+    assertSame(stores.get(2), as.get(1).project);
+    List<Def> top = Query.name("a").find(stores, 1);
+    assertEquals(1, top.size());
+    assertSame(stores.get(1), top.get(0).project);
+
+    for (ProjectStore store : stores) store.close();
+  }
+}
@@ -0,0 +1,92 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.SimpleCodexTest;
+import codex.extract.Writer;
+import codex.model.*;
+import java.util.List;
+import java.util.Map;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Runs the {@link SimpleCodexTest} suite against a heap store, and tests reindexing. */
+public class HeapStoreTest extends SimpleCodexTest {
+
+  @BeforeClass public static void populateStore () throws Exception {
+    store = indexCodex(new HeapStore("test"));
+  }
+
+  @Test public void testMatchesMapDBStore () throws Exception {
+    MapDBStore mapdb = createCodexStore();
+    assertEquals(mapdb.defCount(), ((HeapStore)store).defCount());
+    for (Def top : mapdb.topLevelDefs()) checkDefs(mapdb, top);
+    mapdb.close();
+  }
+
+  private void checkDefs (ProjectStore mapdb, Def def) {
+    Ref.Global ref = mapdb.ref(def.id);
+    Def hdef = store.def(ref).get();
+    assertEquals(ref, store.ref(hdef.id));
+    assertEquals(def.name, hdef.name);
+    assertEquals(def.kind, hdef.kind);
+    assertEquals(def.exported, hdef.exported);
+    assertEquals(def.bodyEnd, hdef.bodyEnd);
+    assertEquals(mapdb.source(def.id), store.source(hdef.id));
+    assertEquals(mapdb.sig(def.id).map(s -> s.text), store.sig(hdef.id).map(s -> s.text));
+    assertEquals(count(mapdb.usesIn(def.id)), count(store.usesIn(hdef.id)));
+    assertEquals(count(mapdb.defsIn(def.id)), count(store.defsIn(hdef.id)));
+    for (Def mem : mapdb.defsIn(def.id)) checkDefs(mapdb, mem);
+  }
+
+  private static int count (Iterable<?> elems) {
+    int count = 0;
+    for (Object elem : elems) count++;
+    return count;
+  }
+
+  @Test public void testReindex () {
+    HeapStore store = new HeapStore("test");
+    Writer w = store.writer();
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/A.java", "A", "B");
+    w.openUnit(new Source.File("/C.java"));
+    w.openDef(Ref.Global.fromString("pkg C"), "C", Kind.TYPE, Flavor.CLASS, true,
+              Access.PUBLIC, 0, 0, 10);
+    w.emitRelation(Relation.INHERITS, Ref.Global.fromString("pkg A"));
+    w.emitUse(Ref.Global.fromString("pkg B"), Kind.TYPE, 5, 1);
+    w.closeDef();
+    w.closeUnit();
+    w.closeSession();
+    assertEquals(3, store.defCount());
+
+    Def a = store.def(Ref.Global.fromString("pkg A")).get();
+    Def b = store.def(Ref.Global.fromString("pkg B")).get();
+    assertEquals(1, store.relationsTo(Relation.INHERITS, store.ref(a.id)).size());
+    assertArrayEquals(new int[] { 5 }, store.usesOf(b).get(new Source.File("/C.java")));
+
+    // reindexing a source keeps the ids of the defs it still defines, and removes the others
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/A.java", "A");
+    w.closeSession();
+    assertEquals(2, store.defCount());
+    assertEquals(a.id, store.def(Ref.Global.fromString("pkg A")).get().id);
+    assertFalse(store.mayDefine(Ref.Global.fromString("pkg B")));
+    List<Def> bs = Query.name("b").find(java.util.Collections.singletonList(store));
+    assertTrue(bs.isEmpty());
+    // uses of a removed def become uses of its global name
+    Def c = store.def(Ref.Global.fromString("pkg C")).get();
+    assertEquals(Ref.Global.fromString("pkg B"), store.usesIn(c.id).iterator().next().ref);
+
+    // reindexing a source without its relations and uses removes them
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/C.java", "C");
+    w.closeSession();
+    assertTrue(store.relationsTo(Relation.INHERITS, store.ref(a.id)).isEmpty());
+    Map<Source,int[]> uses = store.usesOf(a);
+    assertEquals(1, uses.size()); // only the defining source
+    store.close();
+  }
+}
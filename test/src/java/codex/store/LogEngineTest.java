@@ -0,0 +1,302 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.extract.Writer;
+import codex.model.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.*;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+import static org.junit.Assert.*;
+
+public class LogEngineTest {
+
+  static final KeyType<Fun.Tuple2<String,Long>> PAIR =
+    KeyType.tuple(KeyType.STRING, KeyType.LONG);
+
+  /** Serializes strings, but blocks the {@code nth} time that it serializes {@code value}, until
+    * it is released. */
+  static class Gate implements Serializer<String> {
+    final CountDownLatch entered = new CountDownLatch(1), released = new CountDownLatch(1);
+
+    Gate (String value, int nth) {
+      _value = value;
+      _nth = nth;
+    }
+
+    @Override public void serialize (DataOutput out, String value) throws IOException {
+      if (value.equals(_value) && _seen.incrementAndGet() == _nth) {
+        entered.countDown();
+        try {
+          released.await();
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException();
+        }
+      }
+      Serializer.STRING.serialize(out, value);
+    }
+
+    @Override public String deserialize (DataInput in, int available) throws IOException {
+      return Serializer.STRING.deserialize(in, available);
+    }
+
+    @Override public int fixedSize () {
+      return -1;
+    }
+
+    private final String _value;
+    private final int _nth;
+    private final AtomicInteger _seen = new AtomicInteger();
+  }
+
+  Path dir;
+
+  @Before public void createDir () throws Exception {
+    dir = Files.createTempDirectory("codex");
+  }
+
+  @After public void deleteDir () throws Exception {
+    delete(dir);
+  }
+
+  static void delete (Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>)files::iterator) Files.delete(file);
+    }
+    Files.delete(dir);
+  }
+
+  @Test public void testCommitAndReopen () throws Exception {
+    LogEngine engine = new LogEngine(dir, 1);
+    StorageEngine.OrderedMap<Long,String> map = engine.map("map", KeyType.LONG, Serializer.STRING);
+    for (long ii = 0; ii < 100; ii++) map.put(ii, "v" + ii);
+    engine.setBytes("var", new byte[] { 1, 2, 3 });
+    engine.commit();
+    assertEquals("v5", map.put(5L, "five"));
+    assertEquals("v6", map.remove(6L));
+    assertNull(map.remove(6L));
+    engine.commit();
+    // uncommitted changes are lost if the engine isn't closed
+    map.put(200L, "lost");
+    engine = new LogEngine(dir, 1);
+    map = engine.map("map", KeyType.LONG, Serializer.STRING);
+    assertEquals("five", map.get(5L));
+    assertNull(map.get(6L));
+    assertNull(map.get(200L));
+    assertEquals(99, map.size());
+    assertEquals(Long.valueOf(99), map.lastKey());
+    assertArrayEquals(new byte[] { 1, 2, 3 }, engine.getBytes("var"));
+    engine.close();
+
+    // a different schema discards the old contents
+    engine = new LogEngine(dir, 2);
+    map = engine.map("map", KeyType.LONG, Serializer.STRING);
+    assertTrue(map.isEmpty());
+    assertNull(map.lastKey());
+    assertNull(engine.getBytes("var"));
+    engine.close();
+  }
+
+  @Test public void testMergedIteration () throws Exception {
+    LogEngine engine = new LogEngine(dir, 1);
+    StorageEngine.OrderedSet<Fun.Tuple2<String,Long>> set = engine.set("set", PAIR);
+    TreeMap<Fun.Tuple2<String,Long>,Boolean> expect = new TreeMap<>();
+    // spread the elements (and removals) over several runs and the uncommitted changes
+    for (int rr = 0; rr < 4; rr++) {
+      for (long ii = rr; ii < 200; ii += 3) {
+        Fun.Tuple2<String,Long> elem = Fun.t2("k" + (ii % 7), ii);
+        if (rr % 2 == 0) { set.add(elem); expect.put(elem, true); }
+        else { set.remove(elem); expect.remove(elem); }
+      }
+      if (rr < 3) engine.commit();
+    }
+    assertEquals(expect.size(), set.size());
+    List<Fun.Tuple2<String,Long>> elems = new ArrayList<>();
+    for (Fun.Tuple2<String,Long> elem : set) elems.add(elem);
+    assertEquals(new ArrayList<>(expect.keySet()), elems);
+
+    // iteration from a key with a null component starts at the first key with its prefix
+    Iterator<Fun.Tuple2<String,Long>> iter = set.iterator(Fun.t2("k3", (Long)null));
+    assertEquals(expect.ceilingKey(Fun.t2("k3", (Long)null)), iter.next());
+    // and removal via an iterator removes from the set
+    Fun.Tuple2<String,Long> next = iter.next();
+    iter.remove();
+    assertFalse(set.contains(next));
+    engine.close();
+  }
+
+  @Test public void testCompaction () throws Exception {
+    LogEngine engine = new LogEngine(dir, 1);
+    StorageEngine.OrderedMap<Integer,Integer> map = engine.map(
+      "map", KeyType.INT, Serializer.INTEGER);
+    StorageEngine.Snapshot snap = null;
+    for (int rr = 0; rr < 2*LogEngine.MAX_RUNS; rr++) {
+      for (int ii = 0; ii < 1000; ii++) map.put(ii, rr);
+      map.remove(rr);
+      engine.commit();
+      if (rr == 1) snap = engine.snapshot();
+    }
+    engine.awaitCompaction();
+    assertTrue(engine.runCount("map") <= LogEngine.MAX_RUNS);
+    assertEquals(Integer.valueOf(2*LogEngine.MAX_RUNS-1), map.get(999));
+    assertNull(map.get(2*LogEngine.MAX_RUNS-1));
+    assertEquals(999, map.size());
+    // a snapshot still sees its commit, even once its runs were compacted away
+    StorageEngine.OrderedMap<Integer,Integer> smap = snap.map("map");
+    assertEquals(Integer.valueOf(1), smap.get(999));
+    assertEquals(Integer.valueOf(1), smap.get(0));
+    assertNull(smap.get(1));
+    engine.close();
+
+    engine = new LogEngine(dir, 1);
+    map = engine.map("map", KeyType.INT, Serializer.INTEGER);
+    assertEquals(999, map.size());
+    engine.close();
+  }
+
+  @Test public void testCompactionDuringCommit () throws Exception {
+    LogEngine engine = new LogEngine(dir, 1);
+    // the compaction of c blocks when it merges "gate", which c's first commit wrote
+    Gate cgate = new Gate("gate", 2);
+    StorageEngine.OrderedMap<Integer,String> c = engine.map("c", KeyType.INT, cgate);
+    c.put(0, "gate");
+    for (int rr = 1; rr <= LogEngine.MAX_RUNS; rr++) {
+      c.put(rr, "c");
+      engine.commit();
+    }
+    c.put(LogEngine.MAX_RUNS+1, "c");
+    engine.commit();
+    cgate.entered.await();
+
+    // the next commit blocks after writing the first of a and b
+    Gate wgate = new Gate("hold", 2);
+    StorageEngine.OrderedMap<Integer,String> a = engine.map("a", KeyType.INT, wgate);
+    StorageEngine.OrderedMap<Integer,String> b = engine.map("b", KeyType.INT, wgate);
+    a.put(1, "hold");
+    b.put(1, "hold");
+    engine.setBytes("var", new byte[] { 1 });
+    Thread committer = new Thread(engine::commit);
+    committer.start();
+    wgate.entered.await();
+
+    // the compaction completes, and writes the manifest, while the commit is half written
+    cgate.released.countDown();
+    engine.awaitCompaction();
+    assertTrue(engine.runCount("c") <= LogEngine.MAX_RUNS);
+
+    // an engine that crashed now reverts to the previous commit, with none of the commit
+    Path crashed = Files.createTempDirectory("codex");
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>)files::iterator) {
+        Files.copy(file, crashed.resolve(file.getFileName()));
+      }
+    }
+    LogEngine cengine = new LogEngine(crashed, 1);
+    assertNull(cengine.map("a", KeyType.INT, Serializer.STRING).get(1));
+    assertNull(cengine.map("b", KeyType.INT, Serializer.STRING).get(1));
+    assertNull(cengine.getBytes("var"));
+    assertEquals(LogEngine.MAX_RUNS+2, cengine.map("c", KeyType.INT, Serializer.STRING).size());
+    cengine.close();
+    delete(crashed);
+
+    wgate.released.countDown();
+    committer.join();
+    engine.close();
+    engine = new LogEngine(dir, 1);
+    assertEquals("hold", engine.map("a", KeyType.INT, Serializer.STRING).get(1));
+    assertEquals("hold", engine.map("b", KeyType.INT, Serializer.STRING).get(1));
+    assertArrayEquals(new byte[] { 1 }, engine.getBytes("var"));
+    engine.close();
+  }
+
+  @Test public void testLoad () throws Exception {
+    LogEngine engine = new LogEngine(dir, 1);
+    StorageEngine.OrderedMap<String,Integer> map = engine.map(
+      "map", KeyType.STRING, Serializer.INTEGER);
+    map.put("stale", 1);
+    engine.commit();
+    TreeMap<String,Integer> data = new TreeMap<>();
+    for (int ii = 0; ii < 100; ii++) data.put("k" + ii, ii);
+    map = engine.load("map", data);
+    assertNull(map.get("stale"));
+    assertEquals(data.lastKey(), map.lastKey());
+    engine.close();
+
+    engine = new LogEngine(dir, 1);
+    map = engine.map("map", KeyType.STRING, Serializer.INTEGER);
+    List<String> keys = new ArrayList<>();
+    for (Iterator<Map.Entry<String,Integer>> iter = map.iterator(null); iter.hasNext(); ) {
+      keys.add(iter.next().getKey());
+    }
+    assertEquals(new ArrayList<>(data.keySet()), keys);
+    engine.close();
+  }
+
+  @Test public void testStore () throws Exception {
+    MapDBStore store = new MapDBStore("test", new LogEngine(dir, 1));
+    Writer w = store.writer();
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/A.java", "A", "B");
+    w.closeSession();
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/A.java", "A");
+    MapDBStoreTest.writeUnit(w, "/C.java", "C");
+    w.closeSession();
+    store.close();
+
+    store = new MapDBStore("test", new LogEngine(dir, 1));
+    assertTrue(store.def(Ref.Global.fromString("pkg A")).isPresent());
+    assertFalse(store.def(Ref.Global.fromString("pkg B")).isPresent());
+    assertTrue(store.def(Ref.Global.fromString("pkg C")).isPresent());
+    assertTrue(store.mayDefine(Ref.Global.fromString("pkg C")));
+    assertEquals(2, store.topLevelDefs().size());
+    store.close();
+  }
+
+  @Test public void testGroupCommit () throws Exception {
+    MapDBStore store = new MapDBStore("test", new LogEngine(dir, 1));
+    Writer w = store.writer();
+    w.openSession();
+    MapDBStoreTest.writeUnit(w, "/A.java", "A");
+    w.closeSession();
+
+    // commit every two units, and never on a timer
+    store.committer().setPolicy(2, 0, Long.MAX_VALUE / 2);
+    w.openSession();
+    for (int ii = 0; ii < 5; ii++) MapDBStoreTest.writeUnit(w, "/B" + ii + ".java", "B" + ii);
+    store.committer().sync();
+    // once synced, readers see every unit stored before the sync
+    for (int ii = 0; ii < 5; ii++) {
+      assertTrue(store.def(Ref.Global.fromString("pkg B" + ii)).isPresent());
+    }
+    // a commit includes every unit stored before it began, so there may be fewer than three
+    assertTrue(store.committer().commits() > 0);
+    assertTrue(store.committer().lastCommitBytes() > 0);
+    assertTrue(store.committer().commitBytes() >= store.committer().lastCommitBytes());
+    int commits = store.committer().commits();
+    store.committer().sync(); // nothing pending, so no new commit
+    assertEquals(commits, store.committer().commits());
+    w.closeSession();
+    store.close();
+
+    store = new MapDBStore("test", new LogEngine(dir, 1));
+    assertEquals(6, store.topLevelDefs().size());
+    store.close();
+  }
+}
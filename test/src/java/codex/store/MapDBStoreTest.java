@@ -0,0 +1,295 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.extract.Writer;
+import codex.model.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import org.junit.*;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import static org.junit.Assert.*;
+
+public class MapDBStoreTest {
+
+  static void writeUnit (Writer w, String path, String... classes) {
+    writeUnit(w, path, null, classes, new String[0]);
+  }
+
+  static void writeUnit (Writer w, String path, String pkg, String[] classes, String[] sigs) {
+    w.openUnit(new Source.File(path));
+    Ref.Global pref = Ref.Global.fromString(pkg == null ? "pkg" : pkg);
+    int start = 0;
+    if (pkg != null) {
+      w.openDef(pref, pkg, Kind.MODULE, Flavor.PACKAGE, true, Access.PUBLIC,
+                0, 0, 10*classes.length+10);
+      start = 10;
+    }
+    for (int ii = 0; ii < classes.length; ii++) {
+      String cls = classes[ii];
+      int offset = start + 10*ii;
+      w.openDef(pref.plus(cls), cls, Kind.TYPE, Flavor.CLASS, true, Access.PUBLIC,
+                offset, offset, offset+10);
+      if (ii < sigs.length && sigs[ii] != null) w.emitSig(sigs[ii]);
+      w.closeDef();
+    }
+    if (pkg != null) w.closeDef();
+    w.closeUnit();
+  }
+
+  static void storeUnit (MapDBStore store, String path, String pkg, String[] classes,
+                         String... sigs) {
+    Writer w = store.writer();
+    w.openSession();
+    writeUnit(w, path, pkg, classes, sigs);
+    w.closeSession();
+  }
+
+  static String[] classes (int count) {
+    String[] classes = new String[count];
+    for (int ii = 0; ii < count; ii++) classes[ii] = "C" + ii;
+    return classes;
+  }
+
+  @Test public void testSessionReadsLastCommit () {
+    MapDBStore store = new MapDBStore("test");
+    Writer w = store.writer();
+    w.openSession();
+    writeUnit(w, "/A.java", "A");
+    w.closeSession();
+
+    Ref.Global aref = Ref.Global.fromString("pkg A"), bref = Ref.Global.fromString("pkg B");
+    assertTrue(store.def(aref).isPresent());
+
+    // while the session is open, readers see the store as of the last commit
+    w.openSession();
+    writeUnit(w, "/B.java", "B");
+    assertTrue(store.def(aref).isPresent());
+    assertFalse(store.def(bref).isPresent());
+    assertEquals(0L, store.lastIndexed(new Source.File("/B.java")));
+    w.closeSession();
+
+    assertTrue(store.def(bref).isPresent());
+    assertNotEquals(0L, store.lastIndexed(new Source.File("/B.java")));
+    store.close();
+  }
+
+  private static String sig (MapDBStore store, String name) {
+    Def def = store.def(Ref.Global.fromString("pkg " + name)).get();
+    return store.sig(def.id).map(sig -> sig.text).orElse(null);
+  }
+
+  private static List<Long> defIds (MapDBStore store) {
+    List<Long> ids = new ArrayList<>();
+    for (Def def : store.topLevelDefs()) ids.add(def.id);
+    return ids;
+  }
+
+  /** An in-memory engine that records the names of the tables that are modified. */
+  static class CountingEngine implements StorageEngine {
+    final StorageEngine engine = new MapDBEngine(DBMaker.newMemoryDB().snapshotEnable().make());
+    final Set<String> written = new TreeSet<>();
+
+    public <K,V> OrderedMap<K,V> map (String name, KeyType<K> keys, Serializer<V> values) {
+      return counting(name, engine.map(name, keys, values));
+    }
+    public <E> OrderedSet<E> set (String name, KeyType<E> elems) {
+      return counting(name, engine.set(name, elems));
+    }
+    public <K,V> OrderedMap<K,V> load (String name, NavigableMap<K,V> data) {
+      written.add(name);
+      return counting(name, engine.load(name, data));
+    }
+    public <E> OrderedSet<E> load (String name, NavigableSet<E> data) {
+      written.add(name);
+      return counting(name, engine.load(name, data));
+    }
+    public byte[] getBytes (String name) { return engine.getBytes(name); }
+    public void setBytes (String name, byte[] value) { engine.setBytes(name, value); }
+    public void commit () { engine.commit(); }
+    public Commit beginCommit () { return engine.beginCommit(); }
+    public Snapshot snapshot () { return engine.snapshot(); }
+    public void close () { engine.close(); }
+
+    private <K,V> OrderedMap<K,V> counting (String name, OrderedMap<K,V> map) {
+      return new OrderedMap<K,V>() {
+        public V get (K key) { return map.get(key); }
+        public V put (K key, V value) { written.add(name); return map.put(key, value); }
+        public V remove (K key) { written.add(name); return map.remove(key); }
+        public boolean isEmpty () { return map.isEmpty(); }
+        public int size () { return map.size(); }
+        public K lastKey () { return map.lastKey(); }
+        public Iterator<Map.Entry<K,V>> iterator (K from) { return map.iterator(from); }
+        public void clear () { written.add(name); map.clear(); }
+      };
+    }
+
+    private <E> OrderedSet<E> counting (String name, OrderedSet<E> set) {
+      return new OrderedSet<E>() {
+        public boolean add (E elem) { written.add(name); return set.add(elem); }
+        public boolean remove (E elem) { written.add(name); return set.remove(elem); }
+        public boolean contains (E elem) { return set.contains(elem); }
+        public boolean isEmpty () { return set.isEmpty(); }
+        public int size () { return set.size(); }
+        public Iterator<E> iterator (E from) {
+          Iterator<E> iter = set.iterator(from);
+          return new Iterator<E>() {
+            public boolean hasNext () { return iter.hasNext(); }
+            public E next () { return iter.next(); }
+            public void remove () { written.add(name); iter.remove(); }
+          };
+        }
+        public void clear () { written.add(name); set.clear(); }
+      };
+    }
+  }
+
+  @Test public void testRewriteUnit () {
+    CountingEngine engine = new CountingEngine();
+    MapDBStore store = new MapDBStore("test", engine);
+    Source source = new Source.File("/A.java");
+    storeUnit(store, "/A.java", null, classes(2), "class C0", "class C1");
+    long indexed = store.lastIndexed(source);
+    List<Long> ids = defIds(store);
+
+    // an unchanged unit is only marked as reindexed
+    engine.written.clear();
+    storeUnit(store, "/A.java", null, classes(2), "class C0", "class C1");
+    assertEquals(Collections.singleton("srcInfo"), engine.written);
+    assertTrue(store.lastIndexed(source) >= indexed);
+    assertEquals(ids, defIds(store));
+    assertEquals("class C0", sig(store, "C0"));
+    assertEquals("class C1", sig(store, "C1"));
+
+    // changed defs are rewritten, including removing data they no longer have
+    storeUnit(store, "/A.java", null, classes(2), "class C0", null);
+    assertEquals(ids, defIds(store));
+    assertEquals("class C0", sig(store, "C0"));
+    assertNull(sig(store, "C1"));
+    storeUnit(store, "/A.java", null, classes(3), "class C0 extends C1", null, "class C2");
+    assertEquals("class C0 extends C1", sig(store, "C0"));
+    assertNull(sig(store, "C1"));
+    assertEquals("class C2", sig(store, "C2"));
+    storeUnit(store, "/A.java", null, classes(1), "class C0");
+    assertFalse(store.def(Ref.Global.fromString("pkg C1")).isPresent());
+    assertEquals(1, store.topLevelDefs().size());
+    store.close();
+  }
+
+  // the sorted names of the members of the def with global ref {@code pkg}, or none if it is absent
+  static List<String> memberNames (MapDBStore store, String pkg) {
+    List<String> names = new ArrayList<>();
+    Optional<Def> def = store.def(Ref.Global.fromString(pkg));
+    if (def.isPresent()) for (Def mem : store.defsIn(def.get().id)) names.add(mem.name);
+    Collections.sort(names);
+    return names;
+  }
+
+  @Test public void testRemoveModule () {
+    MapDBStore store = new MapDBStore("test");
+    storeUnit(store, "/A.java", "pkg", new String[] { "A" });
+    storeUnit(store, "/B.java", "pkg", new String[] { "B" });
+    assertEquals(Arrays.asList("A", "B"), memberNames(store, "pkg"));
+
+    // A moves to another package, so pkg loses it, but B still defines pkg
+    storeUnit(store, "/A.java", "other", new String[] { "A" });
+    assertTrue(store.def(Ref.Global.fromString("pkg")).isPresent());
+    assertEquals(Arrays.asList("B"), memberNames(store, "pkg"));
+    assertEquals(Arrays.asList("A"), memberNames(store, "other"));
+
+    // once B moves as well, nothing defines pkg, so it is removed
+    storeUnit(store, "/B.java", "other", new String[] { "B" });
+    assertFalse(store.def(Ref.Global.fromString("pkg")).isPresent());
+    assertEquals(Arrays.asList("A", "B"), memberNames(store, "other"));
+    assertEquals(1, store.topLevelDefs().size());
+    store.close();
+  }
+
+  @Test public void testBatchLookups () {
+    MapDBStore store = new MapDBStore("test");
+    // give every third def a sig
+    String[] texts = new String[50];
+    for (int ii = 0; ii < texts.length; ii += 3) texts[ii] = "class C" + ii;
+    storeUnit(store, "/A.java", null, classes(50), texts);
+
+    List<Long> all = new ArrayList<>();
+    for (Def def : store.topLevelDefs()) all.add(def.id);
+    assertEquals(50, all.size());
+    // look up a shuffled sample with duplicates and gaps large and small between the ids
+    List<Long> sample = new ArrayList<>(all.subList(0, 5));
+    sample.addAll(all.subList(30, 50));
+    sample.add(all.get(3));
+    Collections.shuffle(sample, new java.util.Random(42));
+    long[] ids = new long[sample.size()];
+    for (int ii = 0; ii < ids.length; ii++) ids[ii] = sample.get(ii);
+
+    List<Def> defs = store.defs(ids);
+    List<Optional<Sig>> sigs = store.sigs(ids);
+    List<Ref.Global> refs = store.refs(ids);
+    for (int ii = 0; ii < ids.length; ii++) {
+      assertEquals(store.def(ids[ii]), defs.get(ii));
+      assertEquals(store.sig(ids[ii]).map(sig -> sig.text), sigs.get(ii).map(sig -> sig.text));
+      assertEquals(store.ref(ids[ii]), refs.get(ii));
+    }
+
+    try {
+      store.defs(new long[] { ids[0], Long.MAX_VALUE >> 1 });
+      fail("Missing def not reported");
+    } catch (java.util.NoSuchElementException nsee) {} // expected
+    store.close();
+  }
+
+  @Test public void testBulkSessionReadsEmpty () {
+    MapDBStore store = new MapDBStore("test");
+    Writer w = store.writer();
+    w.openSession();
+    writeUnit(w, "/A.java", "A", "AA");
+    // a bulk load into an empty store is invisible until the session closes
+    assertFalse(store.def(Ref.Global.fromString("pkg A")).isPresent());
+    w.closeSession();
+    assertTrue(store.def(Ref.Global.fromString("pkg AA")).isPresent());
+    store.close();
+  }
+
+  @Test public void testDefNameFilter () throws Exception {
+    Path dir = Files.createTempDirectory("codex");
+    Path path = dir.resolve("store");
+    MapDBStore store = new MapDBStore("test", path);
+    Writer w = store.writer();
+    w.openSession();
+    writeUnit(w, "/A.java", "A", "B");
+    w.closeSession();
+    assertTrue(store.mayDefine(Ref.Global.fromString("pkg A")));
+    assertFalse(store.mayDefine(Ref.Global.fromString("pkg NotDefined")));
+    // names that are merely referenced aren't defined
+    assertFalse(store.mayDefine(Ref.Global.fromString("pkg")));
+    store.close();
+
+    // the filter is persisted and reloaded
+    store = new MapDBStore("test", path);
+    assertTrue(store.mayDefine(Ref.Global.fromString("pkg B")));
+    assertTrue(store.def(Ref.Global.fromString("pkg B")).isPresent());
+    assertFalse(store.def(Ref.Global.fromString("pkg NotDefined")).isPresent());
+    store.close();
+
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>)files::iterator) Files.delete(file);
+    }
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,122 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import codex.SimpleCodexTest;
+import codex.model.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MappedStoreTest {
+
+  @Test public void testCompile () throws Exception {
+    MapDBStore store = SimpleCodexTest.createCodexStore();
+    Path path = Files.createTempFile("codex", ".cdx");
+    try {
+      MappedStore.compile(store, path);
+      MappedStore mapped = new MappedStore("mapped", path);
+      assertEquals(store.defCount(), mapped.defCount());
+
+      // every def should look the same from the mapped store
+      int checked = 0;
+      for (Def top : store.topLevelDefs()) checked += checkDefs(store, mapped, top);
+      assertEquals(store.defCount(), checked);
+
+      // find should find the same defs
+      for (Query query : Arrays.asList(Query.name("ref"), Query.prefix("emit"),
+                                       Query.camel("PS"), Query.fuzzy("prjstore"),
+                                       Query.fuzzy("bwstoreunit"))) {
+        List<Def> expect = new ArrayList<>(), got = new ArrayList<>();
+        store.find(query, false, expect);
+        mapped.find(query, false, got);
+        assertEquals(query.toString(), names(store, expect), names(mapped, got));
+      }
+
+      // as should uses of defs, local and not
+      Def kind = store.def(Ref.Global.fromString("codex.model Kind")).get();
+      Map<Source,List<Integer>> kindUses = toLists(store.usesOf(kind));
+      Def mkind = mapped.def(kind.globalRef()).get();
+      assertEquals(kindUses, toLists(mapped.usesOf(mkind)));
+      // the defining source of a def from another store is only reported if it uses the def
+      kindUses.values().removeIf(List::isEmpty);
+      assertEquals(kindUses, toLists(mapped.usesOf(kind)));
+      assertFalse(mapped.def(Ref.Global.fromString("codex.model NotAType")).isPresent());
+      assertFalse(mapped.mayDefine(Ref.Global.fromString("java.lang String")));
+
+      Def local = mapped.def(Ref.Global.fromString("codex.model Ref Local")).get();
+      Set<String> subs = new HashSet<>();
+      for (Def sub : mapped.relationsTo(Relation.INHERITS, mapped.ref(local.outerId))) {
+        subs.add(sub.name);
+      }
+      assertTrue(subs.toString(), subs.contains("Local"));
+      store.close();
+      mapped.close();
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private int checkDefs (ProjectStore store, MappedStore mapped, Def def) {
+    Ref.Global ref = store.ref(def.id);
+    Def mdef = mapped.def(ref).get();
+    assertEquals(ref, mapped.ref(mdef.id));
+    assertEquals(def.name, mdef.name);
+    assertEquals(def.kind, mdef.kind);
+    assertEquals(def.flavor, mdef.flavor);
+    assertEquals(def.access, mdef.access);
+    assertEquals(def.exported, mdef.exported);
+    assertEquals(def.offset, mdef.offset);
+    assertEquals(def.bodyStart, mdef.bodyStart);
+    assertEquals(def.bodyEnd, mdef.bodyEnd);
+    assertEquals(store.source(def.id), mapped.source(mdef.id));
+    assertEquals(store.sig(def.id).map(s -> s.text), mapped.sig(mdef.id).map(s -> s.text));
+    assertEquals(store.doc(def.id).map(d -> d.offset), mapped.doc(mdef.id).map(d -> d.offset));
+    assertEquals(toStrings(store, store.usesIn(def.id)), toStrings(mapped, mapped.usesIn(mdef.id)));
+    for (Relation rel : Relation.values()) {
+      assertEquals(globals(store, store.relationsFrom(rel, def.id)),
+                   globals(mapped, mapped.relationsFrom(rel, mdef.id)));
+    }
+    int count = 1;
+    for (Def mem : store.defsIn(def.id)) count += checkDefs(store, mapped, mem);
+    return count;
+  }
+
+  private static Ref.Global global (ProjectStore store, Ref ref) {
+    return (ref instanceof Ref.Local) ? store.ref(((Ref.Local)ref).defId) : (Ref.Global)ref;
+  }
+
+  private static Set<Ref.Global> globals (ProjectStore store, Set<Ref> refs) {
+    Set<Ref.Global> globals = new HashSet<>();
+    for (Ref ref : refs) globals.add(global(store, ref));
+    return globals;
+  }
+
+  private static List<String> toStrings (ProjectStore store, Iterable<Use> uses) {
+    List<String> strs = new ArrayList<>();
+    for (Use use : uses) {
+      strs.add(global(store, use.ref) + "/" + use.refKind + "@" + use.offset + ":" + use.length);
+    }
+    return strs;
+  }
+
+  private static Set<String> names (ProjectStore store, List<Def> defs) {
+    Set<String> names = new HashSet<>();
+    for (Def def : defs) names.add(store.ref(def.id).toString());
+    return names;
+  }
+
+  private static Map<Source,List<Integer>> toLists (Map<Source,int[]> uses) {
+    Map<Source,List<Integer>> lists = new HashMap<>();
+    for (Map.Entry<Source,int[]> entry : uses.entrySet()) {
+      List<Integer> offsets = new ArrayList<>();
+      for (int offset : entry.getValue()) offsets.add(offset);
+      lists.put(entry.getKey(), offsets);
+    }
+    return lists;
+  }
+}
@@ -0,0 +1,44 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store;
+
+import java.util.Arrays;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static codex.store.NameMatcher.*;
+
+public class NameMatcherTest {
+
+  @Test public void testHumps () {
+    assertEquals("rgs", initials("RefGlobalSerializer"));
+    assertEquals("gn", initials("getName"));
+    assertEquals("up", initials("URLPath"));
+    assertEquals("mv", initials("MAX_VALUE"));
+    assertEquals("u8e", initials("utf8Encode"));
+    assertArrayEquals(new int[] { 0, 3, 7 }, humpStarts("URLPathX"));
+    assertEquals(Arrays.asList("r", "g", "s"), queryHumps("RGS"));
+    assertEquals(Arrays.asList("ref", "gl", "s"), queryHumps("RefGlS"));
+  }
+
+  @Test public void testCamel () {
+    assertTrue(camelScore(queryHumps("RGS"), "RefGlobalSerializer") >= 0);
+    assertTrue(camelScore(queryHumps("RefGlS"), "RefGlobalSerializer") >= 0);
+    assertEquals(NO_MATCH, camelScore(queryHumps("RGS"), "RefGlobal"));
+    assertEquals(NO_MATCH, camelScore(queryHumps("RefGoS"), "RefGlobalSerializer"));
+    // fewer unmatched humps rank higher
+    assertTrue(camelScore(queryHumps("RG"), "RefGlobal") >
+               camelScore(queryHumps("RG"), "RefGlobalSerializer"));
+  }
+
+  @Test public void testFuzzy () {
+    assertTrue(fuzzyScore("mdbstr", "MapDBStore") >= 0);
+    assertEquals(NO_MATCH, fuzzyScore("mdbx", "MapDBStore"));
+    assertEquals(NO_MATCH, fuzzyScore("storex", "Store"));
+    // exact beats prefix beats hump-aligned beats scattered
+    assertTrue(fuzzyScore("store", "Store") > fuzzyScore("store", "StoreWriter"));
+    assertTrue(fuzzyScore("store", "StoreWriter") > fuzzyScore("store", "MapDBStore"));
+    assertTrue(fuzzyScore("ds", "DefStore") > fuzzyScore("ds", "Defaults"));
+  }
+}
@@ -0,0 +1,51 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store
+
+import org.junit.Assert._
+import org.junit._
+
+class IdSetTest {
+
+  def ids (ids :Long*) = { val b = IdSet.builder(ids.size) ; ids foreach { b += _ } ; b.result() }
+  def toList (set :IdSet) = { val lb = List.newBuilder[Long] ; set foreach { lb += _ } ; lb.result() }
+
+  @Test def testBuilder () :Unit = {
+    assertEquals(List(1L, 3L, 5L, 9L), toList(ids(9, 3, 1, 5, 3, 9)))
+    assertEquals(List(2L, 4L), toList(ids(2, 4)))
+    assertSame(IdSet.Empty, ids())
+    val big = ids((1000L to 1L by -1L) :_*)
+    assertEquals(1000, big.size)
+    assertEquals(1L, big(0))
+    assertEquals(1000L, big(999))
+  }
+
+  @Test def testContains () :Unit = {
+    val set = ids(10, 20, 30)
+    assertTrue(set.contains(20))
+    assertFalse(set.contains(25))
+    assertTrue(set.asJava.contains(java.lang.Long.valueOf(30)))
+    assertEquals(3, set.asJava.size)
+  }
+
+  @Test def testUnion () :Unit = {
+    assertEquals(ids(1, 2, 3, 4, 6), ids(1, 3, 6) ++ ids(2, 3, 4))
+    assertEquals(ids(1, 2), ids(1, 2) ++ IdSet.Empty)
+    assertEquals(ids(1, 2), IdSet.Empty ++ ids(1, 2))
+  }
+
+  @Test def testDifference () :Unit = {
+    assertEquals(ids(1, 6), ids(1, 3, 6) -- ids(2, 3, 4))
+    assertEquals(ids(1, 3, 6), ids(1, 3, 6) -- ids(7, 8))
+    assertTrue((ids(1, 3) -- ids(1, 2, 3)).isEmpty)
+    assertEquals(ids(5), ids(5) -- IdSet.Empty)
+  }
+
+  @Test def testReverse () :Unit = {
+    val lb = List.newBuilder[Long]
+    ids(3, 1, 2) reverseForeach { lb += _ }
+    assertEquals(List(3L, 2L, 1L), lb.result())
+  }
+}
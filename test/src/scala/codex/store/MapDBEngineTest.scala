@@ -0,0 +1,56 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store
+
+import java.util.{TreeMap, TreeSet}
+import org.junit.Assert._
+import org.junit._
+import org.mapdb.{DBMaker, Serializer}
+
+class MapDBEngineTest {
+
+  // the pump fills leaves with 24 keys and dir nodes with 23 children, and chokes when the last
+  // leaf completes the second (or a later) dir node
+  val PumpFails = List(2*23*24, 2*23*24 - 23, 3*23*24, 10*23*24)
+
+  @Test def testPumpCount () :Unit = {
+    PumpFails foreach { size =>
+      val pump = MapDBEngine.pumpCount(size)
+      assertTrue(s"Holds back entries for $size", pump < size)
+      assertEquals(0, pump % 24)
+    }
+    // other sizes are pumped in full
+    List(0, 1, 24, 23*24, 2*23*24 - 24, 2*23*24 + 1) foreach { size =>
+      assertEquals(size, MapDBEngine.pumpCount(size))
+    }
+  }
+
+  @Test def testLoadPumpFailSizes () :Unit = {
+    PumpFails foreach { size =>
+      val engine = new MapDBEngine(DBMaker.newMemoryDB.make())
+      engine.map("map", KeyType.LONG, Serializer.LONG)
+      engine.set("set", KeyType.LONG)
+      val data = new TreeMap[java.lang.Long,java.lang.Long]()
+      val elems = new TreeSet[java.lang.Long]()
+      (1L to size) foreach { ii => data.put(ii, -ii) ; elems.add(ii) }
+
+      val map = engine.load("map", data)
+      assertEquals(size, map.size)
+      val iter = map.iterator(null)
+      (1L to size) foreach { ii =>
+        val ent = iter.next
+        assertEquals(ii, ent.getKey.longValue)
+        assertEquals(-ii, ent.getValue.longValue)
+      }
+      assertFalse(iter.hasNext)
+
+      val set = engine.load("set", elems)
+      assertEquals(size, set.size)
+      assertTrue(set.contains(1L))
+      assertTrue(set.contains(size.toLong))
+      engine.close()
+    }
+  }
+}
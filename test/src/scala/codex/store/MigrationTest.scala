@@ -0,0 +1,178 @@
+//
+// Codex - a framework for grokking code
+// http://github.com/scaled/codex/blob/master/LICENSE
+
+package codex.store
+
+import codex.model._
+import java.nio.file.{Files, Path, Paths}
+import java.util.{Arrays, Collections}
+import org.junit.Assert._
+import org.junit._
+import org.mapdb.{DB, Fun, Serializer}
+import scala.jdk.CollectionConverters._
+
+class MigrationTest {
+  import IO._
+
+  var dir :Path = _
+
+  @Before def createDir () :Unit = {
+    dir = Files.createTempDirectory("codex")
+  }
+
+  @After def deleteDir () :Unit = {
+    Files.list(dir).iterator.asScala foreach { Files.delete(_) }
+    Files.delete(dir)
+  }
+
+  def writeVersion (path :Path, vers :Int) :Unit =
+    Files.write(Paths.get(path.toString+".v"), Arrays.asList(String.valueOf(vers)))
+
+  def map[K,V] (db :DB, name :String, keys :KeyType[K], vSz :Serializer[V]) =
+    db.createTreeMap(name).keySerializer(MapDBEngine.keySerializer(keys)).valueSerializer(vSz).
+      make[K,V]()
+  def set[E] (db :DB, name :String, elems :KeyType[E]) =
+    db.createTreeSet(name).serializer(MapDBEngine.keySerializer(elems)).make[E]()
+
+  def ids (ids :Long*) = { val ib = IdSet.builder(ids.size) ; ids foreach { ib += _ } ; ib.result() }
+  def uses (uses :PUse*) = { val ub = scaled.Seq.builder[PUse]() ; uses foreach { ub += _ } ; ub.build() }
+
+  @Test def testMigrateFromSchema4 () :Unit = {
+    // write a schema 4 store by hand: its values use the original serializers, and its def ids
+    // have 16 unit bits; it has one unit, which defines pkg, and pkg.A, which extends pkg.B
+    val unitId = 3
+    def nameId (counter :Long) = counter << 16
+    def defId (counter :Long) = nameId(counter) | unitId
+    val (pkg, a, b) = (1L, 2L, 3L)
+
+    val path = dir.resolve("store")
+    val db = MapDBStore.fileDB(path).make()
+    val names = map(db, "names", KeyType.LONG, new NameSerializer())
+    names.put(nameId(pkg), Name("pkg", 0L, Kind.MODULE, unitId))
+    names.put(nameId(a), Name("A", nameId(pkg), Kind.TYPE, unitId))
+    names.put(nameId(b), Name("B", nameId(pkg), Kind.TYPE, unitId))
+    val fqNames = map(db, "fqNames", KeyType.STRING, Serializer.LONG)
+    fqNames.put("pkg", nameId(pkg))
+    fqNames.put("pkg A", nameId(a))
+    fqNames.put("pkg B", nameId(b))
+    map(db, "srcToId", KeyType.STRING, Serializer.INTEGER).put("/A.java", unitId)
+    map(db, "srcDefs", KeyType.INT, new IdSetSerializer()).put(
+      unitId, ids(defId(pkg), defId(a), defId(b)))
+    map(db, "srcInfo", KeyType.INT, new SourceInfoSerializer()).put(
+      unitId, SourceInfo("/A.java", 1234L, 0L, 0L, 0L))
+    set(db, "topDefs", KeyType.LONG).add(defId(pkg))
+    val defs = map(db, "defs", KeyType.LONG, new DefSerializer())
+    defs.put(defId(pkg), PDef(defId(pkg), 0L, Kind.MODULE, Flavor.NONE, true, Access.PUBLIC,
+                              "pkg", 0, 0, 0))
+    defs.put(defId(a), PDef(defId(a), defId(pkg), Kind.TYPE, Flavor.CLASS, true, Access.PUBLIC,
+                            "A", 10, 10, 60))
+    defs.put(defId(b), PDef(defId(b), defId(pkg), Kind.TYPE, Flavor.CLASS, true, Access.PUBLIC,
+                            "B", 70, 70, 80))
+    map(db, "defSig", KeyType.LONG, new SigSerializer()).put(
+      defId(a), PSig("class A extends B", uses(PUse(nameId(b), 16, 1))))
+    map(db, "defDoc", KeyType.LONG, new DocSerializer()).put(
+      defId(a), PDoc(0, 9, uses(PUse(nameId(b), 4, 1))))
+    map(db, "defMems", KeyType.LONG, new IdSetSerializer()).put(defId(pkg), ids(defId(a), defId(b)))
+    map(db, "defUses", KeyType.LONG, new UsesSerializer()).put(
+      defId(a), uses(PUse(nameId(b), 30, 1), PUse(nameId(b), 40, 1)))
+    val rels = KeyType.tuple(KeyType.LONG, KeyType.INT, KeyType.LONG)
+    set(db, "relsFrom", rels).add(Fun.t3(defId(a), Relation.INHERITS.code, nameId(b)))
+    set(db, "relsTo", rels).add(Fun.t3(nameId(b), Relation.INHERITS.code, defId(a)))
+    map(db, "useBySrc", KeyType.LONG, new IntSetSerializer()).put(
+      nameId(b), (scaled.Set.builder[Integer]() += unitId).build())
+    val types = set(db, "idx"+Kind.TYPE, MapDBStore.nameIdxKey)
+    types.add(Fun.t2("a", defId(a)))
+    types.add(Fun.t2("b", defId(b)))
+    db.commit()
+    db.close()
+    writeVersion(path, 4)
+
+    // now open the store, which migrates it to the current schema
+    val store = new MapDBStore("test", path)
+    def newId (counter :Long) = (counter << MapDBStore.UNIT_BITS) | unitId
+    val adef = store.`def`(Ref.Global.fromString("pkg A")).get
+    assertEquals(newId(a), adef.id.longValue)
+    assertEquals(newId(pkg), adef.outerId.longValue)
+    assertEquals((10, 60), (adef.offset, adef.bodyEnd))
+    assertEquals(Ref.Global.fromString("pkg B"), store.ref(newId(b)))
+    assertEquals(Arrays.asList("A", "B"),
+                 store.defsIn(newId(pkg)).asScala.map(_.name).toList.asJava)
+    assertEquals(Arrays.asList(newId(pkg) :java.lang.Long),
+                 store.topLevelDefs.asScala.map(_.id).toList.asJava)
+    assertEquals(1234L, store.lastIndexed(new Source.File("/A.java")))
+
+    // uses and relations name B by its remapped id
+    val bref = Ref.local(store, newId(b))
+    val sig = store.sig(newId(a)).get
+    assertEquals("class A extends B", sig.text)
+    assertEquals(bref, sig.uses.get(0).ref)
+    assertEquals(bref, store.doc(newId(a)).get.uses.get(0).ref)
+    val auses = store.usesIn(newId(a)).asScala.toList
+    assertEquals(List(bref, bref), auses.map(_.ref))
+    assertEquals(List(30, 40), auses.map(_.offset))
+    assertEquals(Collections.singleton(bref), store.relationsFrom(Relation.INHERITS, newId(a)))
+    assertEquals(Collections.singleton(adef), store.relationsTo(Relation.INHERITS, bref))
+    val bdef = store.`def`(newId(b))
+    assertArrayEquals(Array(30, 40), store.usesOf(bdef).get(new Source.File("/A.java")))
+
+    // the name indices are built from the migrated defs
+    val stores = Collections.singletonList[ProjectStore](store)
+    assertEquals(Collections.singletonList(adef), Query.name("a").kind(Kind.TYPE).find(stores))
+    assertEquals(Collections.singletonList(bdef), Query.camel("B").find(stores))
+
+    // the migrated trees use the current serializers, so a rewritten unit is stored in full
+    val src = new Source.File("/A.java")
+    val w = store.writer
+    w.openSession()
+    w.openUnit(src)
+    w.emitHashes(17L, 42L)
+    w.openDef(Ref.Global.fromString("pkg"), "pkg", Kind.MODULE, Flavor.NONE, true, Access.PUBLIC,
+              0, 0, 0)
+    w.openDef(Ref.Global.fromString("pkg A"), "A", Kind.TYPE, Flavor.CLASS, true, Access.PUBLIC,
+              10, 10, 60)
+    w.closeDef()
+    w.closeDef()
+    w.closeUnit()
+    w.closeSession()
+    assertEquals((17L, 42L), (store.contentHash(src), store.apiHash(src)))
+    assertEquals(adef.id, store.`def`(Ref.Global.fromString("pkg A")).get.id)
+    assertFalse(store.`def`(Ref.Global.fromString("pkg B")).isPresent)
+    store.close()
+
+    val mdb = MapDBStore.fileDB(path).make()
+    def valSz (name :String) :Class[_] = mdb.getCatalog.get(name + ".valueSerializer").getClass
+    assertEquals(classOf[NameSerializerV2], valSz("names"))
+    assertEquals(classOf[DefSerializerV2], valSz("defs"))
+    assertEquals(classOf[UsesSerializerV2], valSz("defUses"))
+    assertEquals(classOf[SourceInfoSerializerV4], valSz("srcInfo"))
+    assertFalse(mdb.exists("useBySrc"))
+    mdb.close()
+  }
+
+  @Test def testMigrateFromSchema10 () :Unit = {
+    // a schema 10 store lacks the units that define each module; make one by storing two units
+    // that define pkg, and dropping their module units
+    val path = dir.resolve("store")
+    val store = new MapDBStore("test", path)
+    MapDBStoreTest.storeUnit(store, "/A.java", "pkg", Array("A"))
+    MapDBStoreTest.storeUnit(store, "/B.java", "pkg", Array("B"))
+    store.close()
+    val db = MapDBStore.fileDB(path).make()
+    db.delete("modUnits")
+    db.commit()
+    db.close()
+    writeVersion(path, 10)
+
+    // once migrated, pkg is only removed when neither unit defines it
+    val mstore = new MapDBStore("test", path)
+    val pkg = Ref.Global.fromString("pkg")
+    MapDBStoreTest.storeUnit(mstore, "/A.java", "other", Array("A"))
+    assertTrue(mstore.`def`(pkg).isPresent)
+    assertEquals(Arrays.asList("B"), MapDBStoreTest.memberNames(mstore, "pkg"))
+    MapDBStoreTest.storeUnit(mstore, "/B.java", "other", Array("B"))
+    assertFalse(mstore.`def`(pkg).isPresent)
+    assertEquals(Arrays.asList("A", "B"), MapDBStoreTest.memberNames(mstore, "other"))
+    mstore.close()
+  }
+}